@@ -20,10 +20,15 @@ import android.app.ActionBar;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.ContentResolver;
 import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.provider.OpenableColumns;
+import android.util.SparseArray;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -32,6 +37,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
@@ -46,6 +52,15 @@ import androidx.fragment.app.FragmentActivity;
 
 import com.example.android.common.logger.Log;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This fragment controls Bluetooth to communicate with other devices.
  */
@@ -57,6 +72,19 @@ public class BluetoothChatFragment extends Fragment {
     private static final int REQUEST_CONNECT_DEVICE_SECURE = 1;
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     private static final int REQUEST_ENABLE_BT = 3;
+    private static final int REQUEST_PICK_FILE = 4;
+
+    // Key for the address of the conversation shown, kept across configuration changes
+    private static final String STATE_CONVERSATION_ADDRESS = "conversation_address";
+
+    // Directory, under the app's files, holding the message logs of the devices chatted with
+    private static final String HISTORY_DIRECTORY = "history";
+
+    // Directory, under the app's external files, holding traffic captures
+    private static final String CAPTURE_DIRECTORY = "captures";
+
+    // How often the link quality of the connections is logged
+    private static final long LINK_STATS_INTERVAL_MILLIS = 30000;
 
     // Layout Views
     private ListView mConversationView;
@@ -68,11 +96,46 @@ public class BluetoothChatFragment extends Fragment {
      */
     private String mConnectedDeviceName = null;
 
+    /**
+     * Names of the connected devices, keyed by connection id
+     */
+    private final SparseArray<String> mConnectedDeviceNames = new SparseArray<>();
+
+    /**
+     * Address of the device that connected last
+     */
+    private String mConnectedDeviceAddress = null;
+
+    /**
+     * Addresses of the connected devices, keyed by connection id
+     */
+    private final SparseArray<String> mConnectedDeviceAddresses = new SparseArray<>();
+
+    /**
+     * Last connection state reported by the chat service
+     */
+    private int mLastState = BluetoothChatService.STATE_NONE;
+
+    /**
+     * Whether the chat service is bringing back a lost connection, so the conversation goes on
+     */
+    private boolean mReconnecting = false;
+
     /**
      * Array adapter for the conversation thread
      */
     private ArrayAdapter<String> mConversationArrayAdapter;
 
+    /**
+     * The window of the conversation shown by the adapter, paged in from the message log
+     */
+    private ConversationHistory mConversationHistory;
+
+    /**
+     * Address of the conversation to show again once the chat is set up
+     */
+    private String mRestoredConversationAddress = null;
+
     /**
      * String buffer for outgoing messages
      */
@@ -92,6 +155,10 @@ public class BluetoothChatFragment extends Fragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
+        if (savedInstanceState != null) {
+            mRestoredConversationAddress =
+                    savedInstanceState.getString(STATE_CONVERSATION_ADDRESS);
+        }
         // Get local Bluetooth adapter
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
@@ -124,8 +191,20 @@ public class BluetoothChatFragment extends Fragment {
     public void onDestroy() {
         super.onDestroy();
         if (mChatService != null) {
+            mChatService.stopCapture();
             mChatService.stop();
         }
+        if (mConversationHistory != null) {
+            mConversationHistory.close();
+        }
+    }
+
+    @Override
+    public void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mConversationHistory != null) {
+            outState.putString(STATE_CONVERSATION_ADDRESS, mConversationHistory.getAddress());
+        }
     }
 
     @Override
@@ -168,9 +247,18 @@ public class BluetoothChatFragment extends Fragment {
         if (activity == null) {
             return;
         }
-        mConversationArrayAdapter = new ArrayAdapter<>(activity, R.layout.message);
+        List<String> lines = new ArrayList<>();
+        mConversationArrayAdapter = new ArrayAdapter<>(activity, R.layout.message, lines);
+        mConversationHistory = new ConversationHistory(
+                new File(activity.getFilesDir(), HISTORY_DIRECTORY), lines, mHistoryListener);
+        if (mRestoredConversationAddress != null) {
+            mConversationHistory.open(mRestoredConversationAddress);
+            mRestoredConversationAddress = null;
+        }
 
         mConversationView.setAdapter(mConversationArrayAdapter);
+        mConversationView.setOnScrollListener(mScrollListener);
+        updateTranscriptMode();
 
         // Initialize the compose field with a listener for the return key
         mOutEditText.setOnEditorActionListener(mWriteListener);
@@ -190,6 +278,9 @@ public class BluetoothChatFragment extends Fragment {
 
         // Initialize the BluetoothChatService to perform bluetooth connections
         mChatService = new BluetoothChatService(activity, mHandler);
+        mChatService.setMessageListener(mMessageListener);
+        mChatService.setLinkStatsInterval(LINK_STATS_INTERVAL_MILLIS);
+        mChatService.setConnectRaceEnabled(true);
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer();
@@ -223,7 +314,10 @@ public class BluetoothChatFragment extends Fragment {
         if (message.length() > 0) {
             // Get the message bytes and tell the BluetoothChatService to write
             byte[] send = message.getBytes();
-            mChatService.write(send);
+            if (!mChatService.write(send)) {
+                Toast.makeText(getActivity(), R.string.send_queue_full, Toast.LENGTH_SHORT).show();
+                return;
+            }
 
             // Reset out string buffer to zero and clear the edit text field
             mOutStringBuffer.setLength(0);
@@ -231,6 +325,89 @@ public class BluetoothChatFragment extends Fragment {
         }
     }
 
+    /**
+     * Sends a file picked by the user. The file is first copied out of its content provider,
+     * since the chat service reads it again if the transfer has to resume. Each pick gets its
+     * own copy, which the chat service deletes once it is done with it.
+     *
+     * @param uri The content to send
+     */
+    private void sendFile(final Uri uri) {
+        final FragmentActivity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        final ContentResolver resolver = activity.getContentResolver();
+        final File directory = new File(activity.getCacheDir(), "outgoing");
+        new Thread() {
+            @Override
+            public void run() {
+                boolean queued = false;
+                File file = null;
+                try {
+                    if (directory.isDirectory() || directory.mkdirs()) {
+                        file = File.createTempFile("send", null, directory);
+                        copy(resolver.openInputStream(uri), file);
+                        queued = mChatService.sendFileCopy(file, getDisplayName(resolver, uri));
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not read " + uri, e);
+                }
+                if (!queued && file != null && !file.delete()) {
+                    Log.w(TAG, "Could not delete " + file);
+                }
+                if (!queued) {
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(activity, R.string.file_not_sent,
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            }
+        }.start();
+    }
+
+    private static String getDisplayName(ContentResolver resolver, Uri uri) {
+        String name = null;
+        Cursor cursor = resolver.query(uri, new String[]{OpenableColumns.DISPLAY_NAME},
+                null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    name = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (name == null) {
+            name = uri.getLastPathSegment();
+        }
+        return name == null ? "file" : new File(name).getName();
+    }
+
+    private static void copy(InputStream in, File file) throws IOException {
+        if (in == null) {
+            throw new IOException("No content");
+        }
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            byte[] buffer = new byte[8 * 1024];
+            int bytes;
+            while ((bytes = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytes);
+            }
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
     /**
      * The action listener for the EditText widget, to listen for the return key
      */
@@ -246,6 +423,88 @@ public class BluetoothChatFragment extends Fragment {
         }
     };
 
+    /**
+     * Pages older and newer messages of the conversation in as the list reaches either end of
+     * the lines loaded.
+     */
+    private final AbsListView.OnScrollListener mScrollListener =
+            new AbsListView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                             int totalItemCount) {
+            if (visibleItemCount == 0 || mConversationHistory == null) {
+                return;
+            }
+            // Keep the first visible line where it is on screen
+            View first = view.getChildAt(0);
+            int top = first == null ? 0 : first.getTop();
+            if (firstVisibleItem == 0) {
+                int added = mConversationHistory.loadOlder();
+                if (added > 0) {
+                    updateTranscriptMode();
+                    mConversationArrayAdapter.notifyDataSetChanged();
+                    mConversationView.setSelectionFromTop(added, top);
+                }
+            } else if (firstVisibleItem + visibleItemCount >= totalItemCount) {
+                int dropped = mConversationHistory.loadNewer();
+                if (dropped >= 0) {
+                    updateTranscriptMode();
+                    mConversationArrayAdapter.notifyDataSetChanged();
+                    mConversationView.setSelectionFromTop(firstVisibleItem - dropped, top);
+                }
+            }
+        }
+    };
+
+    /**
+     * Only follow new messages while the end of the conversation is loaded, so that paging in
+     * older messages does not jump back to the bottom.
+     */
+    private void updateTranscriptMode() {
+        mConversationView.setTranscriptMode(mConversationHistory.isAtEnd()
+                ? AbsListView.TRANSCRIPT_MODE_NORMAL : AbsListView.TRANSCRIPT_MODE_DISABLED);
+    }
+
+    /**
+     * Shows the latest page of a conversation once it is read from its log.
+     */
+    private final ConversationHistory.Listener mHistoryListener =
+            new ConversationHistory.Listener() {
+        @Override
+        public void onHistoryLoaded() {
+            updateTranscriptMode();
+            mConversationArrayAdapter.notifyDataSetChanged();
+        }
+    };
+
+    /**
+     * Adds a message to the conversation and to the logs of the devices it was exchanged with.
+     *
+     * @param addresses Addresses of the devices the message was sent to or received from
+     * @param direction {@link MessageLog#DIRECTION_IN} or {@link MessageLog#DIRECTION_OUT}
+     * @param sender    Name of the sender of an incoming message
+     * @param text      The message
+     */
+    private void addMessage(List<String> addresses, int direction, String sender, String text) {
+        if (mConversationHistory.add(addresses, direction, sender, text)) {
+            mConversationArrayAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Returns the address of a connected device, in a list to log a message with.
+     *
+     * @param connectionId The connection id of the device
+     */
+    private List<String> addressOf(int connectionId) {
+        return Collections.singletonList(
+                mConnectedDeviceAddresses.get(connectionId, mConnectedDeviceAddress));
+    }
+
     /**
      * Updates the status on the action bar.
      *
@@ -280,6 +539,51 @@ public class BluetoothChatFragment extends Fragment {
         actionBar.setSubtitle(subTitle);
     }
 
+    /**
+     * Shows who we are connected to on the action bar.
+     */
+    private void setConnectedStatus() {
+        if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
+            return;
+        }
+        int connections = mChatService.getConnectionCount();
+        if (connections > 1) {
+            setStatus(getString(R.string.title_connected_to_count, connections));
+        } else {
+            setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
+        }
+    }
+
+    /**
+     * Adds the messages received during a display frame to the conversation, then updates the
+     * list once for all of them
+     */
+    private final BluetoothChatService.MessageListener mMessageListener =
+            new BluetoothChatService.MessageListener() {
+        private boolean mChanged;
+
+        @Override
+        public void onMessageRead(byte[] buffer, int length, int connectionId) {
+            // construct a string from the valid bytes in the buffer
+            String readMessage = new String(buffer, 0, length);
+            // the buffer belongs to the chat service's pool
+            mChatService.releaseBuffer(buffer);
+            String senderName = mConnectedDeviceNames.get(connectionId, mConnectedDeviceName);
+            if (mConversationHistory.add(addressOf(connectionId), MessageLog.DIRECTION_IN,
+                    senderName, readMessage)) {
+                mChanged = true;
+            }
+        }
+
+        @Override
+        public void onMessagesRead() {
+            if (mChanged) {
+                mChanged = false;
+                mConversationArrayAdapter.notifyDataSetChanged();
+            }
+        }
+    };
+
     /**
      * The Handler that gets information back from the BluetoothChatService
      */
@@ -291,38 +595,91 @@ public class BluetoothChatFragment extends Fragment {
                 case Constants.MESSAGE_STATE_CHANGE:
                     switch (msg.arg1) {
                         case BluetoothChatService.STATE_CONNECTED:
-                            setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
-                            mConversationArrayAdapter.clear();
+                            setConnectedStatus();
+                            // Only start a new conversation when the first device connects
+                            if (mLastState != BluetoothChatService.STATE_CONNECTED
+                                    && !mReconnecting) {
+                                mConversationHistory.open(mConnectedDeviceAddress);
+                                updateTranscriptMode();
+                                mConversationArrayAdapter.notifyDataSetChanged();
+                            }
+                            mReconnecting = false;
                             break;
                         case BluetoothChatService.STATE_CONNECTING:
                             setStatus(R.string.title_connecting);
                             break;
                         case BluetoothChatService.STATE_LISTEN:
                         case BluetoothChatService.STATE_NONE:
-                            setStatus(R.string.title_not_connected);
+                            if (mChatService.isReconnecting()) {
+                                setStatus(R.string.title_reconnecting);
+                            } else {
+                                setStatus(R.string.title_not_connected);
+                            }
                             break;
                     }
+                    mLastState = msg.arg1;
                     break;
                 case Constants.MESSAGE_WRITE:
                     byte[] writeBuf = (byte[]) msg.obj;
                     // construct a string from the buffer
                     String writeMessage = new String(writeBuf);
-                    mConversationArrayAdapter.add("Me:  " + writeMessage);
-                    break;
-                case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + readMessage);
+                    // The message went to every device connected
+                    addMessage(mChatService.getConnectedAddresses(), MessageLog.DIRECTION_OUT,
+                            null, writeMessage);
                     break;
                 case Constants.MESSAGE_DEVICE_NAME:
                     // save the connected device's name
                     mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
+                    mConnectedDeviceNames.put(msg.arg1, mConnectedDeviceName);
+                    mConnectedDeviceAddress = msg.getData().getString(Constants.DEVICE_ADDRESS);
+                    mConnectedDeviceAddresses.put(msg.arg1, mConnectedDeviceAddress);
                     if (null != activity) {
+                        // remember the device and the socket type that reached it
+                        DeviceInventory inventory =
+                                DeviceInventory.getInstance(activity.getFilesDir());
+                        inventory.onConnected(mConnectedDeviceAddress, mConnectedDeviceName,
+                                msg.getData().getBoolean(Constants.DEVICE_SECURE),
+                                System.currentTimeMillis());
+                        inventory.save();
                         Toast.makeText(activity, "Connected to "
                                 + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
                     }
                     break;
+                case Constants.MESSAGE_RECONNECTING:
+                    mReconnecting = true;
+                    setStatus(R.string.title_reconnecting);
+                    break;
+                case Constants.MESSAGE_FILE_PROGRESS:
+                    setStatus(getString(R.string.file_progress, msg.obj, msg.arg1));
+                    break;
+                case Constants.MESSAGE_FILE_SENT:
+                    addMessage(addressOf(msg.arg2), MessageLog.DIRECTION_OUT, null,
+                            getString(R.string.file_sent, msg.obj));
+                    setConnectedStatus();
+                    break;
+                case Constants.MESSAGE_FILE_RECEIVED:
+                    File receivedFile = (File) msg.obj;
+                    String fileSenderName =
+                            mConnectedDeviceNames.get(msg.arg2, mConnectedDeviceName);
+                    addMessage(addressOf(msg.arg2), MessageLog.DIRECTION_IN, fileSenderName,
+                            getString(R.string.file_sent, receivedFile.getName()));
+                    if (null != activity) {
+                        Toast.makeText(activity, getString(R.string.file_saved,
+                                receivedFile.getPath()), Toast.LENGTH_LONG).show();
+                    }
+                    setConnectedStatus();
+                    break;
+                case Constants.MESSAGE_LINK_STATS:
+                    // Keep a record of the link quality to go with any reported problem
+                    @SuppressWarnings("unchecked")
+                    List<LinkStats> linkStats = (List<LinkStats>) msg.obj;
+                    for (LinkStats stats : linkStats) {
+                        Log.i(TAG, stats.toString());
+                    }
+                    if (mChatService.isRelayEnabled()) {
+                        Log.i(TAG, mChatService.getMeshStats().toString());
+                    }
+                    break;
                 case Constants.MESSAGE_TOAST:
                     if (null != activity) {
                         Toast.makeText(activity, msg.getData().getString(Constants.TOAST),
@@ -347,6 +704,12 @@ public class BluetoothChatFragment extends Fragment {
                     connectDevice(data, false);
                 }
                 break;
+            case REQUEST_PICK_FILE:
+                // When the user has picked a file to send
+                if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                    sendFile(data.getData());
+                }
+                break;
             case REQUEST_ENABLE_BT:
                 // When the request to enable Bluetooth returns
                 if (resultCode == Activity.RESULT_OK) {
@@ -368,8 +731,10 @@ public class BluetoothChatFragment extends Fragment {
     /**
      * Establish connection with other device
      *
-     * @param data   An {@link Intent} with {@link DeviceListActivity#EXTRA_DEVICE_ADDRESS} extra.
-     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     * @param data   An {@link Intent} with {@link DeviceListActivity#EXTRA_DEVICE_ADDRESS} extra,
+     *               and {@link DeviceListActivity#EXTRA_SECURE} for a device connected to before.
+     * @param secure Socket Security type - Secure (true) , Insecure (false), unless the
+     *               device's last socket type is known
      */
     private void connectDevice(Intent data, boolean secure) {
         // Get the device MAC address
@@ -378,9 +743,14 @@ public class BluetoothChatFragment extends Fragment {
             return;
         }
         String address = extras.getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+        // Reuse the socket type that worked last time
+        if (extras.containsKey(DeviceListActivity.EXTRA_SECURE)) {
+            secure = extras.getBoolean(DeviceListActivity.EXTRA_SECURE);
+        }
         // Get the BluetoothDevice object
         BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        // Attempt to connect to the device
+        // Attempt to connect to the device, starting a new conversation
+        mReconnecting = false;
         mChatService.connect(device, secure);
     }
 
@@ -404,13 +774,81 @@ public class BluetoothChatFragment extends Fragment {
                 startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE_INSECURE);
                 return true;
             }
+            case R.id.send_file: {
+                // Check that we're actually connected before picking a file
+                if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
+                    Toast.makeText(getActivity(), R.string.not_connected,
+                            Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("*/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(Intent.createChooser(intent, getString(R.string.send_file)),
+                        REQUEST_PICK_FILE);
+                return true;
+            }
             case R.id.discoverable: {
                 // Ensure this device is discoverable by others
                 ensureDiscoverable();
                 return true;
             }
+            case R.id.multi_connection: {
+                // Toggle hosting several devices at once, and listen again in the new mode
+                boolean enabled = !item.isChecked();
+                item.setChecked(enabled);
+                mChatService.setMultiConnectionEnabled(enabled);
+                if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
+                    mChatService.stop();
+                    mChatService.start();
+                }
+                return true;
+            }
+            case R.id.capture: {
+                // Toggle recording the traffic to a file that can be replayed later
+                toggleCapture(item);
+                return true;
+            }
+            case R.id.relay: {
+                // Toggle forwarding messages between the connected devices
+                boolean enabled = !item.isChecked();
+                item.setChecked(enabled);
+                mChatService.setRelayEnabled(enabled);
+                return true;
+            }
         }
         return false;
     }
 
+    /**
+     * Start capturing the traffic to a new file, or finish the capture in progress.
+     */
+    private void toggleCapture(MenuItem item) {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        if (mChatService.isCapturing()) {
+            mChatService.stopCapture();
+            item.setChecked(false);
+            return;
+        }
+        File directory = activity.getExternalFilesDir(CAPTURE_DIRECTORY);
+        if (directory == null) {
+            directory = new File(activity.getFilesDir(), CAPTURE_DIRECTORY);
+        }
+        File file = new File(directory, "capture-" + System.currentTimeMillis() + ".btcap");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            mChatService.startCapture(file);
+            item.setChecked(true);
+            Toast.makeText(activity, getString(R.string.capture_started, file.getName()),
+                    Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to capture to " + file, e);
+        }
+    }
+
 }
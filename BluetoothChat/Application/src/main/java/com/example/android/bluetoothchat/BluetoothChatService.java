@@ -18,8 +18,6 @@ package com.example.android.bluetoothchat;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
@@ -27,46 +25,208 @@ import android.os.Message;
 
 import com.example.android.common.logger.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connected.
+ *
+ * <p>Sockets are obtained from a {@link ChatTransport}: RFCOMM by default, or any other
+ * transport passed to {@link #BluetoothChatService(Handler, ChatTransport)}.</p>
+ *
+ * <p>By default the service talks to one device at a time. In multi-connection mode it keeps
+ * listening while connected and manages one ConnectedThread per remote device, up to
+ * {@link #MAX_CONNECTIONS}.</p>
+ *
+ * <p>Messages are exchanged as length-prefixed frames (see {@link FrameProtocol}), so every
+ * {@link Constants#MESSAGE_READ} carries exactly one whole message. The message's buffer comes
+ * from a pool and must be handed back with {@link #releaseBuffer(byte[])} once decoded.
+ * Received messages reach the UI thread once per display frame; a {@link MessageListener}
+ * gets each frame's messages as one batch.</p>
+ *
+ * <p>With connect racing enabled, an outgoing connection tries the secure and the insecure
+ * socket types at once and keeps whichever connects first. The winner is remembered per
+ * device, so later connections to it only try that socket type.</p>
+ *
+ * <p>The connection state is a {@link ConnectionStateMachine}: reading it, writing messages and
+ * the connections' read loops never take the service lock, and a state change that does not fit
+ * the current state, such as a connection completing after {@link #stop()}, is rejected.</p>
+ *
+ * <p>In relay mode, messages written to all devices are relayed through the mesh: every device
+ * forwards them to its other peers, up to a number of hops, and delivers each message once
+ * however many paths it arrives by. Relaying needs multi-connection mode to reach past the
+ * devices this one is connected to.</p>
+ *
+ * <p>Traffic can be captured to a file with {@link #startCapture(File)}, and played back to a
+ * service over {@link TcpTransport} with {@link TrafficReplayer}.</p>
  */
 public class BluetoothChatService {
     // Debugging
     private static final String TAG = "BluetoothChatService";
 
-    // Name for the SDP record when creating server socket
-    private static final String NAME_SECURE = "BluetoothChatSecure";
-    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+    // Number of free buffers kept for each buffer size
+    private static final int BUFFERS_PER_SIZE_CLASS = 16;
+
+    // Upper bounds on how much queued data the writer coalesces into one socket write
+    private static final int MAX_BATCH_MESSAGES = 32;
+    private static final int MAX_BATCH_BYTES = 8 * 1024;
+
+    // Most connections kept in multi-connection mode; a piconet has at most seven active peers
+    public static final int MAX_CONNECTIONS = 7;
+
+    // Backoff between automatic reconnect attempts: doubling from the base delay up to the
+    // maximum, with half of each delay randomized so that devices do not retry in lockstep
+    private static final long RECONNECT_BASE_DELAY_MILLIS = 500;
+    private static final long RECONNECT_MAX_DELAY_MILLIS = 30000;
+    private static final int MAX_RECONNECT_ATTEMPTS = 8;
+
+    // The peer acknowledges every this many messages, so the replay buffer stays short
+    private static final int SESSION_ACK_INTERVAL = 16;
 
-    // Unique UUID for this application
-    private static final UUID MY_UUID_SECURE =
-            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    private static final UUID MY_UUID_INSECURE =
-            UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+    // How long a connection waits for the UI thread to drain its messages when it is behind
+    private static final long INBOX_FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Sessions remembered for peers that may reconnect
+    private static final int MAX_SESSIONS = 16;
+
+    // Devices whose link counters are remembered
+    private static final int MAX_LINK_COUNTERS = 16;
+
+    // Head start of the requested socket type when racing secure and insecure connects, so
+    // that a device accepting both does not get a second channel opened for nothing
+    private static final long CONNECT_RACE_STAGGER_MILLIS = 500;
+
+    // Devices whose winning socket type is remembered
+    private static final int MAX_CONNECT_WINNERS = 16;
+
+    // How often each connection's round-trip time is measured
+    private static final long PING_INTERVAL_MILLIS = 5000;
+
+    // How long messages wait for the peer to tell which earlier ones it is missing, before going
+    // out anyway; a peer predating sessions never does
+    private static final long HELLO_TIMEOUT_MILLIS = 2000;
+
+    // A socket write taking longer than this counts as a stall of the link
+    private static final long WRITE_STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    // Links a relayed message may cross unless set otherwise; a byte on the wire
+    private static final int DEFAULT_RELAY_HOP_LIMIT = 4;
+    public static final int MAX_RELAY_HOP_LIMIT = 255;
+
+    // Subdirectory of the app's files where received files are saved
+    private static final String RECEIVED_FILES_DIRECTORY = "received";
 
     // Member fields
-    private final BluetoothAdapter mAdapter;
+    private final ChatTransport mTransport;
     private final Handler mHandler;
     private AcceptThread mSecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
     private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    // The other socket type's attempt while racing secure and insecure connects
+    private ConnectThread mRaceConnectThread;
+    // Live connections keyed by remote device address
+    private final Map<String, ConnectedThread> mConnectedThreads = new LinkedHashMap<>();
+    // A copy of the live connections, replaced on every change, for the lock-free write paths
+    private volatile ConnectedThread[] mConnections = new ConnectedThread[0];
+    private int mNextConnectionId;
+    private volatile boolean mMultiConnection;
+    private volatile boolean mCompressionEnabled = true;
+    private final ConnectionStateMachine mState;
     private int mNewState;
+    private volatile StateListener mStateListener;
+    private int mSendQueueCapacity = 64;
+    private int mBackpressurePolicy = BACKPRESSURE_DROP_NEWEST;
+    private long mBackpressureTimeoutMillis = 0;
+
+    // Recycled buffers for incoming frames, shared by all connections
+    private final BufferPool mBufferPool =
+            new BufferPool(FrameProtocol.MAX_PAYLOAD_LENGTH, BUFFERS_PER_SIZE_CLASS);
+
+    // Hands received messages to the UI thread a frame at a time
+    private final MessageDispatcher mMessageDispatcher;
+
+    // Files being sent or received, which outlive the connections they run over
+    private final FileTransferManager mFileTransfers;
+
+    // Identifies this service to peers, which keep their session with us under this id
+    private final long mInstanceId;
+
+    // Relaying messages through a mesh of devices; our messages are numbered in the mesh
+    private volatile boolean mRelayEnabled;
+    private volatile int mRelayHopLimit = DEFAULT_RELAY_HOP_LIMIT;
+    private final AtomicInteger mRelaySequence = new AtomicInteger();
+    private final MeshTracker mMeshTracker = new MeshTracker();
+
+    // Writes every frame to a capture file while capturing; null otherwise
+    private volatile TrafficRecorder mRecorder;
+    // Message sessions with peer service instances, least recently used first
+    private final Map<Long, ChatSession> mSessions =
+            new LinkedHashMap<Long, ChatSession>(MAX_SESSIONS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, ChatSession> eldest) {
+                    return size() > MAX_SESSIONS;
+                }
+            };
+
+    // Link quality counters of the devices connected to, least recently used first
+    private final Map<String, LinkCounters> mLinkCounters =
+            new LinkedHashMap<String, LinkCounters>(MAX_LINK_COUNTERS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LinkCounters> eldest) {
+                    return size() > MAX_LINK_COUNTERS;
+                }
+            };
+    private long mLinkStatsIntervalMillis;
+    private LinkMonitorThread mLinkMonitorThread;
+
+    // Socket type (true for secure) that won the last connect race to each device
+    private volatile boolean mConnectRace;
+    private final Map<String, Boolean> mConnectWinners =
+            new LinkedHashMap<String, Boolean>(MAX_CONNECT_WINNERS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_CONNECT_WINNERS;
+                }
+            };
+
+    // Automatic reconnection to the device we last connected to
+    private final Random mRandom = new Random();
+    private volatile boolean mAutoReconnect = true;
+    private String mReconnectAddress;
+    private boolean mReconnectSecure;
+    private int mReconnectAttempt;
+    private long mDisconnectedAtMillis;
+    private ReconnectThread mReconnectThread;
+    private int mReconnectCount;
+    private int mFailedReconnectCount;
+    private long mLastReconnectMillis;
+    private long mTotalReconnectMillis;
 
     // Constants that indicate the current connection state
-    public static final int STATE_NONE = 0;       // we're doing nothing
-    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
-    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_NONE = ConnectionStateMachine.NONE;             // doing nothing
+    public static final int STATE_LISTEN = ConnectionStateMachine.LISTEN;         // listening
+    public static final int STATE_CONNECTING = ConnectionStateMachine.CONNECTING; // connecting
+    public static final int STATE_CONNECTED = ConnectionStateMachine.CONNECTED;   // connected
+
+    // Constants that indicate what write() does when the send queue is full
+    public static final int BACKPRESSURE_DROP_NEWEST = SendQueue.DROP_NEWEST; // reject new message
+    public static final int BACKPRESSURE_DROP_OLDEST = SendQueue.DROP_OLDEST; // discard oldest
+    public static final int BACKPRESSURE_BLOCK = SendQueue.BLOCK;             // wait, with timeout
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
@@ -75,19 +235,46 @@ public class BluetoothChatService {
      * @param handler A Handler to send messages back to the UI Activity
      */
     public BluetoothChatService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mNewState = mState;
+        this(handler, new RfcommTransport(BluetoothAdapter.getDefaultAdapter()));
+        File directory = context.getExternalFilesDir(RECEIVED_FILES_DIRECTORY);
+        if (directory == null) {
+            directory = new File(context.getFilesDir(), RECEIVED_FILES_DIRECTORY);
+        }
+        setReceivedFileDirectory(directory);
+    }
+
+    /**
+     * Constructor. Prepares a new chat session over the given transport.
+     *
+     * @param handler   A Handler to send messages back to the UI Activity
+     * @param transport The transport providing listening and connected sockets
+     */
+    public BluetoothChatService(Handler handler, ChatTransport transport) {
+        mTransport = transport;
+        mState = new ConnectionStateMachine(STATE_NONE, new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int oldState, int newState) {
+                Log.d(TAG, "state " + oldState + " -> " + newState);
+                StateListener listener = mStateListener;
+                if (listener != null) {
+                    listener.onStateChanged(oldState, newState);
+                }
+            }
+        });
+        mNewState = STATE_NONE;
         mHandler = handler;
+        mMessageDispatcher = new MessageDispatcher(handler);
+        mFileTransfers = new FileTransferManager(handler);
+        mInstanceId = mRandom.nextLong();
     }
 
     /**
      * Update UI title according to the current state of the chat connection
      */
     private synchronized void updateUserInterfaceTitle() {
-        mState = getState();
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
-        mNewState = mState;
+        int state = mState.get();
+        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + state);
+        mNewState = state;
 
         // Give the new state to the Handler so the UI Activity can update
         mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, mNewState, -1).sendToTarget();
@@ -96,8 +283,326 @@ public class BluetoothChatService {
     /**
      * Return the current connection state.
      */
-    public synchronized int getState() {
-        return mState;
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Be told about every change of the connection state, on the thread that made it. The
+     * listener may be called with the service lock held and must not block.
+     *
+     * @param listener The listener, or null to stop listening
+     */
+    public void setStateListener(StateListener listener) {
+        mStateListener = listener;
+    }
+
+    /**
+     * Return the connection state for one remote device.
+     *
+     * @param address The remote device's MAC address
+     */
+    public int getState(String address) {
+        ConnectedThread r = findConnection(address);
+        if (r != null) {
+            return r.mmState.get();
+        }
+        synchronized (this) {
+            return isConnecting(address) ? STATE_CONNECTING : STATE_NONE;
+        }
+    }
+
+    private boolean isConnecting(String address) {
+        return (mConnectThread != null && mConnectThread.mmAddress.equals(address))
+                || (mRaceConnectThread != null && mRaceConnectThread.mmAddress.equals(address));
+    }
+
+    /**
+     * Return the live connection to a device, without taking the service lock.
+     */
+    private ConnectedThread findConnection(String address) {
+        for (ConnectedThread r : mConnections) {
+            if (r.mmAddress.equals(address)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Publish the live connections to the lock-free readers. Called after every change of
+     * mConnectedThreads.
+     */
+    private void publishConnections() {
+        mConnections = mConnectedThreads.values()
+                .toArray(new ConnectedThread[mConnectedThreads.size()]);
+    }
+
+    /**
+     * Return the addresses of all connected devices.
+     */
+    public List<String> getConnectedAddresses() {
+        ConnectedThread[] connections = mConnections;
+        List<String> addresses = new ArrayList<>(connections.length);
+        for (ConnectedThread r : connections) {
+            addresses.add(r.mmAddress);
+        }
+        return addresses;
+    }
+
+    /**
+     * Return the number of connected devices.
+     */
+    public int getConnectionCount() {
+        return mConnections.length;
+    }
+
+    /**
+     * Enable or disable multi-connection mode. When enabled, the service keeps accepting
+     * connections after the first one and outgoing connections do not drop existing ones.
+     * The change applies from the next call to {@link #start()}.
+     */
+    public void setMultiConnectionEnabled(boolean enabled) {
+        mMultiConnection = enabled;
+    }
+
+    /**
+     * Return whether multi-connection mode is enabled.
+     */
+    public boolean isMultiConnectionEnabled() {
+        return mMultiConnection;
+    }
+
+    /**
+     * Offer compression to devices that connect from now on. Each connection compresses only if
+     * both sides offered it; the messages delivered to the Handler are the same either way.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+    }
+
+    /**
+     * Return whether compression is offered to new connections.
+     */
+    public boolean isCompressionEnabled() {
+        return mCompressionEnabled;
+    }
+
+    /**
+     * Race the secure and insecure socket types on outgoing connections. The type passed to
+     * {@link #connect} starts first and the other follows shortly after, or at once if the
+     * first one fails; the first to connect is kept and the other cancelled. Devices that
+     * connected this way are then connected straight with the socket type that won.
+     */
+    public synchronized void setConnectRaceEnabled(boolean enabled) {
+        mConnectRace = enabled;
+        if (!enabled) {
+            mConnectWinners.clear();
+        }
+    }
+
+    /**
+     * Return whether outgoing connections race the secure and insecure socket types.
+     */
+    public boolean isConnectRaceEnabled() {
+        return mConnectRace;
+    }
+
+    /**
+     * Reconnect automatically, with backoff, when the connection to the device last passed to
+     * {@link #connect} is lost. Enabled by default.
+     */
+    public synchronized void setAutoReconnectEnabled(boolean enabled) {
+        mAutoReconnect = enabled;
+        if (!enabled) {
+            cancelReconnect();
+        }
+    }
+
+    /**
+     * Return whether lost connections are reconnected automatically.
+     */
+    public boolean isAutoReconnectEnabled() {
+        return mAutoReconnect;
+    }
+
+    /**
+     * Return whether the service is waiting to reconnect or trying to.
+     */
+    public synchronized boolean isReconnecting() {
+        return mReconnectAttempt > 0;
+    }
+
+    /**
+     * Return the number of lost connections that were restored.
+     */
+    public synchronized int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * Return the number of lost connections given up on after {@value #MAX_RECONNECT_ATTEMPTS}
+     * attempts.
+     */
+    public synchronized int getFailedReconnectCount() {
+        return mFailedReconnectCount;
+    }
+
+    /**
+     * Return how long the last restored connection was down, in milliseconds.
+     */
+    public synchronized long getLastReconnectMillis() {
+        return mLastReconnectMillis;
+    }
+
+    /**
+     * Return how long restored connections were down on average, in milliseconds.
+     */
+    public synchronized long getAverageReconnectMillis() {
+        return mReconnectCount == 0 ? 0 : mTotalReconnectMillis / mReconnectCount;
+    }
+
+    /**
+     * Return a snapshot of the link quality of every connected device.
+     */
+    public synchronized List<LinkStats> getLinkStats() {
+        List<LinkStats> stats = new ArrayList<>(mConnectedThreads.size());
+        for (ConnectedThread r : mConnectedThreads.values()) {
+            stats.add(r.getLinkStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Return a snapshot of the link quality of one connected device.
+     *
+     * @param address The remote device's MAC address
+     * @return The snapshot, or null if the device is not connected
+     */
+    public synchronized LinkStats getLinkStats(String address) {
+        ConnectedThread r = mConnectedThreads.get(address);
+        return r == null ? null : r.getLinkStats();
+    }
+
+    /**
+     * Post {@link Constants#MESSAGE_LINK_STATS} to the Handler periodically while connected.
+     *
+     * @param intervalMillis Time between two reports, or 0 to stop reporting
+     */
+    public synchronized void setLinkStatsInterval(long intervalMillis) {
+        mLinkStatsIntervalMillis = Math.max(0, intervalMillis);
+        if (mLinkMonitorThread != null) {
+            // Start over with the new interval
+            mLinkMonitorThread.cancel();
+            mLinkMonitorThread = null;
+            startLinkMonitor();
+        }
+    }
+
+    /**
+     * Return the time between two {@link Constants#MESSAGE_LINK_STATS}, or 0 if not reporting.
+     */
+    public synchronized long getLinkStatsInterval() {
+        return mLinkStatsIntervalMillis;
+    }
+
+    /**
+     * Capture every frame read or written by the connections, with its time, to a file that
+     * {@link TrafficReplayer} can play back. Replaces any capture in progress.
+     *
+     * @param file The capture file, which is created or replaced
+     */
+    public synchronized void startCapture(File file) throws IOException {
+        stopCapture();
+        TrafficRecorder recorder = new TrafficRecorder(file);
+        // Connections already up are captured from their next frame
+        for (ConnectedThread r : mConnectedThreads.values()) {
+            recorder.onOpened(r.mmConnectionId, r.mmAddress);
+        }
+        mRecorder = recorder;
+        Log.i(TAG, "Capturing traffic to " + file);
+    }
+
+    /**
+     * Finish the capture in progress, if any, and write it out.
+     */
+    public synchronized void stopCapture() {
+        TrafficRecorder recorder = mRecorder;
+        if (recorder != null) {
+            mRecorder = null;
+            recorder.close();
+            Log.i(TAG, "Captured traffic to " + recorder.getFile());
+        }
+    }
+
+    /**
+     * Return whether traffic is being captured.
+     */
+    public boolean isCapturing() {
+        return mRecorder != null;
+    }
+
+    /**
+     * Relay messages through a mesh of devices. When enabled, messages passed to
+     * {@link #write(byte[])} go out as relayed messages, and relayed messages from a peer are
+     * forwarded to the other peers that did not send them. Devices not relaying still deliver
+     * relayed messages they receive, each once.
+     */
+    public void setRelayEnabled(boolean enabled) {
+        mRelayEnabled = enabled;
+    }
+
+    /**
+     * Return whether messages are relayed through the mesh.
+     */
+    public boolean isRelayEnabled() {
+        return mRelayEnabled;
+    }
+
+    /**
+     * Set how many links the messages this device writes may cross. A message is forwarded
+     * no further once it has crossed that many.
+     *
+     * @param hops Between 1 and {@value #MAX_RELAY_HOP_LIMIT}
+     */
+    public void setRelayHopLimit(int hops) {
+        if (hops < 1 || hops > MAX_RELAY_HOP_LIMIT) {
+            throw new IllegalArgumentException("hop limit out of range: " + hops);
+        }
+        mRelayHopLimit = hops;
+    }
+
+    /**
+     * Return how many links the messages this device writes may cross.
+     */
+    public int getRelayHopLimit() {
+        return mRelayHopLimit;
+    }
+
+    /**
+     * Return a snapshot of what the relay mesh carried, with its delivery ratio and latency.
+     */
+    public MeshStats getMeshStats() {
+        return mMeshTracker.getStats();
+    }
+
+    private synchronized LinkCounters getLinkCounters(String address) {
+        LinkCounters counters = mLinkCounters.get(address);
+        if (counters == null) {
+            counters = new LinkCounters();
+            mLinkCounters.put(address, counters);
+        }
+        return counters;
+    }
+
+    private synchronized void startLinkMonitor() {
+        if (mLinkMonitorThread == null) {
+            mLinkMonitorThread = new LinkMonitorThread();
+            mLinkMonitorThread.start();
+        } else {
+            // Have it look at the hello deadline of the new connection
+            mLinkMonitorThread.wakeUp();
+        }
     }
 
     /**
@@ -108,16 +613,10 @@ public class BluetoothChatService {
         Log.d(TAG, "start");
 
         // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+        cancelConnectThreads();
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        cancelConnectedThreads();
 
         // Start the thread to listen on a BluetoothServerSocket
         if (mSecureAcceptThread == null) {
@@ -128,6 +627,7 @@ public class BluetoothChatService {
             mInsecureAcceptThread = new AcceptThread(false);
             mInsecureAcceptThread.start();
         }
+        mState.moveTo(STATE_LISTEN);
         // Update UI title
         updateUserInterfaceTitle();
     }
@@ -138,72 +638,162 @@ public class BluetoothChatService {
      * @param device The BluetoothDevice to connect
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        Log.d(TAG, "connect to: " + device);
+    public void connect(BluetoothDevice device, boolean secure) {
+        connect(device.getAddress(), secure);
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection to a remote device.
+     *
+     * @param address The transport address of the device to connect
+     * @param secure  Socket Security type - Secure (true) , Insecure (false); the type that
+     *                starts first when racing connects
+     */
+    public synchronized void connect(String address, boolean secure) {
+        // A device picked by the user replaces any device we were reconnecting to
+        cancelReconnect();
+        mReconnectAddress = address;
+        mReconnectSecure = secure;
+        startConnectThread(address, secure);
+    }
+
+    /**
+     * Start the ConnectThread for a user request or a reconnect attempt.
+     */
+    private void startConnectThread(String address, boolean secure) {
+        Log.d(TAG, "connect to: " + address);
 
         // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
+        cancelConnectThreads();
+
+        if (mMultiConnection) {
+            // Keep the other devices, but never hold two connections to the same one
+            if (mConnectedThreads.containsKey(address)) {
+                Log.d(TAG, "already connected to " + address);
+                return;
             }
+            if (mConnectedThreads.size() >= MAX_CONNECTIONS) {
+                Log.w(TAG, "connection limit reached, not connecting to " + address);
+                return;
+            }
+        } else {
+            // Cancel any thread currently running a connection
+            cancelConnectedThreads();
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        Boolean winner = mConnectRace ? mConnectWinners.get(address) : null;
+        if (winner != null) {
+            Log.d(TAG, "connecting straight with the socket type that won last time");
+            secure = winner;
         }
 
         // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
+        mConnectThread = new ConnectThread(address, secure, 0);
         mConnectThread.start();
+        if (mConnectRace && winner == null) {
+            // Race the other socket type, after a head start for the requested one
+            mRaceConnectThread = new ConnectThread(address, !secure, CONNECT_RACE_STAGGER_MILLIS);
+            mRaceConnectThread.start();
+        }
+        if (mMultiConnection) {
+            // Still connected if other devices are
+            updateAggregateState();
+        } else {
+            mState.moveTo(STATE_CONNECTING);
+        }
         // Update UI title
         updateUserInterfaceTitle();
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
-     *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * Cancel the threads attempting to make a connection.
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        Log.d(TAG, "connected, Socket Type:" + socketType);
-
-        // Cancel the thread that completed the connection
+    private synchronized void cancelConnectThreads() {
         if (mConnectThread != null) {
             mConnectThread.cancel();
             mConnectThread = null;
         }
+        if (mRaceConnectThread != null) {
+            mRaceConnectThread.cancel();
+            mRaceConnectThread = null;
+        }
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    /**
+     * Start the ConnectedThread to begin managing a Bluetooth connection
+     *
+     * @param channel    The channel on which the connection was made
+     * @param socketType Socket Security type, for logging
+     */
+    public synchronized void connected(ChatTransport.Channel channel, final String socketType) {
+        Log.d(TAG, "connected, Socket Type:" + socketType);
+        String address = channel.getRemoteAddress();
+
+        if (!mState.canMoveTo(STATE_CONNECTED)) {
+            // Stopped while the connection was being made
+            Log.w(TAG, "not connected in state " + mState.get() + ", closing " + address);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of rejected socket failed", e);
+            }
+            return;
         }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+        if (mReconnectAttempt > 0 && (address.equals(mReconnectAddress) || !mMultiConnection)) {
+            long downtime = System.currentTimeMillis() - mDisconnectedAtMillis;
+            Log.i(TAG, "reconnected to " + address + " after " + downtime + " ms, attempt "
+                    + mReconnectAttempt);
+            mReconnectCount++;
+            getLinkCounters(address).reconnects.incrementAndGet();
+            mLastReconnectMillis = downtime;
+            mTotalReconnectMillis += downtime;
+            cancelReconnect();
         }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+
+        if (mMultiConnection) {
+            // Replace an older connection to the same device; keep everything else running
+            ConnectedThread previous = mConnectedThreads.remove(address);
+            if (previous != null) {
+                previous.cancel();
+                publishConnections();
+            }
+        } else {
+            // Cancel the thread that completed the connection
+            cancelConnectThreads();
+
+            // Cancel any thread currently running a connection
+            cancelConnectedThreads();
+
+            // Cancel the accept thread because we only want to connect to one device
+            if (mSecureAcceptThread != null) {
+                mSecureAcceptThread.cancel();
+                mSecureAcceptThread = null;
+            }
+            if (mInsecureAcceptThread != null) {
+                mInsecureAcceptThread.cancel();
+                mInsecureAcceptThread = null;
+            }
         }
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+        ConnectedThread connectedThread =
+                new ConnectedThread(channel, socketType, mNextConnectionId++);
+        mConnectedThreads.put(address, connectedThread);
+        publishConnections();
+        mState.moveTo(STATE_CONNECTED);
+        connectedThread.start();
 
         // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME,
+                connectedThread.mmConnectionId, -1);
         Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
+        bundle.putString(Constants.DEVICE_NAME, channel.getRemoteName());
+        bundle.putString(Constants.DEVICE_ADDRESS, address);
+        bundle.putBoolean(Constants.DEVICE_SECURE, "Secure".equals(socketType));
         msg.setData(bundle);
         mHandler.sendMessage(msg);
+        startLinkMonitor();
         // Update UI title
         updateUserInterfaceTitle();
     }
@@ -214,60 +804,374 @@ public class BluetoothChatService {
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+        cancelReconnect();
+        mReconnectAddress = null;
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mLinkMonitorThread != null) {
+            mLinkMonitorThread.cancel();
+            mLinkMonitorThread = null;
         }
 
+        cancelConnectThreads();
+
+        cancelConnectedThreads();
+
         if (mSecureAcceptThread != null) {
             mSecureAcceptThread.cancel();
             mSecureAcceptThread = null;
         }
 
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        if (mInsecureAcceptThread != null) {
+            mInsecureAcceptThread.cancel();
+            mInsecureAcceptThread = null;
+        }
+        mState.moveTo(STATE_NONE);
+        // Update UI title
+        updateUserInterfaceTitle();
+    }
+
+    /**
+     * Cancel and forget every ConnectedThread.
+     */
+    private synchronized void cancelConnectedThreads() {
+        for (ConnectedThread r : mConnectedThreads.values()) {
+            r.cancel();
+        }
+        mConnectedThreads.clear();
+        publishConnections();
+    }
+
+    /**
+     * Queue a message for every connected device. This returns immediately unless a send
+     * queue is full and the backpressure policy is {@link #BACKPRESSURE_BLOCK}. The message
+     * is shared back to the UI with {@link Constants#MESSAGE_WRITE} once.
+     *
+     * @param out The bytes to write. The array must not be modified after this call.
+     * @return true if the message was queued for at least one device
+     * @see ConnectedThread#write(byte[], boolean)
+     */
+    public boolean write(byte[] out) {
+        // The published copy of the ConnectedThreads needs no lock
+        if (mState.get() != STATE_CONNECTED) return false;
+        ConnectedThread[] r = mConnections;
+        if (mRelayEnabled) {
+            return writeRelay(r, out);
+        }
+        boolean queued = false;
+        for (ConnectedThread connection : r) {
+            // Only the first copy is echoed to the UI
+            queued |= connection.write(out, !queued);
+        }
+        return queued;
+    }
+
+    /**
+     * Send a message of ours into the relay mesh through every connected device.
+     */
+    private boolean writeRelay(ConnectedThread[] connections, byte[] out) {
+        if (out.length > FrameProtocol.MAX_PAYLOAD_LENGTH - FrameProtocol.RELAY_HEADER_LENGTH) {
+            Log.e(TAG, "Message too long to relay: " + out.length + " bytes");
+            return false;
+        }
+        byte[] relay = new byte[FrameProtocol.RELAY_HEADER_LENGTH + out.length];
+        int sequence = mRelaySequence.getAndIncrement();
+        BigEndian.writeLong(relay, 0, mInstanceId);
+        BigEndian.writeInt(relay, 8, sequence);
+        relay[12] = (byte) mRelayHopLimit;
+        System.arraycopy(out, 0, relay, FrameProtocol.RELAY_HEADER_LENGTH, out.length);
+        boolean queued = false;
+        for (ConnectedThread connection : connections) {
+            // Only the first copy is echoed to the UI
+            queued |= connection.writeRelay(relay, !queued);
+        }
+        if (queued) {
+            mMeshTracker.onOriginated();
+        } else {
+            // Give the number back unless taken since, so that the peers do not count a
+            // message the caller knows was not sent as lost in the mesh
+            mRelaySequence.compareAndSet(sequence + 1, sequence);
+        }
+        return queued;
+    }
+
+    /**
+     * Pass a relayed message on to every connected device but the one it came from and the one
+     * that wrote it.
+     *
+     * @param from       The connection the message was read on
+     * @param buffer     The relay frame payload as read, header included
+     * @param length     The length of the payload
+     * @param origin     The service instance id of the device that wrote the message
+     * @param hopsLeft   The links the message may still cross
+     * @param hops       The links the message crossed to get here
+     * @param pathMicros The estimated time the message took to get here, in microseconds
+     */
+    private void forwardRelay(ConnectedThread from, byte[] buffer, int length, long origin,
+                              int hopsLeft, int hops, long pathMicros) {
+        ConnectedThread[] connections = mConnections;
+        if (connections.length < 2) {
+            // Nobody else to tell
+            return;
+        }
+        if (hopsLeft <= 0) {
+            mMeshTracker.onExpired();
+            return;
+        }
+        // The read buffer goes back to the pool, so the peers get their own copy
+        byte[] relay = Arrays.copyOf(buffer, length);
+        relay[12] = (byte) hopsLeft;
+        relay[13] = (byte) Math.min(hops, MAX_RELAY_HOP_LIMIT);
+        BigEndian.writeInt(relay, 14, (int) Math.min(pathMicros, Integer.MAX_VALUE));
+        int copies = 0;
+        for (ConnectedThread connection : connections) {
+            if (connection != from && connection.mmPeerInstanceId != origin
+                    && connection.writeRelay(relay, false)) {
+                copies++;
+            }
+        }
+        mMeshTracker.onForwarded(copies);
+    }
+
+    /**
+     * Return whether a frame type carries a chat message, which sessions count and replay.
+     */
+    private static boolean isMessageFrame(int type) {
+        return type == FrameProtocol.TYPE_MESSAGE || type == FrameProtocol.TYPE_RELAY;
+    }
+
+    /**
+     * Queue a message for a single connected device.
+     *
+     * @param address The remote device's MAC address
+     * @param out     The bytes to write. The array must not be modified after this call.
+     * @return true if the message was queued
+     */
+    public boolean write(String address, byte[] out) {
+        ConnectedThread r = findConnection(address);
+        return r != null && r.write(out, true);
+    }
+
+    /**
+     * Configure the send queue used by connections made after this call.
+     *
+     * @param capacity      Maximum number of messages waiting to be written
+     * @param policy        One of the BACKPRESSURE_ constants
+     * @param timeoutMillis How long write() may wait with {@link #BACKPRESSURE_BLOCK}
+     */
+    public synchronized void setSendQueuePolicy(int capacity, int policy, long timeoutMillis) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mSendQueueCapacity = capacity;
+        mBackpressurePolicy = policy;
+        mBackpressureTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Return the number of messages waiting to be written over all connections.
+     */
+    public synchronized int getSendQueueDepth() {
+        int depth = 0;
+        for (ConnectedThread r : mConnectedThreads.values()) {
+            depth += r.mmSendQueue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Return the recent send rate over all connections, in bytes per second on the wire.
+     */
+    public synchronized long getSendBytesPerSecond() {
+        long rate = 0;
+        for (ConnectedThread r : mConnectedThreads.values()) {
+            rate += r.mmLink.sendMeter.getBytesPerSecond();
+        }
+        return rate;
+    }
+
+    /**
+     * Send a file to every connected device. Chat messages keep flowing while it is sent, and
+     * if the connection drops the transfer resumes once the device is connected again.
+     * Progress and completion are reported with the MESSAGE_FILE_* Handler messages.
+     *
+     * @param file The file to send
+     * @return false if not connected or the file cannot be read
+     */
+    public boolean sendFile(File file) {
+        return mFileTransfers.send(getConnectedAddresses(), file, file.getName(), false);
+    }
+
+    /**
+     * Send a copy made for the purpose to every connected device, as {@link #sendFile(File)}
+     * does. The copy is deleted once every transfer of it has ended, sent or not.
+     *
+     * @param copy The file to send, owned by the service from now on if this returns true
+     * @param name The name the devices save the file under
+     * @return false if not connected or the file cannot be read
+     */
+    public boolean sendFileCopy(File copy, String name) {
+        return mFileTransfers.send(getConnectedAddresses(), copy, name, true);
+    }
+
+    /**
+     * Send a file to one device, as soon as it is connected.
+     *
+     * @param address The address of the device
+     * @param file    The file to send
+     * @return false if the file cannot be read
+     */
+    public boolean sendFile(String address, File file) {
+        return mFileTransfers.send(address, file);
+    }
+
+    /**
+     * Set the directory files received from other devices are saved to. Without one, incoming
+     * files are refused.
+     */
+    public void setReceivedFileDirectory(File directory) {
+        mFileTransfers.setReceiveDirectory(directory);
+    }
+
+    /**
+     * Told about every change of the service's connection state. Unlike
+     * {@link Constants#MESSAGE_STATE_CHANGE}, it is called at once, on the thread that made the
+     * change.
+     */
+    public interface StateListener {
+        /**
+         * @param oldState The state before the change, one of the STATE_ constants
+         * @param newState The state after the change
+         */
+        void onStateChanged(int oldState, int newState);
+    }
+
+    /**
+     * Receives the messages read from every connection on the UI thread, all the messages that
+     * arrived during a display frame at once, instead of as one
+     * {@link Constants#MESSAGE_READ} each.
+     */
+    public interface MessageListener {
+        /**
+         * A message was read. Its buffer must be handed back with
+         * {@link BluetoothChatService#releaseBuffer(byte[])}.
+         *
+         * @param buffer       The message, in the first {@code length} bytes
+         * @param length       The length of the message
+         * @param connectionId The connection the message was read from
+         */
+        void onMessageRead(byte[] buffer, int length, int connectionId);
+
+        /**
+         * Called after the last message of a frame, so the UI can update once for all of them.
+         */
+        void onMessagesRead();
+    }
+
+    /**
+     * Deliver received messages to a listener rather than as {@link Constants#MESSAGE_READ}.
+     *
+     * @param listener The listener, or null to go back to Handler messages
+     */
+    public void setMessageListener(MessageListener listener) {
+        mMessageDispatcher.setListener(listener);
+    }
+
+    /**
+     * Return a buffer received with {@link Constants#MESSAGE_READ} or by a
+     * {@link MessageListener} so that it can be reused for a later message. The caller must not
+     * touch the buffer afterwards.
+     *
+     * @param buffer The buffer carried in the message's {@code obj} field
+     */
+    public void releaseBuffer(byte[] buffer) {
+        mBufferPool.release(buffer);
+    }
+
+    /**
+     * Start the ReconnectThread for the next attempt, after a jittered exponential backoff.
+     */
+    private synchronized void scheduleReconnect() {
+        mReconnectAttempt++;
+        long delay = Math.min(RECONNECT_MAX_DELAY_MILLIS,
+                RECONNECT_BASE_DELAY_MILLIS << (mReconnectAttempt - 1));
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        Log.d(TAG, "reconnect attempt " + mReconnectAttempt + " in " + delay + " ms");
+
+        if (mReconnectThread != null) {
+            mReconnectThread.cancel();
+        }
+        mReconnectThread = new ReconnectThread(mReconnectAddress, mReconnectSecure, delay);
+        mReconnectThread.start();
+
+        // Let the UI Activity show that we are reconnecting
+        mHandler.obtainMessage(Constants.MESSAGE_RECONNECTING, mReconnectAttempt, (int) delay)
+                .sendToTarget();
+    }
+
+    /**
+     * Stop reconnecting, whether it succeeded or was given up.
+     */
+    private synchronized void cancelReconnect() {
+        if (mReconnectThread != null) {
+            mReconnectThread.cancel();
+            mReconnectThread = null;
         }
-        mState = STATE_NONE;
-        // Update UI title
-        updateUserInterfaceTitle();
+        mReconnectAttempt = 0;
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     *
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * Return the session with a peer service instance, starting one if it is new to us.
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+    private synchronized ChatSession getSession(long peerInstanceId) {
+        ChatSession session = mSessions.get(peerInstanceId);
+        if (session == null) {
+            session = new ChatSession();
+            mSessions.put(peerInstanceId, session);
         }
-        // Perform the write unsynchronized
-        r.write(out);
+        return session;
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+    private void connectionFailed(String address) {
+        String toast = "Unable to connect device";
+        synchronized (this) {
+            if (mReconnectAttempt > 0 && address.equals(mReconnectAddress)) {
+                if (mReconnectAttempt < MAX_RECONNECT_ATTEMPTS) {
+                    // Keep quiet and try again later
+                    toast = null;
+                    scheduleReconnect();
+                } else {
+                    toast = "Unable to reconnect device";
+                    mFailedReconnectCount++;
+                    cancelReconnect();
+                }
+            }
+        }
+
+        if (toast != null) {
+            // Send a failure message back to the Activity
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.TOAST, toast);
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+        }
+
+        if (mMultiConnection) {
+            // The other connections and the accept threads are still running
+            synchronized (this) {
+                updateAggregateState();
+            }
+            updateUserInterfaceTitle();
+            return;
+        }
 
-        mState = STATE_NONE;
+        if (!mState.compareAndSet(STATE_CONNECTING, STATE_NONE)) {
+            // Connected or stopped in the meantime; nothing to start over
+            return;
+        }
         // Update UI title
         updateUserInterfaceTitle();
 
@@ -276,9 +1180,25 @@ public class BluetoothChatService {
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Indicate that a connection was lost and notify the UI Activity.
+     *
+     * @param connection The connection that ended
      */
-    private void connectionLost() {
+    private void connectionLost(ConnectedThread connection) {
+        synchronized (this) {
+            if (mConnectedThreads.get(connection.mmAddress) != connection) {
+                // Already replaced or cancelled
+                return;
+            }
+            mConnectedThreads.remove(connection.mmAddress);
+            publishConnections();
+            if (mAutoReconnect && connection.mmAddress.equals(mReconnectAddress)
+                    && mReconnectAttempt == 0) {
+                mDisconnectedAtMillis = System.currentTimeMillis();
+                scheduleReconnect();
+            }
+        }
+
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -286,7 +1206,18 @@ public class BluetoothChatService {
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
-        mState = STATE_NONE;
+        if (mMultiConnection) {
+            synchronized (this) {
+                updateAggregateState();
+            }
+            updateUserInterfaceTitle();
+            return;
+        }
+
+        if (!mState.compareAndSet(STATE_CONNECTED, STATE_NONE)) {
+            // Stopped, or already connecting elsewhere
+            return;
+        }
         // Update UI title
         updateUserInterfaceTitle();
 
@@ -294,6 +1225,37 @@ public class BluetoothChatService {
         BluetoothChatService.this.start();
     }
 
+    /**
+     * Derive the service state from the connections that are still alive. Only used in
+     * multi-connection mode, where several threads contribute to the state.
+     */
+    private void updateAggregateState() {
+        if (!mConnectedThreads.isEmpty()) {
+            mState.moveTo(STATE_CONNECTED);
+        } else if (mConnectThread != null || mRaceConnectThread != null) {
+            mState.moveTo(STATE_CONNECTING);
+        } else if (mSecureAcceptThread != null || mInsecureAcceptThread != null) {
+            mState.moveTo(STATE_LISTEN);
+        } else {
+            mState.moveTo(STATE_NONE);
+        }
+    }
+
+    /**
+     * Return whether an incoming connection should be kept.
+     */
+    private boolean isAcceptingConnections() {
+        switch (mState.get()) {
+            case STATE_LISTEN:
+            case STATE_CONNECTING:
+                return true;
+            case STATE_CONNECTED:
+                return mMultiConnection && mConnectedThreads.size() < MAX_CONNECTIONS;
+            default:
+                return false;
+        }
+    }
+
     /**
      * This thread runs while listening for incoming connections. It behaves
      * like a server-side client. It runs until a connection is accepted
@@ -301,38 +1263,35 @@ public class BluetoothChatService {
      */
     private class AcceptThread extends Thread {
         // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+        private final ChatTransport.Listener mmServerSocket;
         private String mSocketType;
 
         public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
+            ChatTransport.Listener tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
             // Create a new listening server socket
             try {
-                if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
-                }
+                tmp = mTransport.listen(secure);
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
             }
             mmServerSocket = tmp;
-            mState = STATE_LISTEN;
         }
 
         public void run() {
             Log.d(TAG, "Socket Type: " + mSocketType +
                     "BEGIN mAcceptThread" + this);
             setName("AcceptThread" + mSocketType);
+            if (mmServerSocket == null) {
+                return;
+            }
 
-            BluetoothSocket socket;
+            ChatTransport.Channel socket;
 
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Listen to the server socket if we're not connected, or for good when hosting
+            // several connections
+            while (mMultiConnection || mState.get() != STATE_CONNECTED) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
@@ -345,22 +1304,16 @@ public class BluetoothChatService {
                 // If a connection was accepted
                 if (socket != null) {
                     synchronized (BluetoothChatService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
+                        if (isAcceptingConnections()) {
+                            // Situation normal. Start the connected thread.
+                            connected(socket, mSocketType);
+                        } else {
+                            // Either not ready or already connected. Terminate new socket.
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "Could not close unwanted socket", e);
+                            }
                         }
                     }
                 }
@@ -371,6 +1324,9 @@ public class BluetoothChatService {
 
         public void cancel() {
             Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -383,69 +1339,127 @@ public class BluetoothChatService {
     /**
      * This thread runs while attempting to make an outgoing connection
      * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * succeeds or fails. When racing secure and insecure connects, two
+     * of these run for the same device and the first to connect wins.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+        private final ChatTransport.Channel mmSocket;
+        private final String mmAddress;
+        private final boolean mmSecure;
+        private final long mmDelayMillis;
+        // Released to start connecting before the delay is up, or to give up
+        private final CountDownLatch mmStart = new CountDownLatch(1);
         private String mSocketType;
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        public ConnectThread(String address, boolean secure, long delayMillis) {
+            mmAddress = address;
+            mmSecure = secure;
+            mmDelayMillis = delayMillis;
+            ChatTransport.Channel tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // Get a channel for a connection with the given device
             try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            MY_UUID_INSECURE);
-                }
+                tmp = mTransport.createChannel(address, secure);
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
             }
             mmSocket = tmp;
-            mState = STATE_CONNECTING;
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
             setName("ConnectThread" + mSocketType);
 
+            if (mmDelayMillis > 0) {
+                try {
+                    mmStart.await(mmDelayMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // Fall through to the check below
+                }
+                synchronized (BluetoothChatService.this) {
+                    if (mConnectThread != this && mRaceConnectThread != this) {
+                        // Cancelled before we started
+                        return;
+                    }
+                }
+            }
+
             // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            mTransport.cancelDiscovery();
 
             // Make a connection to the BluetoothSocket
             try {
+                if (mmSocket == null) {
+                    throw new IOException("Socket could not be created");
+                }
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
                 mmSocket.connect();
             } catch (IOException e) {
                 // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
+                closeSocket();
+                synchronized (BluetoothChatService.this) {
+                    if (mConnectThread == this) {
+                        mConnectThread = null;
+                    } else if (mRaceConnectThread == this) {
+                        mRaceConnectThread = null;
+                    } else {
+                        // Cancelled in favour of another connection attempt
+                        return;
+                    }
+                    // A socket type that stopped working must win a race again
+                    mConnectWinners.remove(mmAddress);
+                    ConnectThread other = mConnectThread != null ? mConnectThread
+                            : mRaceConnectThread;
+                    if (other != null) {
+                        // The other socket type may still connect; let it go now
+                        Log.d(TAG, mSocketType + " connect failed, waiting for the other type");
+                        other.mmStart.countDown();
+                        return;
+                    }
                 }
-                connectionFailed();
+                connectionFailed(mmAddress);
                 return;
             }
 
-            // Reset the ConnectThread because we're done
             synchronized (BluetoothChatService.this) {
+                ConnectThread loser;
+                if (mConnectThread == this) {
+                    loser = mRaceConnectThread;
+                } else if (mRaceConnectThread == this) {
+                    loser = mConnectThread;
+                } else {
+                    // Lost the race, or cancelled while connecting
+                    closeSocket();
+                    return;
+                }
+
+                // Reset the ConnectThreads because we're done
                 mConnectThread = null;
+                mRaceConnectThread = null;
+                if (loser != null) {
+                    Log.d(TAG, mSocketType + " connect won the race to " + mmAddress);
+                    loser.cancel();
+                }
+                if (mConnectRace) {
+                    mConnectWinners.put(mmAddress, mmSecure);
+                }
             }
 
             // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+            connected(mmSocket, mSocketType);
         }
 
         public void cancel() {
+            mmStart.countDown();
+            closeSocket();
+        }
+
+        private void closeSocket() {
+            if (mmSocket == null) {
+                return;
+            }
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -454,22 +1468,152 @@ public class BluetoothChatService {
         }
     }
 
+    /**
+     * This thread waits out the backoff delay before a reconnect attempt, then starts a
+     * ConnectThread to the device we lost.
+     */
+    private class ReconnectThread extends Thread {
+        private final String mmAddress;
+        private final boolean mmSecure;
+        private final long mmDelayMillis;
+
+        public ReconnectThread(String address, boolean secure, long delayMillis) {
+            mmAddress = address;
+            mmSecure = secure;
+            mmDelayMillis = delayMillis;
+        }
+
+        public void run() {
+            setName("ReconnectThread");
+            try {
+                Thread.sleep(mmDelayMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (BluetoothChatService.this) {
+                if (mReconnectThread != this) {
+                    // Cancelled, or the device came back on its own
+                    return;
+                }
+                mReconnectThread = null;
+                Log.i(TAG, "reconnect attempt " + mReconnectAttempt + " to " + mmAddress);
+                startConnectThread(mmAddress, mmSecure);
+            }
+        }
+
+        public void cancel() {
+            interrupt();
+        }
+    }
+
+    /**
+     * This thread pings every connection to measure its round-trip time and, if asked to,
+     * reports the link stats of all connections to the UI Activity at a fixed interval. It also
+     * lets the messages of a connection go once its peer is late with its hello.
+     */
+    private class LinkMonitorThread extends Thread {
+
+        public void run() {
+            setName("LinkMonitorThread");
+            long now = System.currentTimeMillis();
+            long nextPing = now;
+            long nextReport = 0;
+            while (true) {
+                ConnectedThread[] connections;
+                long reportInterval;
+                synchronized (BluetoothChatService.this) {
+                    if (mLinkMonitorThread != this) {
+                        return;
+                    }
+                    connections = mConnectedThreads.values()
+                            .toArray(new ConnectedThread[mConnectedThreads.size()]);
+                    reportInterval = mLinkStatsIntervalMillis;
+                }
+                now = System.currentTimeMillis();
+                if (now >= nextPing) {
+                    for (ConnectedThread connection : connections) {
+                        connection.ping();
+                    }
+                    nextPing = now + PING_INTERVAL_MILLIS;
+                }
+                long wakeUp = nextPing;
+                for (ConnectedThread connection : connections) {
+                    wakeUp = Math.min(wakeUp, connection.checkHello(now));
+                }
+                if (reportInterval > 0) {
+                    if (nextReport == 0) {
+                        // The first report covers a whole interval
+                        nextReport = now + reportInterval;
+                    } else if (now >= nextReport) {
+                        if (connections.length > 0) {
+                            mHandler.obtainMessage(Constants.MESSAGE_LINK_STATS, getLinkStats())
+                                    .sendToTarget();
+                        }
+                        nextReport = now + reportInterval;
+                    }
+                    wakeUp = Math.min(wakeUp, nextReport);
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(
+                        Math.max(1, wakeUp - System.currentTimeMillis())));
+                if (interrupted()) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Go through the connections again before the current wait is over.
+         */
+        public void wakeUp() {
+            LockSupport.unpark(this);
+        }
+
+        public void cancel() {
+            interrupt();
+        }
+    }
+
     /**
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
+    private class ConnectedThread extends Thread implements FileTransferManager.Link {
+        private final ChatTransport.Channel mmSocket;
+        private final String mmAddress;
+        private final int mmConnectionId;
+        private final ConnectionStateMachine mmState =
+                new ConnectionStateMachine(STATE_CONNECTED, null);
+        private final FrameReader mmFrameReader;
+        private final FrameWriter mmFrameWriter;
+        private final SendQueue mmSendQueue;
+        private final WriterThread mmWriterThread;
+        // Link quality counters of the device, and when this connection to it started
+        private final LinkCounters mmLink;
+        private final long mmConnectedAtMillis;
+        // Received messages waiting for the UI thread
+        private final MessageRing mmInbox;
+        // Codecs offered to the peer, and the codecs used by each direction
+        private final int mmCodecs;
+        private final DeflateCodec mmReadCodec;
+        private final DeflateCodec mmWriteCodec;
+        // The message session with the peer, known once its hello has arrived
+        private volatile ChatSession mmSession;
+        private boolean mmHelloReceived;
+        // Whether messages go out, once the session has resumed or is no longer waited for
+        private volatile boolean mmMessagesResumed;
+        private volatile boolean mmPeerAnswersPings;
+        private volatile boolean mmPeerRelays;
+        private volatile long mmPeerInstanceId;
+
+        public ConnectedThread(ChatTransport.Channel socket, String socketType, int connectionId) {
             Log.d(TAG, "create ConnectedThread: " + socketType);
             mmSocket = socket;
+            mmAddress = socket.getRemoteAddress();
+            mmConnectionId = connectionId;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the channel's input and output streams
             try {
                 tmpIn = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
@@ -477,51 +1621,368 @@ public class BluetoothChatService {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-            mState = STATE_CONNECTED;
+            mmFrameReader = new FrameReader(tmpIn, mBufferPool);
+            mmFrameWriter = new FrameWriter(tmpOut);
+            mmCodecs = mCompressionEnabled ? FrameProtocol.CODEC_DEFLATE : 0;
+            mmReadCodec = new DeflateCodec();
+            mmWriteCodec = new DeflateCodec();
+            if ((mmCodecs & FrameProtocol.CODEC_DEFLATE) != 0) {
+                mmFrameReader.setCodec(mmReadCodec);
+            }
+            mmSendQueue = new SendQueue(mSendQueueCapacity, mBackpressurePolicy,
+                    mBackpressureTimeoutMillis);
+            mmLink = getLinkCounters(mmAddress);
+            mmConnectedAtMillis = System.currentTimeMillis();
+            mmWriterThread = new WriterThread(this);
+            mmInbox = mMessageDispatcher.openRing(connectionId);
+            // Messages wait until we know which earlier ones the peer is missing
+            mmSendQueue.pauseMessages();
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+            Log.i(TAG, "BEGIN mConnectedThread " + mmAddress);
+            setName("ConnectedThread" + mmConnectionId);
+            TrafficRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.onOpened(mmConnectionId, mmAddress);
+            }
+            mmWriterThread.start();
+            mFileTransfers.attach(this);
 
             // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
+            long bytesRead = 0;
+            while (mmState.get() == STATE_CONNECTED) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
+                    // Read a whole frame into a buffer owned by this message
+                    byte[] buffer = mmFrameReader.readFrame();
+                    int type = mmFrameReader.getType();
+                    long totalRead = mmFrameReader.getBytesRead();
+                    mmLink.receiveMeter.record(totalRead - bytesRead);
+                    bytesRead = totalRead;
+                    recorder = mRecorder;
+                    if (recorder != null) {
+                        recorder.onFrame(mmConnectionId, TrafficRecorder.KIND_READ, type, buffer,
+                                0, mmFrameReader.getLength());
+                    }
+                    if (!mmHelloReceived && type != FrameProtocol.TYPE_HELLO) {
+                        // A peer sends its hello before anything else, so this one predates
+                        // the hello and cannot resume sessions
+                        mmHelloReceived = true;
+                        resumeMessages(new ArrayList<OutboundFrame>());
+                    }
+                    if (type == FrameProtocol.TYPE_PING || type == FrameProtocol.TYPE_PONG) {
+                        onProbe(type, buffer, mmFrameReader.getLength());
+                        mBufferPool.release(buffer);
+                        continue;
+                    }
+                    if (type == FrameProtocol.TYPE_HELLO) {
+                        onHello(buffer, mmFrameReader.getLength());
+                        mBufferPool.release(buffer);
+                        continue;
+                    }
+                    if (type == FrameProtocol.TYPE_SESSION_RESUME
+                            || type == FrameProtocol.TYPE_SESSION_ACK) {
+                        onSessionFrame(type, buffer, mmFrameReader.getLength());
+                        mBufferPool.release(buffer);
+                        continue;
+                    }
+                    if (mFileTransfers.onFrame(this, mmFrameReader.getType(), buffer,
+                            mmFrameReader.getLength())) {
+                        mBufferPool.release(buffer);
+                        continue;
+                    }
+                    if (!isMessageFrame(type)) {
+                        Log.w(TAG, "Ignoring frame of type " + mmFrameReader.getType());
+                        mBufferPool.release(buffer);
+                        continue;
+                    }
+
+                    mmLink.messagesReceived.incrementAndGet();
+                    ChatSession session = mmSession;
+                    if (session != null) {
+                        long received = session.onReceived();
+                        if (received % SESSION_ACK_INTERVAL == 0) {
+                            sendControl(FrameProtocol.TYPE_SESSION_ACK, countPayload(received));
+                        }
+                    }
 
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
+                    int length = mmFrameReader.getLength();
+                    if (type == FrameProtocol.TYPE_RELAY) {
+                        length = onRelay(buffer, length);
+                        if (length < 0) {
+                            mBufferPool.release(buffer);
+                            continue;
+                        }
+                    }
+
+                    // Send the obtained bytes to the UI Activity, which releases the buffer
+                    deliver(buffer, length);
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    // Only one of this and cancel() gets to end the connection
+                    if (mmState.compareAndSet(STATE_CONNECTED, STATE_NONE)) {
+                        Log.e(TAG, "disconnected", e);
+                        mmLink.readErrors.incrementAndGet();
+                        connectionLost(this);
+                    }
                     break;
                 }
             }
+            recorder = mRecorder;
+            if (recorder != null) {
+                recorder.onClosed(mmConnectionId);
+            }
+            mFileTransfers.detach(this);
+            mMessageDispatcher.closeRing(mmInbox);
+            mmWriterThread.cancel();
+            mmReadCodec.end();
+            ChatSession session = mmSession;
+            if (session != null) {
+                // Whatever did not make it to the socket goes out on the next connection
+                session.keepUnsent(mmSendQueue.drainMessages());
+            }
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public int getConnectionId() {
+            return mmConnectionId;
+        }
+
+        @Override
+        public void sendControl(int type, byte[] payload) {
+            mmSendQueue.offerControl(new OutboundFrame(type, payload, false));
+        }
+
+        @Override
+        public void sendBulk(int type, byte[] payload) throws InterruptedException {
+            mmSendQueue.putBulk(new OutboundFrame(type, payload, false));
+        }
+
+        /**
+         * Start compressing outgoing messages if the peer's hello offers a codec we offered too,
+         * and tell the peer how far we got in our session with it.
+         */
+        private void onHello(byte[] hello, int length) {
+            if (length < FrameProtocol.HELLO_LENGTH || mmHelloReceived) {
+                Log.w(TAG, "Ignoring unexpected hello frame");
+                return;
+            }
+            mmHelloReceived = true;
+            mmPeerAnswersPings = (hello[0] & 0xff) >= FrameProtocol.HELLO_VERSION_PING;
+            mmPeerRelays = (hello[0] & 0xff) >= FrameProtocol.HELLO_VERSION_RELAY;
+            if (length < FrameProtocol.HELLO_SESSION_LENGTH) {
+                // The peer cannot resume sessions, so there is nothing to wait for
+                resumeMessages(new ArrayList<OutboundFrame>());
+            } else {
+                // Resumed even after a late hello let messages go: the peer still gets what it
+                // missed, only after them
+                mmPeerInstanceId = BigEndian.readLong(hello, 2);
+                ChatSession session = getSession(mmPeerInstanceId);
+                session.attach(this);
+                mmSession = session;
+                sendControl(FrameProtocol.TYPE_SESSION_RESUME,
+                        countPayload(session.getReceivedCount()));
+            }
+
+            // Later hello versions keep the codec bits in the same place
+            int codecs = mmCodecs & hello[1];
+            if ((codecs & FrameProtocol.CODEC_DEFLATE) != 0) {
+                Log.d(TAG, "Compressing messages to " + mmAddress + " with deflate");
+                mmFrameWriter.setCodec(mmWriteCodec);
+            } else {
+                Log.d(TAG, "Sending uncompressed messages to " + mmAddress);
+            }
+        }
+
+        /**
+         * Let messages go, starting with the given ones.
+         */
+        private void resumeMessages(List<OutboundFrame> first) {
+            mmMessagesResumed = true;
+            mmSendQueue.resumeMessages(first);
+        }
+
+        /**
+         * Let messages go if the peer is late telling which ones it is missing, so that a peer
+         * that never sends a hello does not hold them back for good. Called from the
+         * {@link LinkMonitorThread}.
+         *
+         * @return When to check again, or {@link Long#MAX_VALUE} once messages go out
+         */
+        long checkHello(long now) {
+            if (mmMessagesResumed) {
+                return Long.MAX_VALUE;
+            }
+            long deadline = mmConnectedAtMillis + HELLO_TIMEOUT_MILLIS;
+            if (now < deadline) {
+                return deadline;
+            }
+            Log.w(TAG, "No session resume from " + mmAddress + ", sending messages anyway");
+            resumeMessages(new ArrayList<OutboundFrame>());
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Drop a relayed message seen before, and forward a new one if relaying. Moves the
+         * message to the start of the buffer.
+         *
+         * @return The length of the message to deliver, or -1 to deliver nothing
+         */
+        private int onRelay(byte[] buffer, int length) {
+            if (length < FrameProtocol.RELAY_HEADER_LENGTH) {
+                Log.w(TAG, "Ignoring short relay frame");
+                return -1;
+            }
+            long origin = BigEndian.readLong(buffer, 0);
+            if (origin == mInstanceId) {
+                // One of our own messages, back by another path
+                mMeshTracker.onDuplicate();
+                return -1;
+            }
+            int sequence = BigEndian.readInt(buffer, 8);
+            int hopsLeft = buffer[12] & 0xff;
+            int hops = (buffer[13] & 0xff) + 1;
+            // Crossing this link is taken to cost half its round trip
+            long pathMicros = (BigEndian.readInt(buffer, 14) & 0xffffffffL)
+                    + TimeUnit.NANOSECONDS.toMicros(mmLink.getSmoothedRttNanos() / 2);
+            int received = mMeshTracker.onReceived(origin, sequence, hops, hopsLeft, pathMicros);
+            if (received != MeshTracker.DUPLICATE && mRelayEnabled) {
+                forwardRelay(this, buffer, length, origin, hopsLeft - 1, hops, pathMicros);
+            }
+            if (received != MeshTracker.NEW) {
+                return -1;
+            }
+            int messageLength = length - FrameProtocol.RELAY_HEADER_LENGTH;
+            System.arraycopy(buffer, FrameProtocol.RELAY_HEADER_LENGTH, buffer, 0, messageLength);
+            return messageLength;
+        }
+
+        /**
+         * Replay what the peer is missing once it has answered our hello, or forget what it
+         * has acknowledged since.
+         */
+        private void onSessionFrame(int type, byte[] buffer, int length) {
+            ChatSession session = mmSession;
+            if (session == null || length < 8) {
+                return;
+            }
+            long receivedCount = BigEndian.readLong(buffer, 0);
+            if (type == FrameProtocol.TYPE_SESSION_ACK) {
+                session.onAcked(receivedCount);
+                return;
+            }
+            List<OutboundFrame> replay = session.resume(receivedCount);
+            if (!replay.isEmpty()) {
+                Log.i(TAG, "Replaying " + replay.size() + " messages to " + mmAddress);
+            }
+            resumeMessages(replay);
+        }
+
+        /**
+         * Measure the round-trip time to the peer, if it answers pings.
+         */
+        void ping() {
+            if (!mmPeerAnswersPings || mmState.get() != STATE_CONNECTED) {
+                return;
+            }
+            byte[] payload = new byte[8];
+            BigEndian.writeLong(payload, 0, System.nanoTime());
+            sendControl(FrameProtocol.TYPE_PING, payload);
+            mmLink.pingsSent.incrementAndGet();
+        }
+
+        /**
+         * Answer the peer's ping, or time the answer to ours.
+         */
+        private void onProbe(int type, byte[] buffer, int length) {
+            if (length < 8) {
+                return;
+            }
+            if (type == FrameProtocol.TYPE_PING) {
+                byte[] payload = new byte[8];
+                System.arraycopy(buffer, 0, payload, 0, 8);
+                sendControl(FrameProtocol.TYPE_PONG, payload);
+                return;
+            }
+            long rttNanos = System.nanoTime() - BigEndian.readLong(buffer, 0);
+            if (rttNanos >= 0) {
+                mmLink.onPong(rttNanos);
+            }
+        }
+
+        LinkStats getLinkStats() {
+            return new LinkStats(mmAddress, mmConnectionId,
+                    System.currentTimeMillis() - mmConnectedAtMillis, mmSendQueue.size(), mmLink);
+        }
+
+        /**
+         * Publish a message for the UI thread. While the UI is a full ring behind, stop reading
+         * until it catches up, so the peer is slowed down by flow control instead of messages
+         * being dropped.
+         */
+        private void deliver(byte[] buffer, int length) {
+            while (!mmInbox.offer(buffer, length)) {
+                if (mmState.get() != STATE_CONNECTED) {
+                    Log.w(TAG, "Dropping a message received while disconnecting");
+                    mBufferPool.release(buffer);
+                    return;
+                }
+                mMessageDispatcher.requestDrain();
+                LockSupport.parkNanos(INBOX_FULL_WAIT_NANOS);
+            }
+            mMessageDispatcher.requestDrain();
+        }
+
+        private byte[] countPayload(long count) {
+            byte[] payload = new byte[8];
+            BigEndian.writeLong(payload, 0, count);
+            return payload;
         }
 
         /**
-         * Write to the connected OutStream.
+         * Queue a message frame for the connected OutStream.
          *
          * @param buffer The bytes to write
+         * @param echo   Whether to share the message back to the UI once written
+         * @return true if the message was queued
          */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
+        public boolean write(byte[] buffer, boolean echo) {
+            if (buffer.length > FrameProtocol.MAX_PAYLOAD_LENGTH) {
+                Log.e(TAG, "Message too long to send: " + buffer.length + " bytes");
+                return false;
+            }
+            return mmSendQueue.offer(new OutboundFrame(FrameProtocol.TYPE_MESSAGE, buffer, echo));
+        }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+        /**
+         * Queue a relayed message, or just the message if the peer does not read relay frames.
+         *
+         * @param relay The relay frame payload, which must not be modified after this call
+         * @param echo  Whether to share the message back to the UI once written
+         * @return true if the message was queued
+         */
+        public boolean writeRelay(byte[] relay, boolean echo) {
+            if (!mmPeerRelays) {
+                return write(Arrays.copyOfRange(relay, FrameProtocol.RELAY_HEADER_LENGTH,
+                        relay.length), echo);
             }
+            return mmSendQueue.offer(new OutboundFrame(FrameProtocol.TYPE_RELAY, relay, echo));
         }
 
         public void cancel() {
+            mmState.moveTo(STATE_NONE);
+            mmWriterThread.cancel();
+            closeSocket();
+        }
+
+        /**
+         * Close the socket without cancelling, so that the reader reports the lost connection.
+         */
+        public void closeSocket() {
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -529,4 +1990,121 @@ public class BluetoothChatService {
             }
         }
     }
+
+    /**
+     * This thread drains a connection's send queue. Whatever is queued when it wakes up is
+     * written as consecutive frames and flushed with a single socket write, so a burst of small
+     * messages costs one trip through the Bluetooth stack.
+     */
+    private class WriterThread extends Thread {
+        private final ConnectedThread mmConnection;
+        private final OutboundFrame[] mmBatch = new OutboundFrame[MAX_BATCH_MESSAGES];
+        private volatile boolean mmRunning = true;
+
+        public WriterThread(ConnectedThread connection) {
+            mmConnection = connection;
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mWriterThread");
+            setName("WriterThread" + mmConnection.mmConnectionId);
+            FrameWriter writer = mmConnection.mmFrameWriter;
+            SendQueue queue = mmConnection.mmSendQueue;
+
+            try {
+                // Tell the peer which codecs it may use before anything else goes out
+                byte[] hello = new byte[FrameProtocol.HELLO_SESSION_LENGTH];
+                hello[0] = (byte) FrameProtocol.HELLO_VERSION;
+                hello[1] = (byte) mmConnection.mmCodecs;
+                BigEndian.writeLong(hello, 2, mInstanceId);
+                writer.writeFrame(FrameProtocol.TYPE_HELLO, hello, 0, hello.length);
+                writer.flush();
+                TrafficRecorder recorder = mRecorder;
+                if (recorder != null) {
+                    recorder.onFrame(mmConnection.mmConnectionId, TrafficRecorder.KIND_WRITE,
+                            FrameProtocol.TYPE_HELLO, hello, 0, hello.length);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+                mmConnection.closeSocket();
+                mmRunning = false;
+            }
+
+            long bytesWritten = writer.getBytesWritten();
+            while (mmRunning) {
+                int count;
+                try {
+                    // Wait for a message, then take whatever else is already waiting
+                    count = queue.drainTo(writer, mmBatch, MAX_BATCH_BYTES);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception during write", e);
+                    keepUnsentBatch();
+                    // Closing the socket makes the ConnectedThread report the lost connection
+                    mmConnection.closeSocket();
+                    break;
+                }
+                // Keep the sent messages until the peer acknowledges them, and share them back
+                // to the UI Activity
+                ChatSession session = mmConnection.mmSession;
+                TrafficRecorder recorder = mRecorder;
+                for (int i = 0; i < count; i++) {
+                    if (recorder != null) {
+                        recorder.onFrame(mmConnection.mmConnectionId, TrafficRecorder.KIND_WRITE,
+                                mmBatch[i].type, mmBatch[i].payload, 0,
+                                mmBatch[i].payload.length);
+                    }
+                    if (isMessageFrame(mmBatch[i].type)) {
+                        mmConnection.mmLink.messagesSent.incrementAndGet();
+                        if (session != null) {
+                            session.onSent(mmConnection, mmBatch[i]);
+                        }
+                    }
+                    if (mmBatch[i].echo) {
+                        byte[] message = mmBatch[i].payload;
+                        if (mmBatch[i].type == FrameProtocol.TYPE_RELAY) {
+                            message = Arrays.copyOfRange(message,
+                                    FrameProtocol.RELAY_HEADER_LENGTH, message.length);
+                        }
+                        mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1,
+                                mmConnection.mmConnectionId, message).sendToTarget();
+                    }
+                    mmBatch[i] = null;
+                }
+                // Count what went on the wire, after compression
+                long total = writer.getBytesWritten();
+                mmConnection.mmLink.sendMeter.record(total - bytesWritten);
+                bytesWritten = total;
+                if (queue.getLastWriteNanos() > WRITE_STALL_NANOS) {
+                    mmConnection.mmLink.writeStalls.incrementAndGet();
+                }
+            }
+            mmConnection.mmWriteCodec.end();
+            Log.i(TAG, "END mWriterThread");
+        }
+
+        /**
+         * Hand the messages of a batch that failed to write to the session, which sends them
+         * again on the next connection unless the peer already got them.
+         */
+        private void keepUnsentBatch() {
+            ChatSession session = mmConnection.mmSession;
+            List<OutboundFrame> unsent = new ArrayList<>();
+            for (int i = 0; i < mmBatch.length && mmBatch[i] != null; i++) {
+                if (isMessageFrame(mmBatch[i].type)) {
+                    unsent.add(mmBatch[i]);
+                }
+                mmBatch[i] = null;
+            }
+            if (session != null) {
+                session.keepUnsent(unsent);
+            }
+        }
+
+        public void cancel() {
+            mmRunning = false;
+            interrupt();
+        }
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe pool of byte arrays. Buffers are grouped in power-of-two size classes so that a
+ * buffer acquired for a message of any length up to the maximum can be recycled for any later
+ * message of a similar size. Once the pool is warmed up, acquiring and releasing buffers does
+ * not allocate.
+ */
+class BufferPool {
+
+    // Smallest size class handed out by the pool
+    private static final int MIN_BUFFER_SHIFT = 8;
+    private static final int MIN_BUFFER_SIZE = 1 << MIN_BUFFER_SHIFT;
+
+    private final List<ArrayBlockingQueue<byte[]>> mBuckets;
+    private final int mMaxBufferSize;
+    private final AtomicLong mAllocations = new AtomicLong();
+
+    /**
+     * @param maxBufferSize     The largest buffer length the pool will hand out
+     * @param buffersPerBucket  How many free buffers are retained for each size class
+     */
+    BufferPool(int maxBufferSize, int buffersPerBucket) {
+        mMaxBufferSize = sizeClass(maxBufferSize);
+        int buckets = bucketIndex(mMaxBufferSize) + 1;
+        mBuckets = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            mBuckets.add(new ArrayBlockingQueue<byte[]>(buffersPerBucket));
+        }
+    }
+
+    /**
+     * Return a buffer of at least the given length. The caller owns the buffer until it is
+     * passed back to {@link #release(byte[])}.
+     *
+     * @param length The minimum number of bytes needed
+     */
+    byte[] acquire(int length) {
+        if (length > mMaxBufferSize) {
+            throw new IllegalArgumentException("Buffer length " + length
+                    + " exceeds pool maximum " + mMaxBufferSize);
+        }
+        int size = sizeClass(length);
+        byte[] buffer = mBuckets.get(bucketIndex(size)).poll();
+        if (buffer == null) {
+            mAllocations.incrementAndGet();
+            buffer = new byte[size];
+        }
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. Buffers that were not obtained from a pool of this
+     * shape, or that arrive while their size class is full, are left to the garbage collector.
+     */
+    void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int size = buffer.length;
+        if (size < MIN_BUFFER_SIZE || size > mMaxBufferSize || Integer.bitCount(size) != 1) {
+            return;
+        }
+        mBuckets.get(bucketIndex(size)).offer(buffer);
+    }
+
+    /**
+     * Return the number of buffers this pool has had to allocate since it was created.
+     */
+    long getAllocationCount() {
+        return mAllocations.get();
+    }
+
+    private static int sizeClass(int length) {
+        if (length <= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        return Integer.highestOneBit(length - 1) << 1;
+    }
+
+    private static int bucketIndex(int size) {
+        return Integer.numberOfTrailingZeros(size) - MIN_BUFFER_SHIFT;
+    }
+}
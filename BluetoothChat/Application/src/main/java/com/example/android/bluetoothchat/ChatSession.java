@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The message history shared with one peer service instance, which survives reconnects.
+ *
+ * <p>Messages are counted in the order they are written to the socket. The peer counts the
+ * messages it reads, and reports its count with {@link FrameProtocol#TYPE_SESSION_ACK} and,
+ * after a reconnect, with {@link FrameProtocol#TYPE_SESSION_RESUME}. Messages written but not
+ * yet acknowledged are kept, along with messages that were still queued when the connection
+ * was lost, so that the next connection can replay them.</p>
+ */
+class ChatSession {
+    // Debugging
+    private static final String TAG = "ChatSession";
+
+    // Most message bytes kept for replay; older messages are given up on
+    static final int MAX_REPLAY_BYTES = 512 * 1024;
+
+    // The connection currently using the session
+    private Object mOwner;
+    // Messages written to the peer, and the ones among them not acknowledged yet
+    private long mSentCount;
+    private final ArrayDeque<OutboundFrame> mUnacked = new ArrayDeque<>();
+    // Messages queued on a lost connection that never reached the socket
+    private final ArrayDeque<OutboundFrame> mUnsent = new ArrayDeque<>();
+    private long mReplayBytes;
+    // Messages read from the peer
+    private long mReceivedCount;
+    private long mDroppedCount;
+
+    /**
+     * Make a new connection the one that writes to and reads from this session.
+     */
+    synchronized void attach(Object owner) {
+        mOwner = owner;
+    }
+
+    /**
+     * Record a message written to the socket by the owning connection.
+     */
+    synchronized void onSent(Object owner, OutboundFrame frame) {
+        if (owner != mOwner) {
+            return;
+        }
+        mSentCount++;
+        // A replay must not echo the message to the UI again
+        mUnacked.add(frame.echo ? new OutboundFrame(frame.type, frame.payload, false) : frame);
+        mReplayBytes += frame.payload.length;
+        trim();
+    }
+
+    /**
+     * Forget the messages the peer has confirmed.
+     *
+     * @param receivedCount The number of messages the peer has read in this session
+     */
+    synchronized void onAcked(long receivedCount) {
+        long unacked = mSentCount - receivedCount;
+        while (mUnacked.size() > unacked && mUnacked.size() > 0) {
+            mReplayBytes -= mUnacked.poll().payload.length;
+        }
+    }
+
+    /**
+     * Start over after the peer reported how many messages it has read, and return the messages
+     * to send again, oldest first. They are counted again once written.
+     *
+     * @param receivedCount The number of messages the peer has read in this session
+     */
+    synchronized List<OutboundFrame> resume(long receivedCount) {
+        // Kept messages follow each other: the unacknowledged ones, then the unsent ones,
+        // some of which may have reached the peer before the connection failed
+        long index = mSentCount - mUnacked.size();
+        if (index > receivedCount) {
+            // Messages beyond the replay limit are lost
+            Log.w(TAG, "Peer missed " + (index - receivedCount) + " messages");
+        }
+        List<OutboundFrame> replay = new ArrayList<>(mUnacked.size() + mUnsent.size());
+        for (OutboundFrame frame : mUnacked) {
+            if (index++ >= receivedCount) {
+                replay.add(frame);
+            }
+        }
+        for (OutboundFrame frame : mUnsent) {
+            if (index++ >= receivedCount) {
+                replay.add(frame);
+            }
+        }
+        mUnacked.clear();
+        mUnsent.clear();
+        mReplayBytes = 0;
+        // Count from where the peer is
+        mSentCount = receivedCount;
+        return replay;
+    }
+
+    /**
+     * Keep the messages a lost connection had queued but not written.
+     */
+    synchronized void keepUnsent(List<OutboundFrame> frames) {
+        for (OutboundFrame frame : frames) {
+            mUnsent.add(frame);
+            mReplayBytes += frame.payload.length;
+        }
+        trim();
+    }
+
+    /**
+     * Give up on the oldest messages while more than {@link #MAX_REPLAY_BYTES} are kept.
+     */
+    private void trim() {
+        while (mReplayBytes > MAX_REPLAY_BYTES) {
+            OutboundFrame frame = mUnacked.isEmpty() ? mUnsent.poll() : mUnacked.poll();
+            mReplayBytes -= frame.payload.length;
+            mDroppedCount++;
+        }
+    }
+
+    /**
+     * Count a message read from the peer.
+     *
+     * @return The number of messages read from the peer in this session
+     */
+    synchronized long onReceived() {
+        return ++mReceivedCount;
+    }
+
+    synchronized long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * Return the number of messages given up on because too many were waiting for replay.
+     */
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The socket layer underneath {@link BluetoothChatService}. The service's threads only talk to
+ * this interface, so the same threading and framing code can run over Bluetooth RFCOMM
+ * ({@link RfcommTransport}) or plain TCP sockets ({@link TcpTransport}).
+ *
+ * <p>The {@code secure} flag selects between the two services a transport exposes, matching
+ * the secure and insecure RFCOMM channels of the original sample.</p>
+ */
+public interface ChatTransport {
+
+    /**
+     * A bidirectional byte stream to one remote device.
+     */
+    interface Channel {
+        /**
+         * Block until an outgoing channel is connected. Does nothing for accepted channels.
+         */
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Return a stable identifier of the remote device, such as its MAC address.
+         */
+        String getRemoteAddress();
+
+        /**
+         * Return a human readable name for the remote device.
+         */
+        String getRemoteName();
+
+        /**
+         * Close the channel. Unblocks any thread blocked in connect() or reading.
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * A server endpoint waiting for incoming channels.
+     */
+    interface Listener {
+        /**
+         * Block until a remote device connects.
+         */
+        Channel accept() throws IOException;
+
+        /**
+         * Stop listening. Unblocks any thread blocked in accept().
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * Start listening for incoming channels.
+     */
+    Listener listen(boolean secure) throws IOException;
+
+    /**
+     * Create an outgoing channel to the given address. The channel is not connected until
+     * {@link Channel#connect()} is called.
+     */
+    Channel createChannel(String address, boolean secure) throws IOException;
+
+    /**
+     * Stop any activity that would slow down an outgoing connection, such as discovery.
+     */
+    void cancelDiscovery();
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection state held in an atomic field, so that it can be read and changed without a
+ * lock. Only the transitions listed below are made; any other is rejected and leaves the state
+ * as it was:
+ * <ul>
+ * <li>{@link #NONE} to {@link #LISTEN} or {@link #CONNECTING}</li>
+ * <li>{@link #LISTEN} to {@link #NONE}, {@link #CONNECTING} or {@link #CONNECTED}</li>
+ * <li>{@link #CONNECTING} to {@link #NONE}, {@link #LISTEN} or {@link #CONNECTED}</li>
+ * <li>{@link #CONNECTED} to {@link #NONE}, {@link #LISTEN} or {@link #CONNECTING}</li>
+ * </ul>
+ * In particular nothing becomes connected after it was stopped, without first listening or
+ * connecting again.
+ *
+ * <p>Threads that race to change the state use {@link #compareAndSet(int, int)}, so that only
+ * the one that saw the expected state acts on the change.</p>
+ */
+class ConnectionStateMachine {
+    // States, exposed as BluetoothChatService.STATE_*
+    static final int NONE = 0;
+    static final int LISTEN = 1;
+    static final int CONNECTING = 2;
+    static final int CONNECTED = 3;
+
+    // Bit n of the entry for a state is set if that state may change to state n
+    private static final int[] TRANSITIONS = {
+            /* NONE */       (1 << LISTEN) | (1 << CONNECTING),
+            /* LISTEN */     (1 << NONE) | (1 << CONNECTING) | (1 << CONNECTED),
+            /* CONNECTING */ (1 << NONE) | (1 << LISTEN) | (1 << CONNECTED),
+            /* CONNECTED */  (1 << NONE) | (1 << LISTEN) | (1 << CONNECTING),
+    };
+
+    /**
+     * Told about every change of state, on the thread that made it.
+     */
+    interface Listener {
+        void onStateChanged(int oldState, int newState);
+    }
+
+    private final AtomicInteger mState;
+    private final Listener mListener;
+
+    /**
+     * @param initialState The state to start in
+     * @param listener     Told about every change of state, or null
+     */
+    ConnectionStateMachine(int initialState, Listener listener) {
+        mState = new AtomicInteger(initialState);
+        mListener = listener;
+    }
+
+    /**
+     * Return whether the state may change directly from one state to another. Staying in the
+     * same state is always allowed.
+     */
+    static boolean isAllowed(int from, int to) {
+        return from == to || (TRANSITIONS[from] & (1 << to)) != 0;
+    }
+
+    int get() {
+        return mState.get();
+    }
+
+    /**
+     * Return whether the current state may change to the given one.
+     */
+    boolean canMoveTo(int state) {
+        return isAllowed(mState.get(), state);
+    }
+
+    /**
+     * Change to the given state from whatever the current state is.
+     *
+     * @return false if the transition from the current state is not allowed
+     */
+    boolean moveTo(int state) {
+        while (true) {
+            int current = mState.get();
+            if (current == state) {
+                return true;
+            }
+            if (!isAllowed(current, state)) {
+                return false;
+            }
+            if (mState.compareAndSet(current, state)) {
+                notifyChanged(current, state);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Change to the given state only if the current state is the expected one.
+     *
+     * @return false if the state was not the expected one, or the transition is not allowed
+     */
+    boolean compareAndSet(int expected, int state) {
+        if (!isAllowed(expected, state)) {
+            return false;
+        }
+        if (expected == state) {
+            return mState.get() == expected;
+        }
+        if (!mState.compareAndSet(expected, state)) {
+            return false;
+        }
+        notifyChanged(expected, state);
+        return true;
+    }
+
+    private void notifyChanged(int oldState, int newState) {
+        if (mListener != null) {
+            mListener.onStateChanged(oldState, newState);
+        }
+    }
+}
@@ -21,15 +21,24 @@ package com.example.android.bluetoothchat;
  */
 public interface Constants {
 
-    // Message types sent from the BluetoothChatService Handler
+    // Message types sent from the BluetoothChatService Handler. MESSAGE_READ, MESSAGE_WRITE and
+    // the MESSAGE_FILE_* messages carry the connection id in arg2, MESSAGE_DEVICE_NAME carries it
+    // in arg1.
     int MESSAGE_STATE_CHANGE = 1;
-    int MESSAGE_READ = 2;
+    int MESSAGE_READ = 2;           // only without a BluetoothChatService.MessageListener
     int MESSAGE_WRITE = 3;
     int MESSAGE_DEVICE_NAME = 4;
     int MESSAGE_TOAST = 5;
+    int MESSAGE_FILE_PROGRESS = 6;  // arg1 = percent done, obj = file name
+    int MESSAGE_FILE_SENT = 7;      // obj = file name
+    int MESSAGE_FILE_RECEIVED = 8;  // obj = saved File
+    int MESSAGE_RECONNECTING = 9;   // arg1 = attempt, arg2 = delay before it in milliseconds
+    int MESSAGE_LINK_STATS = 10;    // obj = List<LinkStats>, one per connected device
 
     // Key names received from the BluetoothChatService Handler
     String DEVICE_NAME = "device_name";
+    String DEVICE_ADDRESS = "device_address";
+    String DEVICE_SECURE = "device_secure";    // boolean, whether the socket is secure
     String TOAST = "toast";
 
 }
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The part of a conversation shown by the conversation list: a window of at most
+ * {@link #MAX_LOADED_LINES} lines over the {@link MessageLog} of the device the conversation was
+ * started with. Older and newer pages are read from the log as the list scrolls, so only the
+ * window is kept on the heap however long the conversation gets. While the end of the
+ * conversation is shown, the live messages of other connected devices are shown in it too.
+ *
+ * <p>Every message goes to the log of the device it was exchanged with. The logs are opened,
+ * written and synced on a writer thread, with one sync for all the messages added during a turn
+ * of the main loop. All other methods must be called on the main thread.</p>
+ */
+class ConversationHistory {
+    // Debugging
+    private static final String TAG = "ConversationHistory";
+
+    // Lines read from the log at a time
+    static final int PAGE_SIZE = 50;
+    // Most lines kept in the window
+    static final int MAX_LOADED_LINES = 4 * PAGE_SIZE;
+
+    /**
+     * Told when lines were read into the window on the writer thread.
+     */
+    interface Listener {
+        void onHistoryLoaded();
+    }
+
+    private final File mDirectory;
+    // The lines shown, which back the list adapter
+    private final List<String> mLines;
+    // Whether each line shown was read from or written to the log of the conversation shown,
+    // rather than being a live message of another device
+    private final List<Boolean> mFromLog = new ArrayList<>();
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    // The logs written to, by address, on the writer thread only. A log that could not be
+    // opened or written to is kept as null.
+    private final Map<String, MessageLog> mLogs = new HashMap<>();
+
+    private String mAddress;
+    // The log of the conversation shown once it is open, read from on the main thread
+    private MessageLog mLog;
+    // Whether messages of the conversation shown are still being logged
+    private boolean mLogged;
+    // Bumped whenever another conversation is shown, so that a late load is dropped
+    private int mGeneration;
+    // Messages in the log shown, counting those still to be written by the writer thread
+    private int mLogSize;
+    // Index in the log of the first line shown that comes from it
+    private int mFirstIndex;
+    // Lines shown that come from the log
+    private int mLogLines;
+    private boolean mSyncPosted;
+
+    /**
+     * @param directory Where the logs of all devices are kept
+     * @param lines     The list backing the conversation adapter
+     * @param listener  Told when the window changes after {@link #open(String)} returns
+     */
+    ConversationHistory(File directory, List<String> lines, Listener listener) {
+        mDirectory = directory;
+        mLines = lines;
+        mListener = listener;
+    }
+
+    /**
+     * Show the conversation with a device. Its latest page is read on the writer thread, then
+     * added at the start of the window.
+     *
+     * @param address The address of the remote device
+     */
+    void open(final String address) {
+        mGeneration++;
+        mAddress = address;
+        mLog = null;
+        mLogged = address != null;
+        mLogSize = 0;
+        mFirstIndex = 0;
+        mLogLines = 0;
+        mLines.clear();
+        mFromLog.clear();
+        if (address == null) {
+            return;
+        }
+        final int generation = mGeneration;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final MessageLog log = getLog(address);
+                if (log == null) {
+                    postLogLost(address, null, generation);
+                    return;
+                }
+                final int size = log.size();
+                MessageLog.Entry[] entries = log.read(Math.max(0, size - PAGE_SIZE),
+                        Math.min(size, PAGE_SIZE));
+                final List<String> page = format(entries);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration && mLogged) {
+                            onLoaded(log, size, page);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void onLoaded(MessageLog log, int size, List<String> page) {
+        mLog = log;
+        // The messages added since open() was called follow the ones found in the log
+        if (mFirstIndex == 0) {
+            mLines.addAll(0, page);
+            mFromLog.addAll(0, Collections.nCopies(page.size(), Boolean.TRUE));
+            mFirstIndex = size - page.size();
+            mLogLines += page.size();
+        } else {
+            mFirstIndex += size;
+        }
+        mLogSize += size;
+        trimStart();
+        mListener.onHistoryLoaded();
+    }
+
+    /**
+     * @return The address of the device whose conversation is shown, or null
+     */
+    String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Sync and release every log. The history cannot be used afterwards.
+     */
+    void close() {
+        if (mWriter.isShutdown()) {
+            return;
+        }
+        mGeneration++;
+        mAddress = null;
+        mLog = null;
+        mLogged = false;
+        mHandler.removeCallbacks(mSync);
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (MessageLog log : mLogs.values()) {
+                    if (log != null) {
+                        log.close();
+                    }
+                }
+                mLogs.clear();
+            }
+        });
+        mWriter.shutdown();
+    }
+
+    /**
+     * Add a message to the conversation, and to the log of every device it was exchanged with.
+     * It is shown only if the window is at the end of the conversation; otherwise it is read back
+     * when the list is scrolled down to it.
+     *
+     * @param addresses The addresses of the devices the message was sent to or received from
+     * @param direction {@link MessageLog#DIRECTION_IN} or {@link MessageLog#DIRECTION_OUT}
+     * @param sender    The name of the sender of an incoming message
+     * @param text      The message
+     * @return Whether the lines shown changed
+     */
+    boolean add(List<String> addresses, final int direction, String sender, final String text) {
+        final long timeMillis = System.currentTimeMillis();
+        final String loggedSender =
+                direction == MessageLog.DIRECTION_IN && sender != null ? sender : "";
+        boolean fromLog = false;
+        for (final String address : addresses) {
+            if (address == null) {
+                continue;
+            }
+            if (address.equals(mAddress) && mLogged) {
+                fromLog = true;
+            }
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    append(address, direction, timeMillis, loggedSender, text);
+                }
+            });
+        }
+        if (!mSyncPosted && !addresses.isEmpty()) {
+            mSyncPosted = true;
+            mHandler.post(mSync);
+        }
+        boolean atEnd = isAtEnd();
+        if (fromLog) {
+            mLogSize++;
+        }
+        if (!atEnd) {
+            return false;
+        }
+        mLines.add(format(direction, sender, text));
+        mFromLog.add(fromLog);
+        if (fromLog) {
+            mLogLines++;
+        }
+        trimStart();
+        return true;
+    }
+
+    /**
+     * Syncs the logs once the messages added during this turn of the main loop are queued.
+     */
+    private final Runnable mSync = new Runnable() {
+        @Override
+        public void run() {
+            mSyncPosted = false;
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (MessageLog log : mLogs.values()) {
+                        if (log != null) {
+                            log.sync();
+                        }
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * @return Whether the newest message of the conversation is in the window
+     */
+    boolean isAtEnd() {
+        return mLog == null || mFirstIndex + mLogLines >= mLogSize;
+    }
+
+    /**
+     * Read the page before the window into its start, dropping lines from its end if the
+     * window gets too large.
+     *
+     * @return The number of lines added at the start
+     */
+    int loadOlder() {
+        if (mLog == null || mFirstIndex == 0) {
+            return 0;
+        }
+        int count = Math.min(PAGE_SIZE, mFirstIndex);
+        mFirstIndex -= count;
+        addLines(0, mFirstIndex, count);
+        int excess = mLines.size() - MAX_LOADED_LINES;
+        if (excess > 0) {
+            int end = mLines.size();
+            mLogLines -= countFromLog(end - excess, end);
+            mLines.subList(end - excess, end).clear();
+            mFromLog.subList(end - excess, end).clear();
+        }
+        return count;
+    }
+
+    /**
+     * Read the page after the window onto its end, dropping lines from its start if the window
+     * gets too large.
+     *
+     * @return The number of lines dropped from the start, or -1 if nothing was read
+     */
+    int loadNewer() {
+        if (isAtEnd()) {
+            return -1;
+        }
+        int from = mFirstIndex + mLogLines;
+        // The writer thread may not have caught up with the messages added last
+        int count = Math.min(PAGE_SIZE, mLog.size() - from);
+        if (count <= 0) {
+            return -1;
+        }
+        addLines(mLines.size(), from, count);
+        return trimStart();
+    }
+
+    /**
+     * Drop lines from the start of the window if it got too large.
+     *
+     * @return The number of lines dropped
+     */
+    private int trimStart() {
+        int excess = Math.max(0, mLines.size() - MAX_LOADED_LINES);
+        if (excess > 0) {
+            int dropped = countFromLog(0, excess);
+            mFirstIndex += dropped;
+            mLogLines -= dropped;
+            mLines.subList(0, excess).clear();
+            mFromLog.subList(0, excess).clear();
+        }
+        return excess;
+    }
+
+    private int countFromLog(int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (mFromLog.get(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void addLines(int position, int from, int count) {
+        List<String> lines = format(mLog.read(from, count));
+        mLines.addAll(position, lines);
+        mFromLog.addAll(position, Collections.nCopies(lines.size(), Boolean.TRUE));
+        mLogLines += lines.size();
+    }
+
+    /**
+     * Append a message to the log of a device. Called on the writer thread.
+     */
+    private void append(String address, int direction, long timeMillis, String sender,
+                        String text) {
+        MessageLog log = getLog(address);
+        if (log == null) {
+            return;
+        }
+        try {
+            log.append(direction, timeMillis, sender, text);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not log a message", e);
+            // Keep showing the live conversation, without a log behind it
+            mLogs.put(address, null);
+            postLogLost(address, log, -1);
+        }
+    }
+
+    /**
+     * @return The log of a device, opened if needed, or null if it cannot be used. Called on
+     * the writer thread.
+     */
+    private MessageLog getLog(String address) {
+        if (mLogs.containsKey(address)) {
+            return mLogs.get(address);
+        }
+        MessageLog log = null;
+        try {
+            log = MessageLog.open(mDirectory, address);
+        } catch (IOException e) {
+            // The conversation is still shown, it is just not kept
+            Log.e(TAG, "Could not open the message log of " + address, e);
+        }
+        mLogs.put(address, log);
+        return log;
+    }
+
+    /**
+     * Stop paging the conversation with a device if it is shown, since its log cannot be used,
+     * then close the log once the main thread no longer reads from it.
+     *
+     * @param log        The log to close, or null
+     * @param generation The conversation shown when the log was needed, or -1 for any
+     */
+    private void postLogLost(final String address, final MessageLog log, final int generation) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if ((generation == -1 || generation == mGeneration)
+                        && address.equals(mAddress)) {
+                    mLog = null;
+                    mLogged = false;
+                }
+                if (log == null) {
+                    return;
+                }
+                if (mWriter.isShutdown()) {
+                    log.close();
+                } else {
+                    mWriter.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            log.close();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private static List<String> format(MessageLog.Entry[] entries) {
+        List<String> lines = new ArrayList<>(entries.length);
+        for (MessageLog.Entry entry : entries) {
+            lines.add(format(entry.direction, entry.sender, entry.text));
+        }
+        return lines;
+    }
+
+    private static String format(int direction, String sender, String text) {
+        return (direction == MessageLog.DIRECTION_OUT ? "Me" : sender) + ":  " + text;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses message payloads for {@link FrameProtocol#CODEC_DEFLATE}.
+ *
+ * <p>Each payload is compressed on its own as a raw deflate stream, so frames can be dropped,
+ * batched or decoded in any order. Short chat lines have too little history of their own to
+ * compress well, so both ends prime deflate with the same preset dictionary of text that is
+ * common in chat messages and pasted logs. Changing the dictionary changes the wire format and
+ * needs a new codec bit.</p>
+ *
+ * <p>An instance is not thread safe. Each connection uses one instance on its writer thread for
+ * compression and another on its reader thread for decompression.</p>
+ */
+class DeflateCodec {
+
+    // Payloads shorter than this are sent as is; there is nothing to gain from compressing them
+    static final int MIN_COMPRESS_LENGTH = 32;
+
+    // Text frequently seen in chat and pasted logs; the most common strings go last because
+    // deflate reaches the end of the dictionary with the shortest distances
+    private static final String DICTIONARY_TEXT =
+            "java.lang.NullPointerException java.lang.IllegalStateException "
+            + "java.io.IOException Caused by: at android.os.Handler.dispatchMessage "
+            + "at android.os.Looper.loop at java.lang.Thread.run at com.android.internal. "
+            + "FATAL EXCEPTION: main Process: E/AndroidRuntime W/System.err I/ActivityManager "
+            + "D/BluetoothAdapter D/BluetoothSocket  V/ D/ I/ W/ E/ 01-01 12:00:00.000 "
+            + "ERROR WARN INFO DEBUG Exception Error: failed to connect timeout null "
+            + "true false return public private static final void int String new this "
+            + "http://www. https://www. .com/ .org/ .html .json .txt .log "
+            + "{\"id\": \"name\": \"type\": \"value\": [{ }] {} () [] <> == != && || -> :: ; "
+            + "Bluetooth device connected disconnected message send sent received "
+            + "please thanks thank you sorry okay sure maybe tomorrow today tonight "
+            + "morning evening later again really something anything nothing everything "
+            + "what when where which while with would could should about after before "
+            + "because been being from have here just know like make more only other "
+            + "over some than that their them then there these they think this time "
+            + "very want well were will your yes no ok lol haha :) :( ;) :D "
+            + "Hi Hello Hey How are you? I'm fine. What's up? Did you see it? Let me know. "
+            + "I don't know. I will be there. See you soon! Talk to you later. "
+            + "the be to of and a in that have I it for not on with he as you do at "
+            + "The This That What I think I can I have it's it is don't can't won't "
+            + "of the in the to the and the on the for the is the at the . , ! ? the and ";
+
+    private static final byte[] DICTIONARY;
+
+    static {
+        try {
+            DICTIONARY = DICTIONARY_TEXT.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Created on first use, since an instance usually only compresses or only decompresses
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private byte[] mCompressBuffer = new byte[0];
+    private byte[] mDecompressBuffer;
+
+    /**
+     * Compress a payload into this codec's buffer.
+     *
+     * @param buffer The payload bytes
+     * @param offset Offset of the payload in the buffer
+     * @param length Length of the payload
+     * @return The compressed length, held at the start of {@link #getCompressedBuffer()}, or -1
+     * if the payload is too short or does not get any smaller
+     */
+    int compress(byte[] buffer, int offset, int length) {
+        if (length < MIN_COMPRESS_LENGTH) {
+            return -1;
+        }
+        // Only a result strictly shorter than the payload is worth sending
+        if (mCompressBuffer.length < length - 1) {
+            mCompressBuffer = new byte[length - 1];
+        }
+        if (mDeflater == null) {
+            mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(buffer, offset, length);
+        mDeflater.finish();
+        int compressed = 0;
+        while (!mDeflater.finished() && compressed < length - 1) {
+            compressed += mDeflater.deflate(mCompressBuffer, compressed,
+                    length - 1 - compressed);
+        }
+        boolean finished = mDeflater.finished();
+        mDeflater.reset();
+        return finished ? compressed : -1;
+    }
+
+    /**
+     * Return the buffer holding the output of the last call to {@link #compress}.
+     */
+    byte[] getCompressedBuffer() {
+        return mCompressBuffer;
+    }
+
+    /**
+     * Decompress a payload produced by {@link #compress} on the peer.
+     *
+     * @param buffer The compressed bytes
+     * @param offset Offset of the compressed bytes in the buffer
+     * @param length Length of the compressed bytes
+     * @return The original length, held at the start of {@link #getDecompressedBuffer()}
+     * @throws ProtocolException if the data is corrupt or expands beyond the frame size limit
+     */
+    int decompress(byte[] buffer, int offset, int length) throws ProtocolException {
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+            mDecompressBuffer = new byte[FrameProtocol.MAX_PAYLOAD_LENGTH];
+        }
+        try {
+            mInflater.setDictionary(DICTIONARY);
+            mInflater.setInput(buffer, offset, length);
+            int inflated = 0;
+            while (!mInflater.finished() && inflated < mDecompressBuffer.length) {
+                int bytes = mInflater.inflate(mDecompressBuffer, inflated,
+                        mDecompressBuffer.length - inflated);
+                if (bytes == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    break;
+                }
+                inflated += bytes;
+            }
+            if (!mInflater.finished()) {
+                throw new ProtocolException("Truncated or oversized compressed frame");
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed frame: " + e.getMessage());
+        } finally {
+            mInflater.reset();
+        }
+    }
+
+    /**
+     * Return the buffer holding the output of the last call to {@link #decompress}.
+     */
+    byte[] getDecompressedBuffer() {
+        return mDecompressBuffer;
+    }
+
+    /**
+     * Free the native memory held by this codec. The codec must not be used afterwards.
+     */
+    void end() {
+        if (mDeflater != null) {
+            mDeflater.end();
+        }
+        if (mInflater != null) {
+            mInflater.end();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The devices this app has seen during discovery or connected to, kept across launches so that
+ * {@link DeviceListActivity} can list them without waiting for discovery. Each device has the
+ * time it was last seen, the signal strength it was last seen at and the socket type of the
+ * last connection made to it.
+ *
+ * <p>The inventory is small and saved whole, to a temporary file that then replaces the
+ * previous one, so that a crash while saving never loses it. The app shares one inventory,
+ * read and written on a background thread, so that neither touches the disk on the UI
+ * thread.</p>
+ */
+class DeviceInventory {
+    // Debugging
+    private static final String TAG = "DeviceInventory";
+
+    private static final String FILE_NAME = "devices";
+    private static final int VERSION = 1;
+
+    // Devices remembered, the ones seen longest ago being forgotten first
+    static final int MAX_DEVICES = 64;
+
+    // A device not seen for this long may have gone, and is looked for again by discovery
+    static final long STALE_MILLIS = 10 * 60 * 1000;
+
+    // Signal strength of a device not seen by discovery
+    static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    // Socket type of the last connection to a device
+    static final int SOCKET_UNKNOWN = 0;
+    static final int SOCKET_SECURE = 1;
+    static final int SOCKET_INSECURE = 2;
+
+    /**
+     * What is known about one device.
+     */
+    static final class Device {
+        final String address;
+        String name;
+        long lastSeenMillis;
+        short rssi = RSSI_UNKNOWN;
+        int socketType = SOCKET_UNKNOWN;
+
+        Device(String address) {
+            this.address = address;
+        }
+    }
+
+    private static DeviceInventory sInstance;
+
+    // Loads and saves the inventory, one task after the other
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private final File mFile;
+    // In the order the devices were last seen or connected to, so that the one seen longest
+    // ago is forgotten first. Guarded by this.
+    private final Map<String, Device> mDevices =
+            new LinkedHashMap<String, Device>(MAX_DEVICES, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Device> eldest) {
+                    return size() > MAX_DEVICES;
+                }
+            };
+
+    private DeviceInventory(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Return the inventory of the app, starting to load it from a directory the first time.
+     * Until it is loaded the inventory looks empty; see {@link #whenLoaded(Runnable)}.
+     */
+    static synchronized DeviceInventory getInstance(File directory) {
+        if (sInstance == null) {
+            final DeviceInventory inventory = new DeviceInventory(new File(directory, FILE_NAME));
+            inventory.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    inventory.load();
+                }
+            });
+            sInstance = inventory;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Run an action once the saved devices are loaded, on the inventory's background thread.
+     */
+    void whenLoaded(Runnable action) {
+        mExecutor.execute(action);
+    }
+
+    /**
+     * Read the saved devices, or start an empty inventory if there are none or they cannot be
+     * read. Devices recorded meanwhile are kept as the most recent ones.
+     */
+    private void load() {
+        List<Device> devices = new ArrayList<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown inventory version");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Device device = new Device(in.readUTF());
+                String name = in.readUTF();
+                device.name = name.isEmpty() ? null : name;
+                device.lastSeenMillis = in.readLong();
+                device.rssi = in.readShort();
+                device.socketType = in.readByte();
+                devices.add(device);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing seen yet
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + mFile + ", starting over", e);
+            devices.clear();
+        } finally {
+            closeQuietly(in);
+        }
+        synchronized (this) {
+            List<Device> recorded = new ArrayList<>(mDevices.values());
+            mDevices.clear();
+            // Least recently seen first, so that the map forgets them first
+            Collections.reverse(devices);
+            for (Device device : devices) {
+                mDevices.put(device.address, device);
+            }
+            for (Device device : recorded) {
+                mDevices.remove(device.address);
+                mDevices.put(device.address, device);
+            }
+        }
+    }
+
+    /**
+     * Return the known devices, the most recently seen first.
+     */
+    synchronized List<Device> getDevices() {
+        List<Device> devices = new ArrayList<>(mDevices.values());
+        Collections.sort(devices, new Comparator<Device>() {
+            @Override
+            public int compare(Device a, Device b) {
+                return a.lastSeenMillis < b.lastSeenMillis ? 1
+                        : a.lastSeenMillis > b.lastSeenMillis ? -1 : 0;
+            }
+        });
+        return devices;
+    }
+
+    /**
+     * Return a known device, or null.
+     */
+    synchronized Device get(String address) {
+        return mDevices.get(address);
+    }
+
+    /**
+     * Return whether a device has not been seen for {@link #STALE_MILLIS}.
+     */
+    static boolean isStale(Device device, long nowMillis) {
+        return nowMillis - device.lastSeenMillis > STALE_MILLIS;
+    }
+
+    /**
+     * Record a device found by discovery.
+     *
+     * @param name The device's name, or null to keep the known one
+     * @param rssi The signal strength in dBm, or {@link #RSSI_UNKNOWN}
+     * @return The updated device
+     */
+    synchronized Device onSeen(String address, String name, short rssi, long nowMillis) {
+        Device device = moveToEnd(address);
+        if (name != null) {
+            device.name = name;
+        }
+        device.rssi = rssi;
+        device.lastSeenMillis = nowMillis;
+        return device;
+    }
+
+    /**
+     * Record a connection made to or from a device.
+     *
+     * @param name   The device's name, or null to keep the known one
+     * @param secure Whether the connection used a secure socket
+     * @return The updated device
+     */
+    synchronized Device onConnected(String address, String name, boolean secure,
+                                    long nowMillis) {
+        Device device = moveToEnd(address);
+        if (name != null) {
+            device.name = name;
+        }
+        device.socketType = secure ? SOCKET_SECURE : SOCKET_INSECURE;
+        device.lastSeenMillis = nowMillis;
+        return device;
+    }
+
+    /**
+     * Return a device, added if unknown, as the most recent one.
+     */
+    private Device moveToEnd(String address) {
+        Device device = mDevices.remove(address);
+        if (device == null) {
+            device = new Device(address);
+        }
+        mDevices.put(address, device);
+        return device;
+    }
+
+    /**
+     * Write the inventory out on the background thread. Failures are logged; the inventory is
+     * only a cache.
+     */
+    void save() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+    }
+
+    private void write() {
+        // Serialized while holding the lock, as the UI thread updates the devices in place, and
+        // written to disk after
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            synchronized (this) {
+                List<Device> devices = getDevices();
+                data.writeInt(VERSION);
+                data.writeInt(devices.size());
+                for (Device device : devices) {
+                    data.writeUTF(device.address);
+                    data.writeUTF(device.name == null ? "" : device.name);
+                    data.writeLong(device.lastSeenMillis);
+                    data.writeShort(device.rssi);
+                    data.writeByte(device.socketType);
+                }
+            }
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new AssertionError(e);
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            bytes.writeTo(out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Unable to replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save the device inventory", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of device inventory failed", e);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.text.format.DateUtils;
 import android.view.View;
 import android.view.Window;
 import android.widget.AdapterView;
@@ -34,13 +35,19 @@ import android.widget.TextView;
 
 import com.example.android.common.logger.Log;
 
+import java.util.HashSet;
 import java.util.Set;
 
 /**
- * This Activity appears as a dialog. It lists any paired devices and
- * devices detected in the area after discovery. When a device is chosen
- * by the user, the MAC address of the device is sent back to the parent
- * Activity in the result Intent.
+ * This Activity appears as a dialog. It lists the devices seen recently,
+ * any paired devices and devices detected in the area after discovery.
+ * When a device is chosen by the user, the MAC address of the device is
+ * sent back to the parent Activity in the result Intent.
+ *
+ * <p>Recently seen devices come from a {@link DeviceInventory} and are listed
+ * straight away. Discovery is only started on its own when some of them have
+ * not been seen for a while, and is stopped as soon as they have all been
+ * found again.</p>
  */
 public class DeviceListActivity extends Activity {
 
@@ -54,6 +61,12 @@ public class DeviceListActivity extends Activity {
      */
     public static String EXTRA_DEVICE_ADDRESS = "device_address";
 
+    /**
+     * Return Intent extra, present when the socket type that last connected to the device is
+     * known: true for secure, false for insecure
+     */
+    public static String EXTRA_SECURE = "secure";
+
     /**
      * Member fields
      */
@@ -64,6 +77,27 @@ public class DeviceListActivity extends Activity {
      */
     private ArrayAdapter<String> mNewDevicesArrayAdapter;
 
+    /**
+     * Devices seen recently, the most recent first
+     */
+    private ArrayAdapter<String> mRecentDevicesArrayAdapter;
+
+    /**
+     * Devices seen or connected to, kept across launches
+     */
+    private DeviceInventory mInventory;
+
+    /**
+     * Addresses of the recent devices a refreshing discovery is still looking for, or null when
+     * the discovery under way was asked for by the user
+     */
+    private Set<String> mStaleAddresses;
+
+    /**
+     * Whether the Activity has been destroyed, so that a late inventory is not listed
+     */
+    private boolean mDestroyed;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -79,17 +113,24 @@ public class DeviceListActivity extends Activity {
         Button scanButton = findViewById(R.id.button_scan);
         scanButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
+                mStaleAddresses = null;
                 doDiscovery();
                 v.setVisibility(View.GONE);
             }
         });
 
-        // Initialize array adapters. One for already paired devices and
-        // one for newly discovered devices
+        // Initialize array adapters. One for recently seen devices, one for
+        // already paired devices and one for newly discovered devices
+        mRecentDevicesArrayAdapter = new ArrayAdapter<>(this, R.layout.device_name);
         ArrayAdapter<String> pairedDevicesArrayAdapter =
                 new ArrayAdapter<>(this, R.layout.device_name);
         mNewDevicesArrayAdapter = new ArrayAdapter<>(this, R.layout.device_name);
 
+        // Find and set up the ListView for recently seen devices
+        ListView recentListView = findViewById(R.id.recent_devices);
+        recentListView.setAdapter(mRecentDevicesArrayAdapter);
+        recentListView.setOnItemClickListener(mDeviceClickListener);
+
         // Find and set up the ListView for paired devices
         ListView pairedListView = findViewById(R.id.paired_devices);
         pairedListView.setAdapter(pairedDevicesArrayAdapter);
@@ -111,6 +152,23 @@ public class DeviceListActivity extends Activity {
         // Get the local Bluetooth adapter
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
 
+        // List the devices seen recently as soon as they are loaded, without waiting for
+        // discovery
+        mInventory = DeviceInventory.getInstance(getFilesDir());
+        mInventory.whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mDestroyed) {
+                            showRecentDevices();
+                        }
+                    }
+                });
+            }
+        });
+
         // Get a set of currently paired devices
         Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
 
@@ -126,9 +184,41 @@ public class DeviceListActivity extends Activity {
         }
     }
 
+    /**
+     * List the devices of the inventory. If none of them has been seen lately, look for them
+     * again; otherwise discovery waits for the user to ask for it.
+     */
+    private void showRecentDevices() {
+        long now = System.currentTimeMillis();
+        Set<String> staleAddresses = new HashSet<>();
+        boolean anyRecent = false;
+        for (DeviceInventory.Device device : mInventory.getDevices()) {
+            // Discovery may have listed some already while the inventory was loading
+            if (!updateRecentDevice(device) && !isNewDevice(device.address)) {
+                mRecentDevicesArrayAdapter.add(describe(device, now));
+            }
+            if (DeviceInventory.isStale(device, now)) {
+                staleAddresses.add(device.address);
+            } else {
+                anyRecent = true;
+            }
+        }
+        if (mRecentDevicesArrayAdapter.getCount() > 0) {
+            findViewById(R.id.title_recent_devices).setVisibility(View.VISIBLE);
+        }
+
+        // Unless the user has started a discovery meanwhile
+        if (!anyRecent && !staleAddresses.isEmpty() && !mBtAdapter.isDiscovering()) {
+            Log.d(TAG, "Refreshing " + staleAddresses.size() + " stale devices");
+            mStaleAddresses = staleAddresses;
+            doDiscovery();
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mDestroyed = true;
 
         // Make sure we're not doing discovery anymore
         if (mBtAdapter != null) {
@@ -137,6 +227,52 @@ public class DeviceListActivity extends Activity {
 
         // Unregister broadcast listeners
         this.unregisterReceiver(mReceiver);
+
+        // Keep what discovery found for next time
+        mInventory.save();
+    }
+
+    /**
+     * Return the text listing a known device. The address comes last, where the click listener
+     * expects it.
+     */
+    private String describe(DeviceInventory.Device device, long now) {
+        String name = device.name != null ? device.name : device.address;
+        CharSequence seen = DateUtils.getRelativeTimeSpanString(
+                device.lastSeenMillis, now, DateUtils.MINUTE_IN_MILLIS);
+        String details = device.rssi == DeviceInventory.RSSI_UNKNOWN
+                ? getString(R.string.device_seen, name, seen)
+                : getString(R.string.device_seen_rssi, name, device.rssi, seen);
+        return details + "\n" + device.address;
+    }
+
+    /**
+     * Return whether discovery has listed a device as new.
+     */
+    private boolean isNewDevice(String address) {
+        for (int i = 0; i < mNewDevicesArrayAdapter.getCount(); i++) {
+            String item = mNewDevicesArrayAdapter.getItem(i);
+            if (item != null && item.endsWith(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace the listing of a recent device, returning false if it is not listed.
+     */
+    private boolean updateRecentDevice(DeviceInventory.Device device) {
+        for (int i = 0; i < mRecentDevicesArrayAdapter.getCount(); i++) {
+            String item = mRecentDevicesArrayAdapter.getItem(i);
+            if (item != null && item.endsWith(device.address)) {
+                mRecentDevicesArrayAdapter.remove(item);
+                mRecentDevicesArrayAdapter.insert(
+                        describe(device, System.currentTimeMillis()), i);
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -149,8 +285,10 @@ public class DeviceListActivity extends Activity {
         setProgressBarIndeterminateVisibility(true);
         setTitle(R.string.scanning);
 
-        // Turn on sub-title for new devices
-        findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+        // Turn on sub-title for new devices, unless only refreshing the recent ones
+        if (mStaleAddresses == null) {
+            findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+        }
 
         // If we're already discovering, stop it
         if (mBtAdapter.isDiscovering()) {
@@ -178,6 +316,12 @@ public class DeviceListActivity extends Activity {
             Intent intent = new Intent();
             intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
 
+            // and the socket type that worked last time, so the connect does not have to guess
+            DeviceInventory.Device device = mInventory.get(address);
+            if (device != null && device.socketType != DeviceInventory.SOCKET_UNKNOWN) {
+                intent.putExtra(EXTRA_SECURE, device.socketType == DeviceInventory.SOCKET_SECURE);
+            }
+
             // Set result and finish this Activity
             setResult(Activity.RESULT_OK, intent);
             finish();
@@ -197,15 +341,32 @@ public class DeviceListActivity extends Activity {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 // Get the BluetoothDevice object from the Intent
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                // If it's already paired, skip it, because it's been listed already
-                if (device != null && device.getBondState() != BluetoothDevice.BOND_BONDED) {
+                if (device == null) {
+                    return;
+                }
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI,
+                        DeviceInventory.RSSI_UNKNOWN);
+                DeviceInventory.Device seen = mInventory.onSeen(device.getAddress(),
+                        device.getName(), rssi, System.currentTimeMillis());
+                // If it's already listed as recent or paired, only refresh it
+                if (!updateRecentDevice(seen)
+                        && device.getBondState() != BluetoothDevice.BOND_BONDED) {
+                    findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
                     mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
                 }
+                // Stop a refreshing discovery once every stale device has turned up
+                if (mStaleAddresses != null && mStaleAddresses.remove(device.getAddress())
+                        && mStaleAddresses.isEmpty()) {
+                    Log.d(TAG, "All stale devices refreshed, stopping discovery");
+                    mBtAdapter.cancelDiscovery();
+                }
                 // When discovery is finished, change the Activity title
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 setProgressBarIndeterminateVisibility(false);
                 setTitle(R.string.select_device);
-                if (mNewDevicesArrayAdapter.getCount() == 0) {
+                boolean refreshing = mStaleAddresses != null;
+                mStaleAddresses = null;
+                if (!refreshing && mNewDevicesArrayAdapter.getCount() == 0) {
                     String noDevices = getResources().getText(R.string.none_found).toString();
                     mNewDevicesArrayAdapter.add(noDevices);
                 }
@@ -0,0 +1,750 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Sends and receives files over the connections of a {@link BluetoothChatService}.
+ *
+ * <p>A file is offered to the peer, then sent as fixed size chunks, each carrying its offset
+ * and a CRC-32 of its data. The receiver appends chunks in order and acknowledges the bytes it
+ * has checked. The sender keeps at most {@link #WINDOW_CHUNKS} chunks unacknowledged. A chunk
+ * that fails its checksum makes the receiver ask for everything from that chunk on again, and
+ * the sender also starts over from the last acknowledged byte if no acknowledgement comes for
+ * {@link #ACK_TIMEOUT_MILLIS}.</p>
+ *
+ * <p>Chunks go through the bulk lane of the connection's {@link SendQueue}, so chat messages
+ * overtake them. The receiver keeps the checked bytes in a partial file named after the
+ * transfer id. When a connection is lost, outgoing transfers wait for the next connection to
+ * the same device. They are then offered again with the same id, and the receiver answers
+ * with the length of its partial file, so the transfer resumes where it stopped. A partial file
+ * left alone for {@link #PARTIAL_EXPIRY_MILLIS} is deleted when the next file is offered.</p>
+ */
+class FileTransferManager {
+    // Debugging
+    private static final String TAG = "FileTransferManager";
+
+    // Bytes of file data per chunk frame
+    static final int CHUNK_SIZE = 4 * 1024;
+
+    // Chunks the sender may have in flight before it waits for an acknowledgement
+    static final int WINDOW_CHUNKS = 8;
+
+    // Time without an acknowledgement after which the sender sends the unacknowledged chunks
+    // again
+    static final long ACK_TIMEOUT_MILLIS = 5000;
+
+    // Size of the id + offset header of resume, chunk and ack frames
+    private static final int OFFSET_HEADER_LENGTH = 16;
+    // Size of the id + offset + checksum header of a chunk frame
+    private static final int CHUNK_HEADER_LENGTH = 20;
+
+    // Largest file accepted from a peer
+    static final long MAX_FILE_LENGTH = 1L << 30;
+
+    // Time after which a partial file nothing has been written to is deleted, since its sender
+    // may never resume it
+    static final long PARTIAL_EXPIRY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    /**
+     * The connection a transfer runs over, implemented by BluetoothChatService's connections.
+     */
+    interface Link {
+        String getAddress();
+
+        int getConnectionId();
+
+        /**
+         * Queue a small frame that must not be dropped.
+         */
+        void sendControl(int type, byte[] payload);
+
+        /**
+         * Queue a file chunk, waiting while the connection has enough chunks queued.
+         */
+        void sendBulk(int type, byte[] payload) throws InterruptedException;
+    }
+
+    private final Handler mHandler;
+    private final Random mRandom = new Random();
+    private File mReceiveDirectory;
+
+    // Files waiting to be sent or acknowledged in full, in the order they were requested
+    private final List<OutgoingTransfer> mOutgoing = new ArrayList<>();
+    // Files being received, by transfer id
+    private final Map<Long, IncomingTransfer> mIncoming = new HashMap<>();
+    // The thread sending files over each live connection
+    private final Map<Link, SenderThread> mSenders = new HashMap<>();
+
+    /**
+     * @param handler A Handler to send progress and results back to the UI Activity
+     */
+    FileTransferManager(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Set the directory received files are saved to. Without one, offers are refused.
+     */
+    synchronized void setReceiveDirectory(File directory) {
+        mReceiveDirectory = directory;
+    }
+
+    /**
+     * Queue a file for a device. It is sent as soon as the device is connected.
+     *
+     * @return false if the file cannot be read
+     */
+    boolean send(String address, File file) {
+        return send(Collections.singletonList(address), file, file.getName(), false);
+    }
+
+    /**
+     * Queue a file for several devices. Each gets it as soon as it is connected.
+     *
+     * @param name           The name the devices save the file under
+     * @param deleteWhenDone Whether the file is a copy to delete once every transfer of it has
+     *                       ended, sent or not
+     * @return false if the file cannot be read or there is no device to send it to
+     */
+    synchronized boolean send(Collection<String> addresses, File file, String name,
+                              boolean deleteWhenDone) {
+        if (!file.isFile() || !file.canRead()) {
+            Log.e(TAG, "Cannot read " + file);
+            return false;
+        }
+        if (addresses.isEmpty()) {
+            return false;
+        }
+        for (String address : addresses) {
+            mOutgoing.add(new OutgoingTransfer(mRandom.nextLong(), address, file, name,
+                    deleteWhenDone));
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Start sending queued files over a new connection.
+     */
+    synchronized void attach(Link link) {
+        SenderThread sender = new SenderThread(link);
+        mSenders.put(link, sender);
+        sender.start();
+    }
+
+    /**
+     * Stop using a connection that has ended. Its unfinished transfers are kept for the next
+     * connection to the same device.
+     */
+    void detach(Link link) {
+        SenderThread sender;
+        List<IncomingTransfer> incoming = new ArrayList<>();
+        synchronized (this) {
+            sender = mSenders.remove(link);
+            for (OutgoingTransfer transfer : mOutgoing) {
+                if (transfer.owner == link) {
+                    transfer.owner = null;
+                    transfer.resumed = false;
+                }
+            }
+            Iterator<IncomingTransfer> it = mIncoming.values().iterator();
+            while (it.hasNext()) {
+                IncomingTransfer transfer = it.next();
+                if (transfer.link == link) {
+                    incoming.add(transfer);
+                    it.remove();
+                }
+            }
+            notifyAll();
+        }
+        if (sender != null) {
+            sender.interrupt();
+        }
+        // The partial files stay on disk so that the sender can resume them
+        for (IncomingTransfer transfer : incoming) {
+            closeQuietly(transfer.file);
+        }
+    }
+
+    /**
+     * Handle a frame read from a connection.
+     *
+     * @return false if the frame is not a file transfer frame
+     */
+    boolean onFrame(Link link, int type, byte[] buffer, int length) {
+        switch (type) {
+            case FrameProtocol.TYPE_FILE_OFFER:
+            case FrameProtocol.TYPE_FILE_CHUNK:
+                if (length < OFFSET_HEADER_LENGTH) {
+                    return true;
+                }
+                try {
+                    if (type == FrameProtocol.TYPE_FILE_OFFER) {
+                        onOffer(link, buffer, length);
+                    } else {
+                        onChunk(link, buffer, length);
+                    }
+                } catch (IOException e) {
+                    // A storage problem only ends the transfer, not the connection
+                    Log.e(TAG, "Cannot save received file", e);
+                    abortIncoming(link, BigEndian.readLong(buffer, 0));
+                }
+                return true;
+            case FrameProtocol.TYPE_FILE_RESUME:
+                if (length >= OFFSET_HEADER_LENGTH) {
+                    onResume(link, BigEndian.readLong(buffer, 0), BigEndian.readLong(buffer, 8));
+                }
+                return true;
+            case FrameProtocol.TYPE_FILE_ACK:
+                if (length >= OFFSET_HEADER_LENGTH) {
+                    onAck(link, BigEndian.readLong(buffer, 0), BigEndian.readLong(buffer, 8));
+                }
+                return true;
+            case FrameProtocol.TYPE_FILE_CANCEL:
+                if (length >= 8) {
+                    onCancel(link, BigEndian.readLong(buffer, 0));
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Sending side
+
+    private synchronized void onResume(Link link, long id, long offset) {
+        OutgoingTransfer transfer = findOutgoing(link, id);
+        if (transfer == null) {
+            return;
+        }
+        // Chunks queued past the offset are ignored by the receiver, so send them again
+        transfer.resumed = true;
+        transfer.acked = Math.max(transfer.acked, Math.min(offset, transfer.length));
+        transfer.next = transfer.acked;
+        transfer.ackedAtMillis = System.currentTimeMillis();
+        if (transfer.acked == transfer.length) {
+            finishOutgoing(transfer);
+        }
+        notifyAll();
+    }
+
+    private synchronized void onAck(Link link, long id, long offset) {
+        OutgoingTransfer transfer = findOutgoing(link, id);
+        if (transfer == null || offset <= transfer.acked) {
+            return;
+        }
+        transfer.acked = Math.min(offset, transfer.length);
+        transfer.ackedAtMillis = System.currentTimeMillis();
+        int percent = (int) (transfer.acked * 100 / transfer.length);
+        if (percent != transfer.progress) {
+            transfer.progress = percent;
+            postProgress(link, transfer.name, percent);
+        }
+        if (transfer.acked == transfer.length) {
+            finishOutgoing(transfer);
+        }
+        notifyAll();
+    }
+
+    private void onCancel(Link link, long id) {
+        synchronized (this) {
+            OutgoingTransfer outgoing = findOutgoing(link, id);
+            if (outgoing != null) {
+                outgoing.finished = true;
+                mOutgoing.remove(outgoing);
+                releaseFile(outgoing);
+                notifyAll();
+                postToast("Could not send " + outgoing.name);
+                return;
+            }
+        }
+        IncomingTransfer incoming = removeIncoming(link, id);
+        if (incoming != null) {
+            closeQuietly(incoming.file);
+            deletePartFile(incoming);
+            postToast("Could not receive " + incoming.name);
+        }
+    }
+
+    private OutgoingTransfer findOutgoing(Link link, long id) {
+        for (OutgoingTransfer transfer : mOutgoing) {
+            if (transfer.id == id && transfer.owner == link) {
+                return transfer;
+            }
+        }
+        return null;
+    }
+
+    private void finishOutgoing(OutgoingTransfer transfer) {
+        Log.d(TAG, "Sent " + transfer.file);
+        transfer.finished = true;
+        mOutgoing.remove(transfer);
+        releaseFile(transfer);
+        mHandler.obtainMessage(Constants.MESSAGE_FILE_SENT, -1,
+                transfer.owner.getConnectionId(), transfer.name).sendToTarget();
+    }
+
+    /**
+     * Delete the copy an ended transfer was sent from, unless another transfer still uses it.
+     */
+    private void releaseFile(OutgoingTransfer transfer) {
+        if (!transfer.deleteWhenDone) {
+            return;
+        }
+        for (OutgoingTransfer other : mOutgoing) {
+            if (other.file.equals(transfer.file)) {
+                return;
+            }
+        }
+        if (!transfer.file.delete()) {
+            Log.w(TAG, "Could not delete " + transfer.file);
+        }
+    }
+
+    /**
+     * Wait for a file to send to the device behind a link, and claim it for that link.
+     */
+    private synchronized OutgoingTransfer takeOutgoing(Link link) throws InterruptedException {
+        while (true) {
+            for (OutgoingTransfer transfer : mOutgoing) {
+                if (transfer.owner == null && transfer.address.equals(link.getAddress())) {
+                    transfer.owner = link;
+                    transfer.resumed = false;
+                    return transfer;
+                }
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Wait until the transfer may send another chunk, and reserve it. Goes back to the last
+     * acknowledged byte if the receiver has not acknowledged anything for too long.
+     *
+     * @return The offset of the chunk, or -1 once the transfer has finished
+     */
+    private synchronized long nextChunk(OutgoingTransfer transfer) throws InterruptedException {
+        long window = (long) WINDOW_CHUNKS * CHUNK_SIZE;
+        while (!transfer.finished && (!transfer.resumed || transfer.next >= transfer.length
+                || transfer.next - transfer.acked >= window)) {
+            if (!transfer.resumed || transfer.next == transfer.acked) {
+                wait();
+                continue;
+            }
+            long waited = System.currentTimeMillis() - transfer.ackedAtMillis;
+            if (waited < ACK_TIMEOUT_MILLIS) {
+                wait(ACK_TIMEOUT_MILLIS - waited);
+                continue;
+            }
+            Log.w(TAG, "No acknowledgement of " + transfer.name + ", resending from "
+                    + transfer.acked);
+            transfer.next = transfer.acked;
+            transfer.ackedAtMillis = System.currentTimeMillis();
+        }
+        if (transfer.finished) {
+            return -1;
+        }
+        long offset = transfer.next;
+        if (offset == transfer.acked) {
+            // Nothing was waiting for an acknowledgement, so the timeout starts now
+            transfer.ackedAtMillis = System.currentTimeMillis();
+        }
+        transfer.next += Math.min(CHUNK_SIZE, transfer.length - offset);
+        return offset;
+    }
+
+    // Receiving side
+
+    private void onOffer(Link link, byte[] buffer, int length) throws IOException {
+        long id = BigEndian.readLong(buffer, 0);
+        long fileLength = BigEndian.readLong(buffer, 8);
+        String name = sanitizeName(new String(buffer, OFFSET_HEADER_LENGTH,
+                length - OFFSET_HEADER_LENGTH, "UTF-8"));
+
+        File directory;
+        IncomingTransfer previous;
+        synchronized (this) {
+            directory = mReceiveDirectory;
+            previous = mIncoming.remove(id);
+        }
+        if (previous != null) {
+            closeQuietly(previous.file);
+        }
+        if (directory == null || fileLength < 0 || fileLength > MAX_FILE_LENGTH
+                || (!directory.isDirectory() && !directory.mkdirs())) {
+            Log.w(TAG, "Refusing " + name + " of " + fileLength + " bytes");
+            link.sendControl(FrameProtocol.TYPE_FILE_CANCEL, idPayload(id));
+            return;
+        }
+        deleteStalePartFiles(directory);
+
+        // Pick up whatever an earlier connection already received of this transfer
+        File partFile = new File(directory, Long.toHexString(id) + PARTIAL_SUFFIX);
+        if (directory.getUsableSpace() < fileLength - Math.min(partFile.length(), fileLength)) {
+            Log.w(TAG, "No room for " + name + " of " + fileLength + " bytes");
+            link.sendControl(FrameProtocol.TYPE_FILE_CANCEL, idPayload(id));
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+        long offset;
+        try {
+            offset = Math.min(file.length(), fileLength);
+            file.setLength(offset);
+            file.seek(offset);
+        } catch (IOException e) {
+            closeQuietly(file);
+            throw e;
+        }
+        Log.d(TAG, "Receiving " + name + " from offset " + offset);
+
+        IncomingTransfer transfer = new IncomingTransfer(id, link, name, fileLength, partFile,
+                file, offset);
+        synchronized (this) {
+            mIncoming.put(id, transfer);
+        }
+        link.sendControl(FrameProtocol.TYPE_FILE_RESUME, offsetPayload(id, offset));
+        if (offset == fileLength) {
+            // Everything arrived before, only the final acknowledgement was lost
+            finishIncoming(transfer);
+        }
+    }
+
+    private void onChunk(Link link, byte[] buffer, int length) throws IOException {
+        if (length < CHUNK_HEADER_LENGTH) {
+            return;
+        }
+        long id = BigEndian.readLong(buffer, 0);
+        long offset = BigEndian.readLong(buffer, 8);
+        int checksum = BigEndian.readInt(buffer, 16);
+        int dataLength = length - CHUNK_HEADER_LENGTH;
+
+        IncomingTransfer transfer;
+        synchronized (this) {
+            transfer = mIncoming.get(id);
+        }
+        // Chunks sent before the last resume request are dropped until the resend arrives
+        if (transfer == null || transfer.link != link || offset != transfer.offset
+                || dataLength > transfer.length - offset) {
+            return;
+        }
+
+        transfer.crc.reset();
+        transfer.crc.update(buffer, CHUNK_HEADER_LENGTH, dataLength);
+        if ((int) transfer.crc.getValue() != checksum) {
+            // Every damaged chunk at the expected offset asks again, in case the resend of an
+            // earlier one was damaged too
+            Log.w(TAG, "Bad checksum at offset " + offset + " of " + transfer.name);
+            link.sendControl(FrameProtocol.TYPE_FILE_RESUME, offsetPayload(id, offset));
+            return;
+        }
+        transfer.file.write(buffer, CHUNK_HEADER_LENGTH, dataLength);
+        transfer.offset += dataLength;
+        link.sendControl(FrameProtocol.TYPE_FILE_ACK, offsetPayload(id, transfer.offset));
+        int percent = (int) (transfer.offset * 100 / transfer.length);
+        if (percent != transfer.progress) {
+            transfer.progress = percent;
+            postProgress(link, transfer.name, percent);
+        }
+        if (transfer.offset == transfer.length) {
+            finishIncoming(transfer);
+        }
+    }
+
+    private void finishIncoming(IncomingTransfer transfer) throws IOException {
+        transfer.file.close();
+        File target = uniqueFile(transfer.partFile.getParentFile(), transfer.name);
+        if (!transfer.partFile.renameTo(target)) {
+            throw new IOException("Could not rename " + transfer.partFile + " to " + target);
+        }
+        removeIncoming(transfer.link, transfer.id);
+        Log.d(TAG, "Received " + target);
+        mHandler.obtainMessage(Constants.MESSAGE_FILE_RECEIVED, -1,
+                transfer.link.getConnectionId(), target).sendToTarget();
+    }
+
+    /**
+     * Give up on a file that cannot be saved, and tell the sender to stop.
+     */
+    private void abortIncoming(Link link, long id) {
+        link.sendControl(FrameProtocol.TYPE_FILE_CANCEL, idPayload(id));
+        IncomingTransfer transfer = removeIncoming(link, id);
+        if (transfer != null) {
+            closeQuietly(transfer.file);
+            deletePartFile(transfer);
+            postToast("Could not receive " + transfer.name);
+        } else {
+            postToast("Could not receive a file");
+        }
+    }
+
+    private synchronized IncomingTransfer removeIncoming(Link link, long id) {
+        IncomingTransfer transfer = mIncoming.get(id);
+        if (transfer == null || transfer.link != link) {
+            return null;
+        }
+        return mIncoming.remove(id);
+    }
+
+    /**
+     * Delete the partial files that no transfer has written to for
+     * {@link #PARTIAL_EXPIRY_MILLIS}, other than those of transfers still running.
+     */
+    private void deleteStalePartFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<File> running = new HashSet<>();
+        synchronized (this) {
+            for (IncomingTransfer transfer : mIncoming.values()) {
+                running.add(transfer.partFile);
+            }
+        }
+        long expiredBefore = System.currentTimeMillis() - PARTIAL_EXPIRY_MILLIS;
+        for (File file : files) {
+            if (file.getName().endsWith(PARTIAL_SUFFIX) && file.lastModified() < expiredBefore
+                    && !running.contains(file)) {
+                Log.d(TAG, "Deleting stale " + file);
+                if (!file.delete()) {
+                    Log.w(TAG, "Could not delete " + file);
+                }
+            }
+        }
+    }
+
+    // Helpers
+
+    private static void deletePartFile(IncomingTransfer transfer) {
+        if (!transfer.partFile.delete()) {
+            Log.w(TAG, "Could not delete " + transfer.partFile);
+        }
+    }
+
+    private void postProgress(Link link, String name, int percent) {
+        mHandler.obtainMessage(Constants.MESSAGE_FILE_PROGRESS, percent,
+                link.getConnectionId(), name).sendToTarget();
+    }
+
+    private void postToast(String text) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.TOAST, text);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
+    /**
+     * Keep only the last path segment of a name sent by the peer.
+     */
+    private static String sanitizeName(String name) {
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        if (name.length() == 0 || name.equals(".") || name.equals("..")) {
+            return "received";
+        }
+        return name;
+    }
+
+    private static File uniqueFile(File directory, String name) {
+        File file = new File(directory, name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; file.exists(); i++) {
+            file = new File(directory, base + " (" + i + ")" + extension);
+        }
+        return file;
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of transfer file failed", e);
+        }
+    }
+
+    private static byte[] idPayload(long id) {
+        byte[] payload = new byte[8];
+        BigEndian.writeLong(payload, 0, id);
+        return payload;
+    }
+
+    private static byte[] offsetPayload(long id, long offset) {
+        byte[] payload = new byte[OFFSET_HEADER_LENGTH];
+        BigEndian.writeLong(payload, 0, id);
+        BigEndian.writeLong(payload, 8, offset);
+        return payload;
+    }
+
+    /**
+     * A file being sent. Guarded by the manager's lock.
+     */
+    private static final class OutgoingTransfer {
+        final long id;
+        final String address;
+        final File file;
+        // The name the receiver saves the file under
+        final String name;
+        // Whether the file is a copy, deleted once no transfer uses it any more
+        final boolean deleteWhenDone;
+        final long length;
+        // The connection currently sending the file, or null while waiting for one
+        Link owner;
+        // Whether the receiver answered the offer made over the current connection
+        boolean resumed;
+        // Bytes the receiver has checked, and the offset of the next chunk to queue
+        long acked;
+        long next;
+        // When the receiver last acknowledged bytes, or the first unacknowledged chunk was queued
+        long ackedAtMillis;
+        // Last percentage reported to the UI
+        int progress = -1;
+        boolean finished;
+
+        OutgoingTransfer(long id, String address, File file, String name,
+                         boolean deleteWhenDone) {
+            this.id = id;
+            this.address = address;
+            this.file = file;
+            this.name = name;
+            this.deleteWhenDone = deleteWhenDone;
+            this.length = file.length();
+        }
+    }
+
+    /**
+     * A file being received. Only touched by the reading thread of its connection.
+     */
+    private static final class IncomingTransfer {
+        final long id;
+        final Link link;
+        final String name;
+        final long length;
+        final File partFile;
+        final RandomAccessFile file;
+        final CRC32 crc = new CRC32();
+        long offset;
+        // Last percentage reported to the UI
+        int progress = -1;
+
+        IncomingTransfer(long id, Link link, String name, long length, File partFile,
+                         RandomAccessFile file, long offset) {
+            this.id = id;
+            this.link = link;
+            this.name = name;
+            this.length = length;
+            this.partFile = partFile;
+            this.file = file;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * This thread sends the files queued for one connection, one after the other.
+     */
+    private class SenderThread extends Thread {
+        private final Link mmLink;
+        private final CRC32 mmCrc = new CRC32();
+
+        SenderThread(Link link) {
+            mmLink = link;
+        }
+
+        public void run() {
+            setName("FileSenderThread" + mmLink.getConnectionId());
+            try {
+                while (true) {
+                    send(takeOutgoing(mmLink));
+                }
+            } catch (InterruptedException e) {
+                // The connection has ended
+            }
+        }
+
+        private void send(OutgoingTransfer transfer) throws InterruptedException {
+            byte[] name;
+            RandomAccessFile file;
+            try {
+                name = transfer.name.getBytes("UTF-8");
+                file = new RandomAccessFile(transfer.file, "r");
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read " + transfer.file, e);
+                abort(transfer);
+                return;
+            }
+            try {
+                byte[] offer = new byte[OFFSET_HEADER_LENGTH + name.length];
+                BigEndian.writeLong(offer, 0, transfer.id);
+                BigEndian.writeLong(offer, 8, transfer.length);
+                System.arraycopy(name, 0, offer, OFFSET_HEADER_LENGTH, name.length);
+                mmLink.sendControl(FrameProtocol.TYPE_FILE_OFFER, offer);
+
+                long offset;
+                while ((offset = nextChunk(transfer)) >= 0) {
+                    int length = (int) Math.min(CHUNK_SIZE, transfer.length - offset);
+                    byte[] chunk = new byte[CHUNK_HEADER_LENGTH + length];
+                    BigEndian.writeLong(chunk, 0, transfer.id);
+                    BigEndian.writeLong(chunk, 8, offset);
+                    file.seek(offset);
+                    file.readFully(chunk, CHUNK_HEADER_LENGTH, length);
+                    mmCrc.reset();
+                    mmCrc.update(chunk, CHUNK_HEADER_LENGTH, length);
+                    BigEndian.writeInt(chunk, 16, (int) mmCrc.getValue());
+                    mmLink.sendBulk(FrameProtocol.TYPE_FILE_CHUNK, chunk);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read " + transfer.file, e);
+                abort(transfer);
+            } finally {
+                closeQuietly(file);
+            }
+        }
+
+        private void abort(OutgoingTransfer transfer) {
+            mmLink.sendControl(FrameProtocol.TYPE_FILE_CANCEL, idPayload(transfer.id));
+            synchronized (FileTransferManager.this) {
+                transfer.finished = true;
+                mOutgoing.remove(transfer);
+                releaseFile(transfer);
+            }
+            postToast("Could not send " + transfer.name);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Defines the wire format used by {@link BluetoothChatService} on a connected socket.
+ *
+ * <p>Every frame starts with a fixed size header made of a big-endian payload length followed
+ * by a single frame type byte. The payload follows immediately after the header.</p>
+ *
+ * <p>Each side starts by sending a {@link #TYPE_HELLO} frame listing the codecs it can decode.
+ * Once a side has seen the peer's hello it may compress message payloads with a codec both
+ * sides offered, marking those frames with {@link #FLAG_COMPRESSED}. Peers that predate the
+ * hello ignore it as an unknown frame type and keep receiving uncompressed messages.</p>
+ *
+ * <p>The hello also names the sending service instance. Each side answers with a
+ * {@link #TYPE_SESSION_RESUME} giving how many messages it has received from that instance, so
+ * after a reconnect the sender replays only the messages the peer is missing.</p>
+ *
+ * <p>Peers that sent a version 3 hello answer every {@link #TYPE_PING} with a
+ * {@link #TYPE_PONG} echoing its payload, which measures the round-trip time of the link.</p>
+ *
+ * <p>Peers that sent a version 4 hello also read {@link #TYPE_RELAY} frames: chat messages that
+ * may have come from a device several hops away, and that a relaying peer forwards to its
+ * other peers. Relay frames are counted by sessions like plain messages.</p>
+ */
+interface FrameProtocol {
+
+    // Size of the frame header: int length + byte type
+    int HEADER_LENGTH = 5;
+
+    // Largest payload accepted on the wire. Longer frames are treated as a protocol error.
+    int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    // Frame types
+    int TYPE_MESSAGE = 1;
+    int TYPE_HELLO = 2;     // codec offer, sent once by each side when the connection starts
+
+    // File transfer frame types, all starting with the sender's long transfer id
+    int TYPE_FILE_OFFER = 3;   // id, long length, UTF-8 file name
+    int TYPE_FILE_RESUME = 4;  // id, long offset to send from; also used to ask for a resend
+    int TYPE_FILE_CHUNK = 5;   // id, long offset, int CRC-32 of the data, data
+    int TYPE_FILE_ACK = 6;     // id, long number of bytes received and checked so far
+    int TYPE_FILE_CANCEL = 7;  // id; either side gives up on the transfer
+
+    // Session frame types, carrying the number of messages received in the session so far
+    int TYPE_SESSION_RESUME = 8;  // answer to the peer's hello; unacknowledged messages follow
+    int TYPE_SESSION_ACK = 9;     // sent every few messages so the sender can forget them
+
+    // Link probes, carrying the long send time of the ping on the sender's clock
+    int TYPE_PING = 10;
+    int TYPE_PONG = 11;  // the payload of the ping being answered
+
+    // A message relayed through the mesh: long origin service instance id, int origin sequence
+    // number, byte hops it may still take, byte hops taken, int estimated microseconds spent
+    // on the way, then the message
+    int TYPE_RELAY = 12;
+    int RELAY_HEADER_LENGTH = 18;
+
+    // Set on the type byte when the payload is compressed with the negotiated codec
+    int FLAG_COMPRESSED = 0x80;
+
+    // Version of the hello payload: byte version + byte bitmask of supported codecs, then since
+    // version 2 the long id of the sender's service instance, which identifies its sessions.
+    // Since version 3 the sender answers pings, and since version 4 it reads relay frames.
+    int HELLO_VERSION = 4;
+    int HELLO_VERSION_PING = 3;
+    int HELLO_VERSION_RELAY = 4;
+    int HELLO_LENGTH = 2;
+    int HELLO_SESSION_LENGTH = 10;
+
+    // Codec bits offered in a hello frame
+    int CODEC_DEFLATE = 1;  // raw deflate primed with DeflateCodec's preset dictionary
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Reads {@link FrameProtocol} frames from a stream. Each payload is read into a buffer borrowed
+ * from a {@link BufferPool}; the caller becomes the owner of that buffer and must release it
+ * once the payload has been consumed.
+ *
+ * <p>A reader is meant to be used by a single thread.</p>
+ */
+class FrameReader {
+    private final InputStream mInStream;
+    private final BufferPool mBufferPool;
+    private final byte[] mHeader = new byte[FrameProtocol.HEADER_LENGTH];
+    // Decompresses payloads flagged as compressed; null if no codec was offered to the peer
+    private DeflateCodec mCodec;
+    private int mType;
+    private int mLength;
+    private long mBytesRead;
+
+    FrameReader(InputStream inStream, BufferPool bufferPool) {
+        mInStream = inStream;
+        mBufferPool = bufferPool;
+    }
+
+    /**
+     * Block until a whole frame has been read. Compressed payloads are decompressed, so the
+     * caller sees the type and payload the peer originally sent.
+     *
+     * @return A pooled buffer holding the payload in its first {@link #getLength()} bytes
+     * @throws IOException if the stream fails, ends, or carries a malformed frame
+     */
+    byte[] readFrame() throws IOException {
+        readFully(mHeader, 0, FrameProtocol.HEADER_LENGTH);
+        int length = ((mHeader[0] & 0xff) << 24)
+                | ((mHeader[1] & 0xff) << 16)
+                | ((mHeader[2] & 0xff) << 8)
+                | (mHeader[3] & 0xff);
+        if (length < 0 || length > FrameProtocol.MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        byte[] buffer = mBufferPool.acquire(length);
+        try {
+            readFully(buffer, 0, length);
+        } catch (IOException e) {
+            mBufferPool.release(buffer);
+            throw e;
+        }
+        mBytesRead += FrameProtocol.HEADER_LENGTH + length;
+        int type = mHeader[4] & 0xff;
+        if ((type & FrameProtocol.FLAG_COMPRESSED) != 0) {
+            int compressedLength = length;
+            try {
+                if (mCodec == null) {
+                    throw new ProtocolException("Compressed frame without a codec");
+                }
+                length = mCodec.decompress(buffer, 0, compressedLength);
+            } finally {
+                mBufferPool.release(buffer);
+            }
+            buffer = mBufferPool.acquire(length);
+            System.arraycopy(mCodec.getDecompressedBuffer(), 0, buffer, 0, length);
+            type &= ~FrameProtocol.FLAG_COMPRESSED;
+        }
+        mType = type;
+        mLength = length;
+        return buffer;
+    }
+
+    /**
+     * Accept compressed frames from now on. Must be set before the peer is offered the codec.
+     */
+    void setCodec(DeflateCodec codec) {
+        mCodec = codec;
+    }
+
+    /**
+     * Return the type of the last frame read.
+     */
+    int getType() {
+        return mType;
+    }
+
+    /**
+     * Return the payload length of the last frame read.
+     */
+    int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Return the number of bytes read from the stream so far, before decompression.
+     */
+    long getBytesRead() {
+        return mBytesRead;
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int bytes = mInStream.read(buffer, offset, length);
+            if (bytes < 0) {
+                throw new EOFException("Stream closed");
+            }
+            offset += bytes;
+            length -= bytes;
+        }
+    }
+}
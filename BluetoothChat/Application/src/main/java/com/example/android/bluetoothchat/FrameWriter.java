@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes {@link FrameProtocol} frames to a stream. Header and payload are staged in a buffer
+ * so that a small frame reaches the socket in a single write when {@link #flush()} is called.
+ *
+ * <p>A writer is not thread safe; callers must serialize access to it.</p>
+ */
+class FrameWriter {
+    // Size of the staging buffer in front of the socket
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final OutputStream mOutStream;
+    private final byte[] mHeader = new byte[FrameProtocol.HEADER_LENGTH];
+    // Compresses message payloads once the peer has agreed to a codec; null until then
+    private volatile DeflateCodec mCodec;
+    private long mBytesWritten;
+
+    FrameWriter(OutputStream outStream) {
+        mOutStream = new BufferedOutputStream(outStream, BUFFER_SIZE);
+    }
+
+    /**
+     * Append a frame to the stream. The frame may stay buffered until {@link #flush()}.
+     *
+     * @param type   The frame type
+     * @param buffer The payload bytes
+     * @param offset Offset of the payload in the buffer
+     * @param length Length of the payload
+     */
+    void writeFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+        if (length > FrameProtocol.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Frame payload too long: " + length);
+        }
+        DeflateCodec codec = mCodec;
+        if (codec != null
+                && (type == FrameProtocol.TYPE_MESSAGE || type == FrameProtocol.TYPE_RELAY)) {
+            int compressed = codec.compress(buffer, offset, length);
+            if (compressed >= 0) {
+                type |= FrameProtocol.FLAG_COMPRESSED;
+                buffer = codec.getCompressedBuffer();
+                offset = 0;
+                length = compressed;
+            }
+        }
+        mHeader[0] = (byte) (length >>> 24);
+        mHeader[1] = (byte) (length >>> 16);
+        mHeader[2] = (byte) (length >>> 8);
+        mHeader[3] = (byte) length;
+        mHeader[4] = (byte) type;
+        mOutStream.write(mHeader, 0, FrameProtocol.HEADER_LENGTH);
+        mOutStream.write(buffer, offset, length);
+        mBytesWritten += FrameProtocol.HEADER_LENGTH + length;
+    }
+
+    /**
+     * Compress message payloads from now on. May be called from any thread.
+     *
+     * @param codec The codec the peer agreed to, or null to stop compressing
+     */
+    void setCodec(DeflateCodec codec) {
+        mCodec = codec;
+    }
+
+    /**
+     * Return the number of bytes written to the stream so far, after compression.
+     */
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Push any buffered frames to the underlying stream.
+     */
+    void flush() throws IOException {
+        mOutStream.flush();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Link quality counters for one remote device. They are kept across reconnects, so that a
+ * device whose connection keeps dropping shows it, and updated by the threads of whichever
+ * connection to the device is live.
+ */
+class LinkCounters {
+
+    // Length of the windows the byte rates are averaged over
+    private static final int THROUGHPUT_WINDOW_SECONDS = 5;
+
+    // Weight of a new round-trip sample in the smoothed value, as for TCP's SRTT
+    private static final int RTT_SMOOTHING = 8;
+
+    // Bytes on the wire, after compression, with their recent rates
+    final ThroughputMeter sendMeter = new ThroughputMeter(THROUGHPUT_WINDOW_SECONDS);
+    final ThroughputMeter receiveMeter = new ThroughputMeter(THROUGHPUT_WINDOW_SECONDS);
+
+    final AtomicLong messagesSent = new AtomicLong();
+    final AtomicLong messagesReceived = new AtomicLong();
+    // Socket writes slow enough to show the link pushing back
+    final AtomicLong writeStalls = new AtomicLong();
+    // Connections lost because reading failed
+    final AtomicLong readErrors = new AtomicLong();
+    // Lost connections that were restored
+    final AtomicLong reconnects = new AtomicLong();
+    final AtomicLong pingsSent = new AtomicLong();
+    final AtomicLong pongsReceived = new AtomicLong();
+
+    // Round-trip times, in nanoseconds; zero until the first pong
+    private long mLastRttNanos;
+    private long mMinRttNanos;
+    private long mSmoothedRttNanos;
+
+    /**
+     * Account for the answer to a ping.
+     *
+     * @param rttNanos Time between sending the ping and reading the pong
+     */
+    synchronized void onPong(long rttNanos) {
+        pongsReceived.incrementAndGet();
+        mLastRttNanos = rttNanos;
+        if (mMinRttNanos == 0 || rttNanos < mMinRttNanos) {
+            mMinRttNanos = rttNanos;
+        }
+        if (mSmoothedRttNanos == 0) {
+            mSmoothedRttNanos = rttNanos;
+        } else {
+            mSmoothedRttNanos += (rttNanos - mSmoothedRttNanos) / RTT_SMOOTHING;
+        }
+    }
+
+    synchronized long getLastRttNanos() {
+        return mLastRttNanos;
+    }
+
+    synchronized long getMinRttNanos() {
+        return mMinRttNanos;
+    }
+
+    synchronized long getSmoothedRttNanos() {
+        return mSmoothedRttNanos;
+    }
+}
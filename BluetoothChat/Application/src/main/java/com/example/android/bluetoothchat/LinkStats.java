@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the health of the link to one connected device, as returned by
+ * {@link BluetoothChatService#getLinkStats()}. Counters cover every connection to the device
+ * since the service was created, not just the current one.
+ */
+public final class LinkStats {
+    private final String mAddress;
+    private final int mConnectionId;
+    private final long mConnectedMillis;
+    private final long mBytesSent;
+    private final long mBytesReceived;
+    private final long mSendBytesPerSecond;
+    private final long mReceiveBytesPerSecond;
+    private final long mMessagesSent;
+    private final long mMessagesReceived;
+    private final int mSendQueueDepth;
+    private final long mWriteStalls;
+    private final long mReadErrors;
+    private final long mReconnects;
+    private final long mPingsSent;
+    private final long mPongsReceived;
+    private final long mRttMicros;
+    private final long mLastRttMicros;
+    private final long mMinRttMicros;
+
+    LinkStats(String address, int connectionId, long connectedMillis, int sendQueueDepth,
+              LinkCounters counters) {
+        mAddress = address;
+        mConnectionId = connectionId;
+        mConnectedMillis = connectedMillis;
+        mSendQueueDepth = sendQueueDepth;
+        mBytesSent = counters.sendMeter.getTotalBytes();
+        mBytesReceived = counters.receiveMeter.getTotalBytes();
+        mSendBytesPerSecond = counters.sendMeter.getBytesPerSecond();
+        mReceiveBytesPerSecond = counters.receiveMeter.getBytesPerSecond();
+        mMessagesSent = counters.messagesSent.get();
+        mMessagesReceived = counters.messagesReceived.get();
+        mWriteStalls = counters.writeStalls.get();
+        mReadErrors = counters.readErrors.get();
+        mReconnects = counters.reconnects.get();
+        mPingsSent = counters.pingsSent.get();
+        mPongsReceived = counters.pongsReceived.get();
+        mRttMicros = TimeUnit.NANOSECONDS.toMicros(counters.getSmoothedRttNanos());
+        mLastRttMicros = TimeUnit.NANOSECONDS.toMicros(counters.getLastRttNanos());
+        mMinRttMicros = TimeUnit.NANOSECONDS.toMicros(counters.getMinRttNanos());
+    }
+
+    /**
+     * Return the address of the remote device.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Return the id of the current connection, as carried by the Handler messages.
+     */
+    public int getConnectionId() {
+        return mConnectionId;
+    }
+
+    /**
+     * Return how long the current connection has been up, in milliseconds.
+     */
+    public long getConnectedMillis() {
+        return mConnectedMillis;
+    }
+
+    /**
+     * Return the number of bytes written to the device, as sent on the wire.
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Return the number of bytes read from the device, as sent on the wire.
+     */
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /**
+     * Return the recent send rate, in bytes per second on the wire.
+     */
+    public long getSendBytesPerSecond() {
+        return mSendBytesPerSecond;
+    }
+
+    /**
+     * Return the recent receive rate, in bytes per second on the wire.
+     */
+    public long getReceiveBytesPerSecond() {
+        return mReceiveBytesPerSecond;
+    }
+
+    /**
+     * Return the number of chat messages written to the device.
+     */
+    public long getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    /**
+     * Return the number of chat messages read from the device.
+     */
+    public long getMessagesReceived() {
+        return mMessagesReceived;
+    }
+
+    /**
+     * Return the number of messages waiting to be written to the device.
+     */
+    public int getSendQueueDepth() {
+        return mSendQueueDepth;
+    }
+
+    /**
+     * Return the number of socket writes that blocked for a noticeable time because the link
+     * could not take more data.
+     */
+    public long getWriteStalls() {
+        return mWriteStalls;
+    }
+
+    /**
+     * Return the number of connections to the device lost because reading from it failed.
+     */
+    public long getReadErrors() {
+        return mReadErrors;
+    }
+
+    /**
+     * Return the number of lost connections to the device that were restored.
+     */
+    public long getReconnects() {
+        return mReconnects;
+    }
+
+    /**
+     * Return the number of pings sent to the device.
+     */
+    public long getPingsSent() {
+        return mPingsSent;
+    }
+
+    /**
+     * Return the number of pings the device answered.
+     */
+    public long getPongsReceived() {
+        return mPongsReceived;
+    }
+
+    /**
+     * Return the smoothed round-trip time, in microseconds, or 0 before the first answer to a
+     * ping.
+     */
+    public long getRttMicros() {
+        return mRttMicros;
+    }
+
+    /**
+     * Return the last round-trip time measured, in microseconds.
+     */
+    public long getLastRttMicros() {
+        return mLastRttMicros;
+    }
+
+    /**
+     * Return the shortest round-trip time measured, in microseconds.
+     */
+    public long getMinRttMicros() {
+        return mMinRttMicros;
+    }
+
+    @Override
+    public String toString() {
+        return mAddress + " #" + mConnectionId
+                + " up " + mConnectedMillis / 1000 + "s"
+                + " rtt " + millis(mRttMicros) + "ms (last " + millis(mLastRttMicros)
+                + "ms, min " + millis(mMinRttMicros) + "ms, " + mPongsReceived + "/" + mPingsSent
+                + " pings answered)"
+                + " out " + mMessagesSent + " msgs " + mBytesSent + " B " + mSendBytesPerSecond
+                + " B/s"
+                + " in " + mMessagesReceived + " msgs " + mBytesReceived + " B "
+                + mReceiveBytesPerSecond + " B/s"
+                + " queued " + mSendQueueDepth
+                + " stalls " + mWriteStalls
+                + " read errors " + mReadErrors
+                + " reconnects " + mReconnects;
+    }
+
+    private static String millis(long micros) {
+        return micros / 1000 + "." + micros % 1000 / 100;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A snapshot of what this device's relay mesh carried, as returned by
+ * {@link BluetoothChatService#getMeshStats()}. Counters cover the whole life of the service.
+ */
+public final class MeshStats {
+    private final long mOriginated;
+    private final long mDelivered;
+    private final long mDuplicates;
+    private final long mForwarded;
+    private final long mExpired;
+    private final long mMissing;
+    private final long mTotalHops;
+    private final long mTotalPathMicros;
+
+    MeshStats(long originated, long delivered, long duplicates, long forwarded, long expired,
+              long missing, long totalHops, long totalPathMicros) {
+        mOriginated = originated;
+        mDelivered = delivered;
+        mDuplicates = duplicates;
+        mForwarded = forwarded;
+        mExpired = expired;
+        mMissing = missing;
+        mTotalHops = totalHops;
+        mTotalPathMicros = totalPathMicros;
+    }
+
+    /**
+     * Return the number of messages this device sent into the mesh.
+     */
+    public long getOriginated() {
+        return mOriginated;
+    }
+
+    /**
+     * Return the number of relayed messages from other devices delivered here, each once.
+     */
+    public long getDelivered() {
+        return mDelivered;
+    }
+
+    /**
+     * Return the number of copies of relayed messages dropped because they were already seen.
+     */
+    public long getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * Return the number of message copies queued for other peers on behalf of another device.
+     */
+    public long getForwarded() {
+        return mForwarded;
+    }
+
+    /**
+     * Return the number of messages not forwarded because they had used up their hops.
+     */
+    public long getExpired() {
+        return mExpired;
+    }
+
+    /**
+     * Return the number of messages from devices heard from recently that never arrived, as
+     * told by the gaps in their sequence numbers.
+     */
+    public long getMissing() {
+        return mMissing;
+    }
+
+    /**
+     * Return the share of messages from devices heard from recently that arrived, between 0
+     * and 1, or 1 if nothing was expected.
+     */
+    public double getDeliveryRatio() {
+        long expected = mDelivered + mMissing;
+        return expected == 0 ? 1 : (double) mDelivered / expected;
+    }
+
+    /**
+     * Return the average number of links a delivered message crossed.
+     */
+    public double getAverageHops() {
+        return mDelivered == 0 ? 0 : (double) mTotalHops / mDelivered;
+    }
+
+    /**
+     * Return the estimated average time a message takes to cross one link, in microseconds.
+     * Each link is taken to cost half the round-trip time measured by its pings.
+     */
+    public long getHopLatencyMicros() {
+        return mTotalHops == 0 ? 0 : mTotalPathMicros / mTotalHops;
+    }
+
+    @Override
+    public String toString() {
+        return "mesh out " + mOriginated
+                + " in " + mDelivered + " (" + Math.round(getDeliveryRatio() * 100)
+                + "% delivered, " + mMissing + " missing)"
+                + " hops " + Math.round(getAverageHops() * 10) / 10.0
+                + " hop latency " + millis(getHopLatencyMicros()) + "ms"
+                + " forwarded " + mForwarded
+                + " duplicates " + mDuplicates
+                + " expired " + mExpired;
+    }
+
+    private static String millis(long micros) {
+        return micros / 1000 + "." + micros % 1000 / 100;
+    }
+}
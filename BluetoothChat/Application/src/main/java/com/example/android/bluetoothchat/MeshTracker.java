@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the relayed messages seen from each origin in the mesh, so that every message
+ * is delivered once however many paths it arrives by, and counts what the mesh delivered.
+ *
+ * <p>Messages are identified by the origin's service instance id and a sequence number the
+ * origin increments for every message. For each origin the tracker remembers the highest
+ * sequence number seen and which of the {@value #WINDOW} before it were seen, so copies that
+ * took a longer path are recognized. Anything older than that window counts as a duplicate.
+ * A copy that arrives with more hops left than the first one, because the first took a longer
+ * path, is forwarded again so that it reaches as far as it is allowed to.</p>
+ *
+ * <p>The gaps in each origin's sequence numbers give the messages the mesh failed to deliver,
+ * from the first message seen from that origin on.</p>
+ */
+class MeshTracker {
+    // What to do with a relayed message, as returned by onReceived()
+    static final int NEW = 0;        // deliver it and forward it
+    static final int DUPLICATE = 1;  // drop it
+    static final int FURTHER = 2;    // seen, but this copy may go further: forward it only
+
+    // Sequence numbers below the highest one seen that are still told apart
+    static final int WINDOW = 64;
+
+    // Origins remembered, least recently heard from first
+    private static final int MAX_ORIGINS = 64;
+
+    private final Map<Long, Origin> mOrigins =
+            new LinkedHashMap<Long, Origin>(MAX_ORIGINS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Origin> eldest) {
+                    return size() > MAX_ORIGINS;
+                }
+            };
+
+    private long mOriginated;
+    private long mDelivered;
+    private long mDuplicates;
+    private long mForwarded;
+    private long mExpired;
+    private long mTotalHops;
+    private long mTotalPathMicros;
+
+    /**
+     * Sequence numbers seen from one origin.
+     */
+    private static final class Origin {
+        int first;
+        int highest;
+        // Bit i is set if the message numbered highest - i was seen
+        long seen;
+        // Most hops left on a copy of each message in the window, by sequence number
+        final byte[] hopsLeft = new byte[WINDOW];
+        long delivered;
+    }
+
+    /**
+     * Account for a message this device sent into the mesh.
+     */
+    synchronized void onOriginated() {
+        mOriginated++;
+    }
+
+    /**
+     * Account for a relayed message read from a peer.
+     *
+     * @param origin     The service instance id of the device that wrote the message
+     * @param sequence   The origin's sequence number of the message
+     * @param hops       The number of links the message crossed to get here
+     * @param hopsLeft   The number of links the message may still cross
+     * @param pathMicros The estimated time the message took to get here, in microseconds
+     * @return {@link #NEW}, {@link #DUPLICATE} or {@link #FURTHER}
+     */
+    synchronized int onReceived(long origin, int sequence, int hops, int hopsLeft,
+                                long pathMicros) {
+        int slot = sequence & (WINDOW - 1);
+        Origin o = mOrigins.get(origin);
+        if (o == null) {
+            o = new Origin();
+            o.first = sequence;
+            o.highest = sequence;
+            o.seen = 1;
+            mOrigins.put(origin, o);
+        } else {
+            // Differences, rather than comparisons, survive the sequence number wrapping
+            int ahead = sequence - o.highest;
+            if (ahead > 0) {
+                o.seen = ahead >= WINDOW ? 1 : (o.seen << ahead) | 1;
+                o.highest = sequence;
+            } else if (-ahead >= WINDOW) {
+                mDuplicates++;
+                return DUPLICATE;
+            } else if ((o.seen & (1L << -ahead)) != 0) {
+                mDuplicates++;
+                if (hopsLeft > (o.hopsLeft[slot] & 0xff)) {
+                    o.hopsLeft[slot] = (byte) hopsLeft;
+                    return FURTHER;
+                }
+                return DUPLICATE;
+            } else {
+                o.seen |= 1L << -ahead;
+                if (sequence - o.first < 0) {
+                    // Overtaken by a later message on a shorter path
+                    o.first = sequence;
+                }
+            }
+        }
+        o.hopsLeft[slot] = (byte) hopsLeft;
+        o.delivered++;
+        mDelivered++;
+        mTotalHops += hops;
+        mTotalPathMicros += pathMicros;
+        return NEW;
+    }
+
+    /**
+     * Account for a message dropped as a duplicate before reaching the tracker, such as one of
+     * this device's own messages coming back.
+     */
+    synchronized void onDuplicate() {
+        mDuplicates++;
+    }
+
+    /**
+     * Account for copies of a message queued for other peers.
+     */
+    synchronized void onForwarded(int copies) {
+        mForwarded += copies;
+    }
+
+    /**
+     * Account for a message not forwarded because it used up its hops.
+     */
+    synchronized void onExpired() {
+        mExpired++;
+    }
+
+    synchronized MeshStats getStats() {
+        long missing = 0;
+        for (Origin o : mOrigins.values()) {
+            missing += (o.highest - o.first) + 1L - o.delivered;
+        }
+        return new MeshStats(mOriginated, mDelivered, mDuplicates, mForwarded, mExpired,
+                missing, mTotalHops, mTotalPathMicros);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Carries received messages from the connections to the UI thread. Each connection publishes
+ * into its own {@link MessageRing}, and the UI thread drains all of them once per display
+ * frame, so a burst of messages costs the UI one wake-up and one adapter update rather than one
+ * of each per message.
+ *
+ * <p>With a {@link BluetoothChatService.MessageListener} set, every frame's messages are
+ * delivered to it followed by {@code onMessagesRead()}. Without one, each message is still
+ * posted to the Handler as {@link Constants#MESSAGE_READ}.</p>
+ */
+final class MessageDispatcher implements MessageRing.Consumer {
+
+    // Messages a connection can have waiting for the UI before its reader has to wait
+    static final int RING_CAPACITY = 1024;
+
+    // How often rings are drained where Choreographer is not available
+    private static final long FRAME_MILLIS = 16;
+
+    private final Handler mHandler;
+    private final List<MessageRing> mRings = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private volatile BluetoothChatService.MessageListener mListener;
+    // Created on the UI thread the first time a drain is scheduled
+    private FrameDrain mFrameDrain;
+
+    /**
+     * @param handler A Handler on the UI thread
+     */
+    MessageDispatcher(Handler handler) {
+        mHandler = handler;
+    }
+
+    void setListener(BluetoothChatService.MessageListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Create the ring a new connection publishes its messages into.
+     */
+    MessageRing openRing(int connectionId) {
+        MessageRing ring = new MessageRing(RING_CAPACITY, connectionId);
+        mRings.add(ring);
+        return ring;
+    }
+
+    /**
+     * Let the UI thread deliver what is left in a ring, then forget about it.
+     */
+    void closeRing(MessageRing ring) {
+        ring.close();
+        requestDrain();
+    }
+
+    /**
+     * Make sure the rings are drained on the next frame. Called by producers after publishing;
+     * only the first call in a frame posts anything to the UI thread.
+     */
+    void requestDrain() {
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mHandler.post(mScheduleDrain);
+        }
+    }
+
+    private final Runnable mScheduleDrain = new Runnable() {
+        @Override
+        public void run() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                if (mFrameDrain == null) {
+                    mFrameDrain = new FrameDrain(mDrain);
+                }
+                mFrameDrain.post();
+            } else {
+                mHandler.postDelayed(mDrain, FRAME_MILLIS);
+            }
+        }
+    };
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Deliver everything published so far. Runs on the UI thread.
+     */
+    private void drain() {
+        // Messages published from here on schedule another drain
+        mDrainScheduled.set(false);
+        int count = 0;
+        for (MessageRing ring : mRings) {
+            boolean closed = ring.isClosed();
+            count += ring.drainTo(this);
+            if (closed) {
+                mRings.remove(ring);
+            }
+        }
+        BluetoothChatService.MessageListener listener = mListener;
+        if (count > 0 && listener != null) {
+            listener.onMessagesRead();
+        }
+    }
+
+    @Override
+    public void onMessage(byte[] buffer, int length, int connectionId) {
+        BluetoothChatService.MessageListener listener = mListener;
+        if (listener != null) {
+            listener.onMessageRead(buffer, length, connectionId);
+        } else {
+            mHandler.obtainMessage(Constants.MESSAGE_READ, length, connectionId, buffer)
+                    .sendToTarget();
+        }
+    }
+
+    /**
+     * Runs a drain at the start of the next display frame. Kept apart so that the Choreographer
+     * classes are only loaded where they exist.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static final class FrameDrain implements Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+        private final Runnable mDrain;
+
+        FrameDrain(Runnable drain) {
+            mDrain = drain;
+        }
+
+        void post() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mDrain.run();
+        }
+    }
+}
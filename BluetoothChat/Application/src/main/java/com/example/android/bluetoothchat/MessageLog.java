@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * An append-only log of the messages exchanged with one remote device, kept in two
+ * memory-mapped files: the records themselves, and an index holding the offset of every
+ * record so that any page of the conversation can be read without scanning the log.
+ *
+ * <p>A record is committed by bumping the count at the head of the index after the record and
+ * its offset have been written, so a process killed halfway through an append leaves the log as
+ * it was before. Appends are not forced to storage one by one: {@link #sync()} forces all of
+ * them at once, then records how many are known to be on storage. When the log is opened, only
+ * the records committed after that are checked, since a device losing power may have written
+ * the count of those before the records themselves.</p>
+ */
+class MessageLog {
+    // Debugging
+    private static final String TAG = "MessageLog";
+
+    // Directions of a message
+    static final int DIRECTION_IN = 0;
+    static final int DIRECTION_OUT = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Sizes the files are first mapped with; mappings double as the log grows
+    private static final int INITIAL_LOG_CAPACITY = 64 * 1024;
+    private static final int INITIAL_INDEX_CAPACITY = 8 * 1024;
+
+    // Index layout: the committed record count, the count of those known to be on storage, then
+    // the offset of each record
+    private static final int SYNCED_COUNT_OFFSET = 8;
+    private static final int INDEX_HEADER_LENGTH = 16;
+    private static final int INDEX_ENTRY_LENGTH = 8;
+
+    // Record layout: length of the rest of the record, direction, time in milliseconds,
+    // sender length, sender bytes, then the text bytes
+    private static final int RECORD_HEADER_LENGTH = 4 + 1 + 8 + 2;
+
+    /**
+     * One message read back from the log.
+     */
+    static final class Entry {
+        final int direction;
+        final long timeMillis;
+        final String sender;
+        final String text;
+
+        Entry(int direction, long timeMillis, String sender, String text) {
+            this.direction = direction;
+            this.timeMillis = timeMillis;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private final RandomAccessFile mLogFile;
+    private final RandomAccessFile mIndexFile;
+    private MappedByteBuffer mLog;
+    private MappedByteBuffer mIndex;
+    private int mCount;
+    private int mEnd;
+    // Records forced to storage by the last sync()
+    private int mSyncedCount;
+
+    /**
+     * Open the log kept for a device, creating it if needed.
+     *
+     * @param directory The directory holding the logs of all devices
+     * @param address   The address of the remote device
+     */
+    static MessageLog open(File directory, String address) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        String name = address.replaceAll("[^0-9A-Za-z.-]", "_");
+        return new MessageLog(new File(directory, name + ".log"),
+                new File(directory, name + ".idx"));
+    }
+
+    MessageLog(File logFile, File indexFile) throws IOException {
+        mLogFile = new RandomAccessFile(logFile, "rw");
+        mIndexFile = new RandomAccessFile(indexFile, "rw");
+        try {
+            mIndex = map(mIndexFile, Math.max(mIndexFile.length(), INITIAL_INDEX_CAPACITY));
+            mLog = map(mLogFile, Math.max(mLogFile.length(), INITIAL_LOG_CAPACITY));
+            recover();
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    /**
+     * Find the committed records. Those known to be on storage are kept as they are; after
+     * them, the longest run of whole records each starting where the one before it ends is
+     * kept, and any record after a gap or an unreadable one is dropped.
+     */
+    private void recover() {
+        long count = mIndex.getLong(0);
+        long maxCount = (mIndex.capacity() - INDEX_HEADER_LENGTH) / INDEX_ENTRY_LENGTH;
+        int committed = (int) Math.max(0, Math.min(count, maxCount));
+        mCount = (int) Math.max(0, Math.min(mIndex.getLong(SYNCED_COUNT_OFFSET), committed));
+        mEnd = 0;
+        if (mCount > 0) {
+            long end = recordEnd(offsetOf(mCount - 1));
+            if (end < 0) {
+                Log.w(TAG, "Synced messages are unreadable, checking all of them");
+                mCount = 0;
+            } else {
+                mEnd = (int) end;
+            }
+        }
+        mSyncedCount = mCount;
+        while (mCount < committed) {
+            long offset = offsetOf(mCount);
+            long end = offset == mEnd ? recordEnd(offset) : -1;
+            if (end < 0) {
+                Log.w(TAG, "Dropping " + (committed - mCount) + " unreadable messages");
+                break;
+            }
+            mEnd = (int) end;
+            mCount++;
+        }
+        if (mCount != count) {
+            mIndex.putLong(0, mCount);
+        }
+        if (mSyncedCount != mIndex.getLong(SYNCED_COUNT_OFFSET)) {
+            mIndex.putLong(SYNCED_COUNT_OFFSET, mSyncedCount);
+        }
+    }
+
+    /**
+     * @return The offset just past a record, or -1 if no whole record starts at the offset
+     */
+    private long recordEnd(long offset) {
+        if (offset < 0 || offset > mLog.capacity() - RECORD_HEADER_LENGTH) {
+            return -1;
+        }
+        int length = mLog.getInt((int) offset);
+        if (length < RECORD_HEADER_LENGTH - 4 || offset + 4 + length > mLog.capacity()) {
+            return -1;
+        }
+        return offset + 4 + length;
+    }
+
+    /**
+     * @return The number of messages in the log
+     */
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Append a message to the log. It is committed once this returns, but only on storage once
+     * {@link #sync()} is called.
+     *
+     * @param direction  {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}
+     * @param timeMillis When the message was sent or received
+     * @param sender     The name of the sender, empty for our own messages
+     * @param text       The message
+     */
+    synchronized void append(int direction, long timeMillis, String sender, String text)
+            throws IOException {
+        byte[] senderBytes = sender.getBytes(UTF_8);
+        byte[] textBytes = text.getBytes(UTF_8);
+        int senderLength = Math.min(senderBytes.length, 0xffff);
+        long recordLength = (long) RECORD_HEADER_LENGTH + senderLength + textBytes.length;
+        if (mEnd + recordLength > Integer.MAX_VALUE) {
+            throw new IOException("Message log is full");
+        }
+        ensureLogCapacity(mEnd + (int) recordLength);
+        ensureIndexCapacity(INDEX_HEADER_LENGTH + (mCount + 1) * INDEX_ENTRY_LENGTH);
+
+        ByteBuffer log = mLog.duplicate();
+        log.position(mEnd);
+        log.putInt((int) recordLength - 4);
+        log.put((byte) direction);
+        log.putLong(timeMillis);
+        log.putShort((short) senderLength);
+        log.put(senderBytes, 0, senderLength);
+        log.put(textBytes);
+
+        mIndex.putLong(INDEX_HEADER_LENGTH + mCount * INDEX_ENTRY_LENGTH, mEnd);
+        mCount++;
+        mEnd += (int) recordLength;
+        // Commit the record
+        mIndex.putLong(0, mCount);
+    }
+
+    /**
+     * Read a run of consecutive messages.
+     *
+     * @param from  The index of the first message
+     * @param count The number of messages to read
+     * @return The messages, oldest first
+     */
+    synchronized Entry[] read(int from, int count) {
+        if (from < 0 || count < 0 || from + count > mCount) {
+            throw new IndexOutOfBoundsException(from + "+" + count + " of " + mCount);
+        }
+        Entry[] entries = new Entry[count];
+        ByteBuffer log = mLog.duplicate();
+        for (int i = 0; i < count; i++) {
+            int offset = (int) offsetOf(from + i);
+            log.position(offset);
+            int length = log.getInt();
+            int direction = log.get();
+            long timeMillis = log.getLong();
+            int senderLength = log.getShort() & 0xffff;
+            String sender = decode(log, senderLength);
+            String text = decode(log, length - (RECORD_HEADER_LENGTH - 4) - senderLength);
+            entries[i] = new Entry(direction, timeMillis, sender, text);
+        }
+        return entries;
+    }
+
+    /**
+     * Force the messages appended so far to storage. Readers are not held up while the files
+     * are forced, but this must be called from the thread appending.
+     */
+    void sync() {
+        MappedByteBuffer log;
+        MappedByteBuffer index;
+        int count;
+        synchronized (this) {
+            if (mLog == null || mSyncedCount == mCount) {
+                return;
+            }
+            log = mLog;
+            index = mIndex;
+            count = mCount;
+        }
+        log.force();
+        index.force();
+        synchronized (this) {
+            // A mapping replaced by a growing append was not the one forced
+            if (mLog == log && mIndex == index) {
+                mSyncedCount = count;
+                // Reaches storage with the next sync, or on close
+                mIndex.putLong(SYNCED_COUNT_OFFSET, count);
+            }
+        }
+    }
+
+    /**
+     * Force the log to storage and release it.
+     */
+    synchronized void close() {
+        if (mLog == null) {
+            return;
+        }
+        sync();
+        mIndex.force();
+        mLog = null;
+        mIndex = null;
+        closeFiles();
+    }
+
+    private long offsetOf(int index) {
+        return mIndex.getLong(INDEX_HEADER_LENGTH + index * INDEX_ENTRY_LENGTH);
+    }
+
+    private void ensureLogCapacity(int capacity) throws IOException {
+        if (capacity > mLog.capacity()) {
+            mLog = map(mLogFile, grow(mLog.capacity(), capacity));
+        }
+    }
+
+    private void ensureIndexCapacity(int capacity) throws IOException {
+        if (capacity > mIndex.capacity()) {
+            mIndex = map(mIndexFile, grow(mIndex.capacity(), capacity));
+        }
+    }
+
+    private static long grow(int current, int required) {
+        return Math.max(required, Math.min((long) current * 2, Integer.MAX_VALUE));
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file, long size) throws IOException {
+        // Mapping past the end of the file extends it
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static String decode(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private void closeFiles() {
+        closeQuietly(mLogFile);
+        closeQuietly(mIndexFile);
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of message log failed", e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue of received messages with exactly one producer, the connection
+ * reading them, and one consumer, the UI thread. Slots are preallocated, so handing a message
+ * over does not allocate. The buffers are owned by whoever drains them, as with
+ * {@link Constants#MESSAGE_READ}.
+ */
+final class MessageRing {
+
+    /**
+     * Receives the messages drained from a ring.
+     */
+    interface Consumer {
+        void onMessage(byte[] buffer, int length, int connectionId);
+    }
+
+    private final int mConnectionId;
+    private final int mMask;
+    private final byte[][] mBuffers;
+    private final int[] mLengths;
+    // Index of the next slot to read, written only by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // Index of the next slot to write, written only by the producer
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile boolean mClosed;
+
+    /**
+     * @param capacity     The number of slots, a power of two
+     * @param connectionId The connection whose messages the ring carries
+     */
+    MessageRing(int capacity, int connectionId) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mConnectionId = connectionId;
+        mMask = capacity - 1;
+        mBuffers = new byte[capacity][];
+        mLengths = new int[capacity];
+    }
+
+    /**
+     * Publish a message. Called by the producer only.
+     *
+     * @return false if the ring is full
+     */
+    boolean offer(byte[] buffer, int length) {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            return false;
+        }
+        int slot = (int) tail & mMask;
+        mBuffers[slot] = buffer;
+        mLengths[slot] = length;
+        // Make the slot visible to the consumer before the new tail
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Hand every published message to a consumer. Called by the consumer only.
+     *
+     * @return The number of messages drained
+     */
+    int drainTo(Consumer consumer) {
+        long head = mHead.get();
+        long tail = mTail.get();
+        for (long i = head; i < tail; i++) {
+            int slot = (int) i & mMask;
+            byte[] buffer = mBuffers[slot];
+            mBuffers[slot] = null;
+            consumer.onMessage(buffer, mLengths[slot], mConnectionId);
+        }
+        // Free the slots for the producer
+        mHead.lazySet(tail);
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return Whether the ring holds no published messages
+     */
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    /**
+     * Mark the ring as getting no more messages. Called by the producer once it is done.
+     */
+    void close() {
+        mClosed = true;
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+}
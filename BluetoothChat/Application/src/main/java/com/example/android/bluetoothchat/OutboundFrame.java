@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A frame waiting in a connection's {@link SendQueue}.
+ */
+final class OutboundFrame {
+    // The FrameProtocol frame type
+    final int type;
+    // The payload, which must not be modified once queued
+    final byte[] payload;
+    // Whether to share the payload back to the UI with MESSAGE_WRITE once it is written
+    final boolean echo;
+
+    OutboundFrame(int type, byte[] payload, boolean echo) {
+        this.type = type;
+        this.payload = payload;
+        this.echo = echo;
+    }
+}
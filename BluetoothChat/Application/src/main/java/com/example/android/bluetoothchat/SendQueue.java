@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of outgoing frames between the threads calling
+ * {@link BluetoothChatService#write(byte[])} and the thread writing to the socket. What happens
+ * when the queue is full depends on the backpressure policy:
+ * <ul>
+ * <li>{@link #DROP_NEWEST}: the new frame is rejected</li>
+ * <li>{@link #DROP_OLDEST}: the oldest queued frame is discarded to make room</li>
+ * <li>{@link #BLOCK}: the caller waits for room, up to a timeout</li>
+ * </ul>
+ *
+ * <p>Besides chat messages the queue holds two other lanes. Control frames, such as file
+ * transfer acknowledgements, are never dropped and go out first. Bulk frames, such as file
+ * chunks, go out last, one per batch, so that a chat message never waits behind more than one
+ * chunk.</p>
+ *
+ * <p>The message lane can be paused, while a new connection finds out which earlier messages
+ * it has to send again before any new one.</p>
+ */
+class SendQueue {
+    // Backpressure policies, exposed as BluetoothChatService.BACKPRESSURE_*
+    static final int DROP_NEWEST = 0;
+    static final int DROP_OLDEST = 1;
+    static final int BLOCK = 2;
+
+    // Bulk frames queued ahead of the writer; enough to keep the socket busy between batches
+    private static final int BULK_CAPACITY = 2;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mMessageSpace = mLock.newCondition();
+    private final Condition mBulkSpace = mLock.newCondition();
+    private final ArrayDeque<OutboundFrame> mControl = new ArrayDeque<>();
+    private final ArrayDeque<OutboundFrame> mMessages;
+    private final ArrayDeque<OutboundFrame> mBulk = new ArrayDeque<>(BULK_CAPACITY);
+    private final int mCapacity;
+    private final int mPolicy;
+    private final long mBlockTimeoutMillis;
+    private final AtomicLong mDropped = new AtomicLong();
+    private boolean mMessagesPaused;
+    // Time taken by the writer's last socket write, read by the same thread
+    private long mLastWriteNanos;
+
+    SendQueue(int capacity, int policy, long blockTimeoutMillis) {
+        mMessages = new ArrayDeque<>(capacity);
+        mCapacity = capacity;
+        mPolicy = policy;
+        mBlockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * Queue a message frame according to the backpressure policy.
+     *
+     * @return true if the frame was queued
+     */
+    boolean offer(OutboundFrame frame) {
+        mLock.lock();
+        try {
+            if (mMessages.size() >= mCapacity) {
+                switch (mPolicy) {
+                    case BLOCK:
+                        long nanos = TimeUnit.MILLISECONDS.toNanos(mBlockTimeoutMillis);
+                        try {
+                            while (mMessages.size() >= mCapacity && nanos > 0) {
+                                nanos = mMessageSpace.awaitNanos(nanos);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        while (mMessages.size() >= mCapacity) {
+                            mMessages.poll();
+                            mDropped.incrementAndGet();
+                        }
+                        break;
+                    case DROP_NEWEST:
+                    default:
+                        break;
+                }
+                if (mMessages.size() >= mCapacity) {
+                    mDropped.incrementAndGet();
+                    return false;
+                }
+            }
+            mMessages.add(frame);
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queue a control frame. Control frames are small and rare, so they are never dropped.
+     */
+    void offerControl(OutboundFrame frame) {
+        mLock.lock();
+        try {
+            mControl.add(frame);
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queue a bulk frame, waiting while the bulk lane is full.
+     */
+    void putBulk(OutboundFrame frame) throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mBulk.size() == BULK_CAPACITY) {
+                mBulkSpace.await();
+            }
+            mBulk.add(frame);
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for at least one frame, then write it and whatever else is already queued to the
+     * writer as consecutive frames, followed by a single flush. This is how a burst of small
+     * messages ends up in one socket write. Control frames come first, then messages, then at
+     * most one bulk frame.
+     *
+     * @param writer   The connection's frame writer
+     * @param batch    Receives the frames written; its length bounds the batch size
+     * @param maxBytes Stop adding frames once this many bytes have been written
+     * @return The number of frames written into {@code batch}
+     */
+    int drainTo(FrameWriter writer, OutboundFrame[] batch, int maxBytes)
+            throws InterruptedException, IOException {
+        int count = 0;
+        int bytes = 0;
+        mLock.lockInterruptibly();
+        try {
+            while (mControl.isEmpty() && (mMessagesPaused || mMessages.isEmpty())
+                    && mBulk.isEmpty()) {
+                mNotEmpty.await();
+            }
+            while (count < batch.length && bytes < maxBytes && !mControl.isEmpty()) {
+                batch[count] = mControl.poll();
+                bytes += FrameProtocol.HEADER_LENGTH + batch[count++].payload.length;
+            }
+            while (count < batch.length && bytes < maxBytes && !mMessagesPaused
+                    && !mMessages.isEmpty()) {
+                batch[count] = mMessages.poll();
+                bytes += FrameProtocol.HEADER_LENGTH + batch[count++].payload.length;
+            }
+            if (count < batch.length && (count == 0 || bytes < maxBytes) && !mBulk.isEmpty()) {
+                batch[count++] = mBulk.poll();
+                mBulkSpace.signal();
+            }
+            mMessageSpace.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        // Write outside the lock so that callers of offer() never wait on the socket
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            writer.writeFrame(batch[i].type, batch[i].payload, 0, batch[i].payload.length);
+        }
+        writer.flush();
+        mLastWriteNanos = System.nanoTime() - start;
+        return count;
+    }
+
+    /**
+     * Return how long the last {@link #drainTo} took to write and flush its batch, which grows
+     * when the link pushes back. Must be called by the thread calling drainTo.
+     */
+    long getLastWriteNanos() {
+        return mLastWriteNanos;
+    }
+
+    /**
+     * Hold back message frames until {@link #resumeMessages}. Control and bulk frames still go.
+     */
+    void pauseMessages() {
+        mLock.lock();
+        try {
+            mMessagesPaused = true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Let message frames go again, starting with the given ones.
+     *
+     * @param first Frames to send ahead of the queued messages, oldest first; they are queued
+     *              even if that takes the queue over its capacity
+     */
+    void resumeMessages(List<OutboundFrame> first) {
+        mLock.lock();
+        try {
+            for (int i = first.size() - 1; i >= 0; i--) {
+                mMessages.addFirst(first.get(i));
+            }
+            mMessagesPaused = false;
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove and return the message frames not written yet, oldest first.
+     */
+    List<OutboundFrame> drainMessages() {
+        mLock.lock();
+        try {
+            List<OutboundFrame> frames = new ArrayList<>(mMessages);
+            mMessages.clear();
+            mMessageSpace.signalAll();
+            return frames;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of message frames waiting to be written.
+     */
+    int size() {
+        mLock.lock();
+        try {
+            return mMessages.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of frames rejected or discarded because the queue was full.
+     */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+}
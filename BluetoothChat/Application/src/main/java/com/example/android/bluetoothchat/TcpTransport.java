@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+/**
+ * A {@link ChatTransport} over TCP sockets, for running the chat service against a local peer
+ * on a plain JVM or an emulator. Addresses have the form {@code host:port}. The secure and
+ * insecure listeners are bound to two separate ports; TCP itself adds no security.
+ */
+public class TcpTransport implements ChatTransport {
+
+    // How long an outgoing connection may take before it fails
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private final InetAddress mBindAddress;
+    private final int mSecurePort;
+    private final int mInsecurePort;
+
+    /**
+     * @param bindAddress  The local address to listen on
+     * @param securePort   The port of the secure listener
+     * @param insecurePort The port of the insecure listener
+     */
+    public TcpTransport(InetAddress bindAddress, int securePort, int insecurePort) {
+        mBindAddress = bindAddress;
+        mSecurePort = securePort;
+        mInsecurePort = insecurePort;
+    }
+
+    /**
+     * Return a transport listening on the loopback interface.
+     */
+    public static TcpTransport loopback(int securePort, int insecurePort)
+            throws UnknownHostException {
+        return new TcpTransport(InetAddress.getByName("127.0.0.1"), securePort, insecurePort);
+    }
+
+    @Override
+    public Listener listen(boolean secure) throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(mBindAddress,
+                secure ? mSecurePort : mInsecurePort));
+        return new Listener() {
+            @Override
+            public Channel accept() throws IOException {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                return new TcpChannel(socket, null,
+                        socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel createChannel(String address, boolean secure) throws IOException {
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IOException("Expected host:port, got " + address);
+        }
+        InetSocketAddress remote;
+        try {
+            remote = new InetSocketAddress(address.substring(0, separator),
+                    Integer.parseInt(address.substring(separator + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid address " + address, e);
+        }
+        return new TcpChannel(new Socket(), remote, address);
+    }
+
+    @Override
+    public void cancelDiscovery() {
+        // Nothing to cancel
+    }
+
+    private static class TcpChannel implements Channel {
+        private final Socket mSocket;
+        private final InetSocketAddress mRemote;
+        private final String mAddress;
+
+        TcpChannel(Socket socket, InetSocketAddress remote, String address) {
+            mSocket = socket;
+            mRemote = remote;
+            mAddress = address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!mSocket.isConnected()) {
+                mSocket.connect(mRemote, CONNECT_TIMEOUT_MILLIS);
+                mSocket.setTcpNoDelay(true);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
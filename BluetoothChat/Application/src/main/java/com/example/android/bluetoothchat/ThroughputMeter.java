@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Measures a byte rate over a sliding window made of fixed one second slots. Recording and
+ * querying are cheap and allocation free, and may happen on different threads.
+ */
+class ThroughputMeter {
+    private static final long SLOT_NANOS = 1000000000L;
+
+    private final long[] mSlotBytes;
+    private final long[] mSlotIndex;
+    private long mTotalBytes;
+
+    /**
+     * @param windowSeconds Length of the sliding window, in seconds
+     */
+    ThroughputMeter(int windowSeconds) {
+        mSlotBytes = new long[windowSeconds];
+        mSlotIndex = new long[windowSeconds];
+    }
+
+    /**
+     * Account for bytes transferred now.
+     */
+    synchronized void record(long bytes) {
+        long slot = System.nanoTime() / SLOT_NANOS;
+        // nanoTime() may be negative, and so may the remainder
+        int i = (int) (slot % mSlotBytes.length);
+        if (i < 0) {
+            i += mSlotBytes.length;
+        }
+        if (mSlotIndex[i] != slot) {
+            mSlotIndex[i] = slot;
+            mSlotBytes[i] = 0;
+        }
+        mSlotBytes[i] += bytes;
+        mTotalBytes += bytes;
+    }
+
+    /**
+     * Return the average rate over the completed slots of the window, in bytes per second.
+     */
+    synchronized long getBytesPerSecond() {
+        long current = System.nanoTime() / SLOT_NANOS;
+        long bytes = 0;
+        for (int i = 0; i < mSlotBytes.length; i++) {
+            long age = current - mSlotIndex[i];
+            if (age > 0 && age <= mSlotBytes.length) {
+                bytes += mSlotBytes[i];
+            }
+        }
+        return bytes / mSlotBytes.length;
+    }
+
+    /**
+     * Return the number of bytes recorded since the meter was created.
+     */
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes every frame read or written by the connections of a {@link BluetoothChatService} to a
+ * capture file, which {@link TrafficReplayer} can play back. Frames are captured as the service
+ * sees them: payloads read are captured after decompression, and payloads written before it.
+ *
+ * <p>The file starts with the int {@link #MAGIC}, a byte {@link #VERSION} and the long wall
+ * clock time of the start of the capture in milliseconds. Records follow, each made of:</p>
+ * <ul>
+ * <li>a byte kind: {@link #KIND_READ}, {@link #KIND_WRITE}, {@link #KIND_OPEN} or
+ * {@link #KIND_CLOSE}</li>
+ * <li>the microseconds since the previous record, or since the start for the first one</li>
+ * <li>the connection id</li>
+ * <li>for frames, a byte frame type, the payload length and the payload</li>
+ * <li>for {@link #KIND_OPEN}, the length of the UTF-8 remote address and the address</li>
+ * </ul>
+ * Numbers other than bytes are unsigned varints: seven bits a byte, least significant first,
+ * with the high bit set on all bytes but the last. A chat message costs a few bytes on top of
+ * its payload.
+ *
+ * <p>All methods may be called from any thread. A failure to write ends the capture, so that
+ * a full disk never breaks the connections.</p>
+ */
+class TrafficRecorder {
+    // Debugging
+    private static final String TAG = "TrafficRecorder";
+
+    static final int MAGIC = 0x42544346;  // "BTCF"
+    static final int VERSION = 1;
+
+    // Record kinds
+    static final int KIND_READ = 0;   // a frame read from the peer
+    static final int KIND_WRITE = 1;  // a frame written to the peer
+    static final int KIND_OPEN = 2;   // a connection started
+    static final int KIND_CLOSE = 3;  // a connection ended
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final DataOutputStream mOut;
+    private long mLastNanos;
+    private boolean mClosed;
+
+    /**
+     * Create or replace a capture file.
+     */
+    TrafficRecorder(File file) throws IOException {
+        mFile = file;
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                BUFFER_SIZE));
+        mOut.writeInt(MAGIC);
+        mOut.writeByte(VERSION);
+        mOut.writeLong(System.currentTimeMillis());
+        mLastNanos = System.nanoTime();
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Record that a connection started.
+     */
+    synchronized void onOpened(int connectionId, String address) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            writeRecordHeader(KIND_OPEN, connectionId);
+            byte[] bytes = address.getBytes(UTF_8);
+            writeVarint(bytes.length);
+            mOut.write(bytes);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Record that a connection ended.
+     */
+    synchronized void onClosed(int connectionId) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            writeRecordHeader(KIND_CLOSE, connectionId);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Record a frame.
+     *
+     * @param kind   {@link #KIND_READ} or {@link #KIND_WRITE}
+     * @param type   The FrameProtocol frame type
+     * @param buffer The payload bytes
+     * @param offset Offset of the payload in the buffer
+     * @param length Length of the payload
+     */
+    synchronized void onFrame(int connectionId, int kind, int type, byte[] buffer, int offset,
+                              int length) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            writeRecordHeader(kind, connectionId);
+            mOut.writeByte(type);
+            writeVarint(length);
+            mOut.write(buffer, offset, length);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Write what is buffered and close the file.
+     */
+    synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of capture " + mFile + " failed", e);
+        }
+    }
+
+    private void writeRecordHeader(int kind, int connectionId) throws IOException {
+        long now = System.nanoTime();
+        mOut.writeByte(kind);
+        writeVarint(TimeUnit.NANOSECONDS.toMicros(now - mLastNanos));
+        writeVarint(connectionId);
+        // Keep the remainder, so that rounding does not add up over many records
+        mLastNanos = now - (now - mLastNanos) % 1000;
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            mOut.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mOut.writeByte((int) value);
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, "Capture to " + mFile + " failed, stopping it", e);
+        close();
+    }
+}
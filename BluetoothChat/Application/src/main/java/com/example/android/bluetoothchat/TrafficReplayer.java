@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a capture written by {@link TrafficRecorder} back to a {@link BluetoothChatService}
+ * listening on a {@link TcpTransport}, for regression and load testing. The replayer takes the
+ * place of the peers: every frame the service read in the capture is written to it again, on
+ * a connection of its own for each captured connection, at the captured times divided by the
+ * replay speed. The frames the service writes back are read and counted, so that they can be
+ * compared with the ones it wrote in the capture.
+ *
+ * <p>Frames are replayed uncompressed, so the service does the same work for a message as in
+ * the capture less decompression. Replaying at {@link #AS_FAST_AS_POSSIBLE} keeps the order of
+ * the frames but drops the pauses between them. The frames read back only match the captured
+ * ones where the service wrote in answer to its peer, such as acknowledgements and pongs, and
+ * not the messages its own user wrote.</p>
+ */
+public final class TrafficReplayer {
+    // Debugging
+    private static final String TAG = "TrafficReplayer";
+
+    /**
+     * A replay speed that writes every frame as soon as the previous one is written.
+     */
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+    // How long the service may stay silent after the last frame before the replay ends
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mCapture;
+    private double mSpeed = 1;
+
+    /**
+     * @param capture A file written by {@link BluetoothChatService#startCapture(File)}
+     */
+    public TrafficReplayer(File capture) {
+        mCapture = capture;
+    }
+
+    /**
+     * Set how many times faster than captured the frames are written. Defaults to 1.
+     *
+     * @param speed A positive factor, or {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public void setSpeed(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Play the capture back to a service. Blocks until every frame has been written and the
+     * service has gone quiet.
+     *
+     * @param target The address the service's TcpTransport listens on
+     * @return What was written and read
+     */
+    public Result replay(InetSocketAddress target) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mCapture), BUFFER_SIZE));
+        Map<Integer, Connection> open = new HashMap<>();
+        List<Connection> connections = new ArrayList<>();
+        Result result = new Result();
+        try {
+            if (in.readInt() != TrafficRecorder.MAGIC) {
+                throw new IOException(mCapture + " is not a capture");
+            }
+            int version = in.readUnsignedByte();
+            if (version > TrafficRecorder.VERSION) {
+                throw new IOException("Unsupported capture version " + version);
+            }
+            // Wall clock time of the capture
+            in.readLong();
+
+            byte[] payload = new byte[FrameProtocol.MAX_PAYLOAD_LENGTH];
+            long start = System.nanoTime();
+            long captureMicros = 0;
+            int kind;
+            while ((kind = in.read()) >= 0) {
+                captureMicros += readVarint(in);
+                int connectionId = (int) readVarint(in);
+                long due = start
+                        + (long) (TimeUnit.MICROSECONDS.toNanos(captureMicros) / mSpeed);
+                switch (kind) {
+                    case TrafficRecorder.KIND_OPEN: {
+                        byte[] address = new byte[(int) readVarint(in)];
+                        in.readFully(address);
+                        waitUntil(due, result);
+                        open(target, connectionId, open, connections);
+                        break;
+                    }
+                    case TrafficRecorder.KIND_CLOSE: {
+                        waitUntil(due, result);
+                        Connection connection = open.remove(connectionId);
+                        if (connection != null) {
+                            connection.finish();
+                        }
+                        break;
+                    }
+                    case TrafficRecorder.KIND_READ:
+                    case TrafficRecorder.KIND_WRITE: {
+                        int type = in.readUnsignedByte();
+                        int length = (int) readVarint(in);
+                        if (length > FrameProtocol.MAX_PAYLOAD_LENGTH) {
+                            throw new IOException("Corrupt capture: frame of " + length + " bytes");
+                        }
+                        in.readFully(payload, 0, length);
+                        if (kind == TrafficRecorder.KIND_WRITE) {
+                            // What the service should write again
+                            result.mFramesExpected++;
+                            break;
+                        }
+                        waitUntil(due, result);
+                        Connection connection = open.get(connectionId);
+                        if (connection == null) {
+                            // The capture started after the connection did
+                            connection = open(target, connectionId, open, connections);
+                        }
+                        connection.write(type, payload, length);
+                        result.mFramesSent++;
+                        result.mBytesSent += FrameProtocol.HEADER_LENGTH + length;
+                        break;
+                    }
+                    default:
+                        throw new IOException("Corrupt capture: record kind " + kind);
+                }
+            }
+
+            // Let the service answer the last frames
+            long quietSince;
+            while ((quietSince = System.nanoTime() - lastReceived(connections, start))
+                    < DRAIN_NANOS) {
+                LockSupport.parkNanos(DRAIN_NANOS - quietSince);
+            }
+            result.mDurationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of capture failed", e);
+            }
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+        for (Connection connection : connections) {
+            try {
+                connection.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            result.mFramesReceived += connection.mmFramesReceived;
+            result.mBytesReceived += connection.mmBytesReceived;
+        }
+        result.mConnections = connections.size();
+        return result;
+    }
+
+    private Connection open(InetSocketAddress target, int connectionId,
+                            Map<Integer, Connection> open, List<Connection> connections)
+            throws IOException {
+        Connection previous = open.remove(connectionId);
+        if (previous != null) {
+            previous.finish();
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(target, CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Connection connection = new Connection(socket, connectionId);
+        open.put(connectionId, connection);
+        connections.add(connection);
+        connection.start();
+        return connection;
+    }
+
+    /**
+     * Wait for the time a record is due, and account for being late if it is already past.
+     */
+    private static void waitUntil(long due, Result result) {
+        long delay;
+        while ((delay = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(delay);
+        }
+        result.mMaxLagMicros = Math.max(result.mMaxLagMicros,
+                TimeUnit.NANOSECONDS.toMicros(-delay));
+    }
+
+    private static long lastReceived(List<Connection> connections, long start) {
+        long last = start;
+        for (Connection connection : connections) {
+            last = Math.max(last, connection.mmLastReceivedNanos);
+        }
+        return last;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Corrupt capture: varint too long");
+    }
+
+    /**
+     * One replayed connection: frames are written by the replaying thread, and this thread
+     * reads and counts what the service writes back.
+     */
+    private static final class Connection extends Thread {
+        private final Socket mmSocket;
+        private final FrameWriter mmWriter;
+        private final FrameReader mmReader;
+        private final BufferPool mmBufferPool = new BufferPool(FrameProtocol.MAX_PAYLOAD_LENGTH, 4);
+        private volatile long mmFramesReceived;
+        private volatile long mmBytesReceived;
+        private volatile long mmLastReceivedNanos;
+
+        Connection(Socket socket, int connectionId) throws IOException {
+            super("ReplayConnection" + connectionId);
+            mmSocket = socket;
+            mmWriter = new FrameWriter(socket.getOutputStream());
+            mmReader = new FrameReader(socket.getInputStream(), mmBufferPool);
+            // The service compresses if the replayed hello offers it
+            mmReader.setCodec(new DeflateCodec());
+        }
+
+        void write(int type, byte[] payload, int length) throws IOException {
+            mmWriter.writeFrame(type, payload, 0, length);
+            mmWriter.flush();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    mmBufferPool.release(mmReader.readFrame());
+                    mmFramesReceived++;
+                    mmBytesReceived = mmReader.getBytesRead();
+                    mmLastReceivedNanos = System.nanoTime();
+                }
+            } catch (IOException e) {
+                // Closed by either side
+            }
+            close();
+        }
+
+        /**
+         * Stop writing, as the captured peer did, but read what the service still writes
+         * until it closes the connection. Closing outright could reset the connection before
+         * the service has read the last frames.
+         */
+        void finish() {
+            try {
+                mmSocket.shutdownOutput();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of replay socket failed", e);
+            }
+        }
+    }
+
+    /**
+     * What a replay wrote to the service and read back from it.
+     */
+    public static final class Result {
+        private int mConnections;
+        private long mFramesSent;
+        private long mBytesSent;
+        private long mFramesReceived;
+        private long mBytesReceived;
+        private long mFramesExpected;
+        private long mDurationMillis;
+        private long mMaxLagMicros;
+
+        /**
+         * Return the number of connections made to the service.
+         */
+        public int getConnections() {
+            return mConnections;
+        }
+
+        /**
+         * Return the number of frames written to the service, which it read in the capture.
+         */
+        public long getFramesSent() {
+            return mFramesSent;
+        }
+
+        /**
+         * Return the number of bytes written to the service.
+         */
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        /**
+         * Return the number of frames the service wrote during the replay.
+         */
+        public long getFramesReceived() {
+            return mFramesReceived;
+        }
+
+        /**
+         * Return the number of bytes the service wrote during the replay, as sent on the wire.
+         */
+        public long getBytesReceived() {
+            return mBytesReceived;
+        }
+
+        /**
+         * Return the number of frames the service wrote in the capture.
+         */
+        public long getFramesExpected() {
+            return mFramesExpected;
+        }
+
+        /**
+         * Return how long the replay took, until the service went quiet.
+         */
+        public long getDurationMillis() {
+            return mDurationMillis;
+        }
+
+        /**
+         * Return how late the latest frame was written compared to its replay time, in
+         * microseconds. Large values mean the replay could not keep up with the requested
+         * speed.
+         */
+        public long getMaxLagMicros() {
+            return mMaxLagMicros;
+        }
+
+        @Override
+        public String toString() {
+            return "replayed " + mConnections + " connections in " + mDurationMillis + " ms"
+                    + ", sent " + mFramesSent + " frames " + mBytesSent + " B"
+                    + ", received " + mFramesReceived + " frames " + mBytesReceived + " B"
+                    + " (captured " + mFramesExpected + ")"
+                    + ", max lag " + mMaxLagMicros / 1000 + " ms";
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageLogTest {
+
+    // Index layout: the committed record count, the count of those synced, then the offset of
+    // each record
+    private static final int SYNCED_COUNT_OFFSET = 8;
+    private static final int INDEX_HEADER_LENGTH = 16;
+    private static final int INDEX_ENTRY_LENGTH = 8;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mLogFile;
+    private File mIndexFile;
+
+    @Before
+    public void setUp() {
+        mLogFile = new File(mFolder.getRoot(), "device.log");
+        mIndexFile = new File(mFolder.getRoot(), "device.idx");
+    }
+
+    @Test
+    public void messagesAreReadBackAfterReopening() throws IOException {
+        MessageLog log = new MessageLog(mLogFile, mIndexFile);
+        log.append(MessageLog.DIRECTION_OUT, 1000, "", "hello");
+        log.append(MessageLog.DIRECTION_IN, 2000, "Phone", "h\u00e9llo back");
+        log.close();
+
+        log = new MessageLog(mLogFile, mIndexFile);
+        try {
+            assertEquals(2, log.size());
+            MessageLog.Entry[] entries = log.read(0, 2);
+            assertEntry(entries[0], MessageLog.DIRECTION_OUT, 1000, "", "hello");
+            assertEntry(entries[1], MessageLog.DIRECTION_IN, 2000, "Phone", "h\u00e9llo back");
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void logGrowsPastItsFirstMapping() throws IOException {
+        MessageLog log = new MessageLog(mLogFile, mIndexFile);
+        for (int i = 0; i < 3000; i++) {
+            log.append(MessageLog.DIRECTION_OUT, i, "", text(i));
+        }
+        log.close();
+
+        log = new MessageLog(mLogFile, mIndexFile);
+        try {
+            assertEquals(3000, log.size());
+            MessageLog.Entry[] entries = log.read(2950, 50);
+            for (int i = 0; i < entries.length; i++) {
+                assertEntry(entries[i], MessageLog.DIRECTION_OUT, 2950 + i, "", text(2950 + i));
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void recoveryDropsRecordNeverWritten() throws IOException {
+        appendMessages(3);
+        // A count covering a fourth record whose bytes never reached the log
+        long end = readOffset(2) + recordLength(2);
+        writeIndexLong(INDEX_HEADER_LENGTH + 3 * INDEX_ENTRY_LENGTH, end);
+        writeIndexLong(0, 4);
+
+        MessageLog log = new MessageLog(mLogFile, mIndexFile);
+        try {
+            assertEquals(3, log.size());
+            log.append(MessageLog.DIRECTION_IN, 99, "Phone", "after the crash");
+            assertEquals(4, log.size());
+            assertEntry(log.read(3, 1)[0], MessageLog.DIRECTION_IN, 99, "Phone",
+                    "after the crash");
+        } finally {
+            log.close();
+        }
+        assertEquals(4, reopenedSize());
+    }
+
+    @Test
+    public void recoveryDropsEverythingAfterATornOffset() throws IOException {
+        appendMessages(5);
+        // The last two records still follow each other, but the third is not where the second
+        // ends. Only records appended since the last sync are checked.
+        writeIndexLong(INDEX_HEADER_LENGTH + 2 * INDEX_ENTRY_LENGTH, readOffset(2) + 1);
+        writeIndexLong(SYNCED_COUNT_OFFSET, 1);
+
+        MessageLog log = new MessageLog(mLogFile, mIndexFile);
+        try {
+            assertEquals(2, log.size());
+            MessageLog.Entry[] entries = log.read(0, 2);
+            assertEntry(entries[1], MessageLog.DIRECTION_OUT, 1, "", text(1));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void recoveryDropsRecordWithImpossibleLength() throws IOException {
+        appendMessages(3);
+        RandomAccessFile file = new RandomAccessFile(mLogFile, "rw");
+        try {
+            file.seek(readOffset(1));
+            file.writeInt(Integer.MAX_VALUE);
+        } finally {
+            file.close();
+        }
+        writeIndexLong(SYNCED_COUNT_OFFSET, 0);
+
+        assertEquals(1, reopenedSize());
+    }
+
+    @Test
+    public void countPastTheIndexIsCutToTheRecordsFound() throws IOException {
+        appendMessages(4);
+        writeIndexLong(0, Long.MAX_VALUE);
+
+        assertEquals(4, reopenedSize());
+    }
+
+    @Test
+    public void syncedRecordsAreNotCheckedAgain() throws IOException {
+        appendMessages(3);
+        assertEquals(3, readIndexLong(SYNCED_COUNT_OFFSET));
+        // Would drop the last two records if they were checked
+        writeIndexLong(INDEX_HEADER_LENGTH + INDEX_ENTRY_LENGTH, readOffset(1) + 1);
+
+        assertEquals(3, reopenedSize());
+    }
+
+    @Test
+    public void unreadableLastSyncedRecordFallsBackToCheckingAll() throws IOException {
+        appendMessages(3);
+        writeIndexLong(INDEX_HEADER_LENGTH + 2 * INDEX_ENTRY_LENGTH, -1);
+
+        assertEquals(2, reopenedSize());
+    }
+
+    @Test
+    public void syncCoversOnlyTheRecordsAppendedBeforeIt() throws IOException {
+        MessageLog log = new MessageLog(mLogFile, mIndexFile);
+        try {
+            log.append(MessageLog.DIRECTION_OUT, 0, "", text(0));
+            log.append(MessageLog.DIRECTION_OUT, 1, "", text(1));
+            assertEquals(0, readIndexLong(SYNCED_COUNT_OFFSET));
+            log.sync();
+            log.append(MessageLog.DIRECTION_OUT, 2, "", text(2));
+            assertEquals(3, readIndexLong(0));
+            assertEquals(2, readIndexLong(SYNCED_COUNT_OFFSET));
+        } finally {
+            log.close();
+        }
+        assertEquals(3, readIndexLong(SYNCED_COUNT_OFFSET));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readPastTheEndFails() throws IOException {
+        MessageLog log = new MessageLog(mLogFile, mIndexFile);
+        try {
+            log.append(MessageLog.DIRECTION_OUT, 0, "", "only");
+            log.read(0, 2);
+        } finally {
+            log.close();
+        }
+    }
+
+    private static String text(int i) {
+        return "message number " + i;
+    }
+
+    private static void assertEntry(MessageLog.Entry entry, int direction, long timeMillis,
+                                    String sender, String text) {
+        assertEquals(direction, entry.direction);
+        assertEquals(timeMillis, entry.timeMillis);
+        assertEquals(sender, entry.sender);
+        assertEquals(text, entry.text);
+    }
+
+    private void appendMessages(int count) throws IOException {
+        MessageLog log = new MessageLog(mLogFile, mIndexFile);
+        try {
+            for (int i = 0; i < count; i++) {
+                log.append(MessageLog.DIRECTION_OUT, i, "", text(i));
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    private int reopenedSize() throws IOException {
+        MessageLog log = new MessageLog(mLogFile, mIndexFile);
+        try {
+            return log.size();
+        } finally {
+            log.close();
+        }
+    }
+
+    private long readOffset(int index) throws IOException {
+        return readIndexLong(INDEX_HEADER_LENGTH + index * INDEX_ENTRY_LENGTH);
+    }
+
+    private long readIndexLong(long position) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mIndexFile, "r");
+        try {
+            file.seek(position);
+            return file.readLong();
+        } finally {
+            file.close();
+        }
+    }
+
+    private long recordLength(int index) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mLogFile, "r");
+        try {
+            file.seek(readOffset(index));
+            return 4 + file.readInt();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeIndexLong(long position, long value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mIndexFile, "rw");
+        try {
+            file.seek(position);
+            file.writeLong(value);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageRingTest {
+
+    private static final int CONNECTION_ID = 7;
+
+    private final List<Integer> mReceived = new ArrayList<>();
+    private final MessageRing.Consumer mConsumer = new MessageRing.Consumer() {
+        @Override
+        public void onMessage(byte[] buffer, int length, int connectionId) {
+            assertEquals(CONNECTION_ID, connectionId);
+            assertEquals(1, length);
+            mReceived.add((int) buffer[0]);
+        }
+    };
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() {
+        new MessageRing(6, CONNECTION_ID);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new MessageRing(0, CONNECTION_ID);
+    }
+
+    @Test
+    public void fullRingRefusesMessages() {
+        MessageRing ring = new MessageRing(4, CONNECTION_ID);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(message(i), 1));
+        }
+        assertFalse(ring.offer(message(4), 1));
+
+        assertEquals(4, ring.drainTo(mConsumer));
+        assertEquals(Arrays.asList(0, 1, 2, 3), mReceived);
+    }
+
+    @Test
+    public void drainedSlotsAreReused() {
+        MessageRing ring = new MessageRing(2, CONNECTION_ID);
+        assertTrue(ring.isEmpty());
+        for (int i = 0; i < 10; i += 2) {
+            assertTrue(ring.offer(message(i), 1));
+            assertTrue(ring.offer(message(i + 1), 1));
+            assertFalse(ring.isEmpty());
+            assertEquals(2, ring.drainTo(mConsumer));
+            assertTrue(ring.isEmpty());
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), mReceived);
+        assertEquals(0, ring.drainTo(mConsumer));
+    }
+
+    @Test
+    public void closeIsSeenByTheConsumer() {
+        MessageRing ring = new MessageRing(2, CONNECTION_ID);
+        assertFalse(ring.isClosed());
+        ring.offer(message(1), 1);
+        ring.close();
+
+        // Messages published before closing are still delivered
+        assertTrue(ring.isClosed());
+        assertEquals(1, ring.drainTo(mConsumer));
+    }
+
+    @Test
+    public void messagesCrossThreadsInOrder() throws Exception {
+        final int count = 100000;
+        final MessageRing ring = new MessageRing(16, CONNECTION_ID);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!ring.offer(message(i), 1)) {
+                        Thread.yield();
+                    }
+                }
+                ring.close();
+            }
+        };
+        producer.start();
+
+        final int[] next = new int[1];
+        MessageRing.Consumer consumer = new MessageRing.Consumer() {
+            @Override
+            public void onMessage(byte[] buffer, int length, int connectionId) {
+                assertEquals((byte) next[0]++, buffer[0]);
+            }
+        };
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        // Closed is checked first, so the final drain sees every message published before it
+        while (true) {
+            boolean closed = ring.isClosed();
+            ring.drainTo(consumer);
+            if (closed || System.nanoTime() > deadline) {
+                break;
+            }
+            Thread.yield();
+        }
+        producer.join();
+        assertEquals(count, next[0]);
+        assertTrue(ring.isEmpty());
+    }
+
+    private static byte[] message(int id) {
+        return new byte[]{(byte) id};
+    }
+}
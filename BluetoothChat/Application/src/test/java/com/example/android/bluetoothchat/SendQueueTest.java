@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendQueueTest {
+
+    private static final int MAX_BATCH = 16;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private final ByteArrayOutputStream mSocket = new ByteArrayOutputStream();
+    private final FrameWriter mWriter = new FrameWriter(mSocket);
+
+    @Test
+    public void dropNewestRejectsTheNewMessage() throws Exception {
+        SendQueue queue = new SendQueue(2, SendQueue.DROP_NEWEST, 0);
+        assertTrue(queue.offer(message(1)));
+        assertTrue(queue.offer(message(2)));
+        assertFalse(queue.offer(message(3)));
+
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(Arrays.asList(1, 2), drain(queue));
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheNewMessage() throws Exception {
+        SendQueue queue = new SendQueue(2, SendQueue.DROP_OLDEST, 0);
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(queue.offer(message(i)));
+        }
+
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(Arrays.asList(3, 4), drain(queue));
+    }
+
+    @Test
+    public void blockGivesUpAfterItsTimeout() {
+        SendQueue queue = new SendQueue(1, SendQueue.BLOCK, 50);
+        assertTrue(queue.offer(message(1)));
+
+        long start = System.nanoTime();
+        assertFalse(queue.offer(message(2)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void blockWaitsForTheWriterToMakeRoom() throws Exception {
+        final SendQueue queue = new SendQueue(1, SendQueue.BLOCK, 10000);
+        assertTrue(queue.offer(message(1)));
+
+        final AtomicBoolean queued = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                queued.set(queue.offer(message(2)));
+                done.countDown();
+            }
+        };
+        caller.start();
+        assertEquals(Arrays.asList(1), drain(queue));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(queued.get());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(Arrays.asList(2), drain(queue));
+    }
+
+    @Test
+    public void controlGoesFirstAndBulkLast() throws Exception {
+        SendQueue queue = new SendQueue(8, SendQueue.DROP_NEWEST, 0);
+        queue.putBulk(frame(FrameProtocol.TYPE_FILE_CHUNK, 10));
+        queue.putBulk(frame(FrameProtocol.TYPE_FILE_CHUNK, 11));
+        queue.offer(message(1));
+        queue.offerControl(frame(FrameProtocol.TYPE_FILE_ACK, 20));
+        queue.offer(message(2));
+
+        // One chunk per batch, so that a message never waits behind more than one
+        assertEquals(Arrays.asList(20, 1, 2, 10), drain(queue));
+        assertEquals(Arrays.asList(11), drain(queue));
+    }
+
+    @Test
+    public void controlFramesAreNeverDropped() throws Exception {
+        SendQueue queue = new SendQueue(1, SendQueue.DROP_NEWEST, 0);
+        for (int i = 0; i < 5; i++) {
+            queue.offerControl(frame(FrameProtocol.TYPE_FILE_ACK, i));
+        }
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), drain(queue));
+    }
+
+    @Test
+    public void pausedMessagesWaitForTheFramesToReplay() throws Exception {
+        SendQueue queue = new SendQueue(8, SendQueue.DROP_NEWEST, 0);
+        queue.pauseMessages();
+        queue.offer(message(3));
+        queue.offerControl(frame(FrameProtocol.TYPE_SESSION_RESUME, 30));
+
+        assertEquals(Arrays.asList(30), drain(queue));
+        assertEquals(1, queue.size());
+
+        queue.resumeMessages(Arrays.asList(message(1), message(2)));
+        assertEquals(Arrays.asList(1, 2, 3), drain(queue));
+    }
+
+    @Test
+    public void unsentMessagesAreHandedBack() {
+        SendQueue queue = new SendQueue(8, SendQueue.DROP_NEWEST, 0);
+        queue.offer(message(1));
+        queue.offer(message(2));
+
+        assertEquals(2, queue.drainMessages().size());
+        assertEquals(0, queue.size());
+    }
+
+    private static OutboundFrame message(int id) {
+        return frame(FrameProtocol.TYPE_MESSAGE, id);
+    }
+
+    /**
+     * Returns a frame whose one-byte payload identifies it.
+     */
+    private static OutboundFrame frame(int type, int id) {
+        return new OutboundFrame(type, new byte[]{(byte) id}, false);
+    }
+
+    /**
+     * Writes one batch and returns the ids of its frames, in the order written.
+     */
+    private List<Integer> drain(SendQueue queue) throws Exception {
+        OutboundFrame[] batch = new OutboundFrame[MAX_BATCH];
+        int count = queue.drainTo(mWriter, batch, MAX_BATCH_BYTES);
+        Integer[] ids = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = (int) batch[i].payload[0];
+        }
+        return Arrays.asList(ids);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames lost to a burst of received messages: the benchmark thread plays ConnectedThread and
+ * hands a burst to a {@link FrameLooper}, either as one Handler post per message or through a
+ * {@link MessageRing} drained once per frame. Each invocation lasts until the whole burst is on
+ * screen. The counters add up, over all measured bursts, the frames that missed their deadline,
+ * the vsyncs skipped altogether and the adapter updates made.
+ *
+ * <p>{@code updateMicros} and {@code drawMicros} model what an adapter update and a layout
+ * and draw of the conversation cost the UI thread on a device.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 50)
+@Fork(1)
+public class FrameDeliveryBenchmark {
+
+    @Param({"handler", "ring"})
+    public String delivery;
+
+    @Param({"10", "100", "500"})
+    public int burst;
+
+    @Param({"40"})
+    public int updateMicros;
+
+    @Param({"4000"})
+    public int drawMicros;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Frames {
+        public long lateFrames;
+        public long skippedFrames;
+        public long adapterUpdates;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lateFrames = 0;
+            skippedFrames = 0;
+            adapterUpdates = 0;
+        }
+    }
+
+    private final BufferPool mBufferPool =
+            new BufferPool(FrameProtocol.MAX_PAYLOAD_LENGTH, 16);
+    private FrameLooper mLooper;
+    private byte[] mMessage;
+    private boolean mRing;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mLooper = new FrameLooper(mBufferPool, TimeUnit.MICROSECONDS.toNanos(updateMicros),
+                TimeUnit.MICROSECONDS.toNanos(drawMicros));
+        mLooper.start();
+        mMessage = Payloads.text(64).getBytes();
+        mRing = "ring".equals(delivery);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mLooper.interrupt();
+    }
+
+    @Setup(Level.Iteration)
+    public void settle() throws InterruptedException {
+        // Let the previous burst's frames finish
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(3 * FrameLooper.FRAME_NANOS));
+    }
+
+    @Benchmark
+    public void burstOnScreen(Frames frames) throws InterruptedException {
+        long late = mLooper.getLateFrames();
+        long skipped = mLooper.getSkippedFrames();
+        long updates = mLooper.getAdapterUpdates();
+        long target = mLooper.getShown() + burst;
+
+        for (int i = 0; i < burst; i++) {
+            byte[] buffer = mBufferPool.acquire(mMessage.length);
+            System.arraycopy(mMessage, 0, buffer, 0, mMessage.length);
+            if (mRing) {
+                mLooper.publish(buffer, mMessage.length);
+            } else {
+                mLooper.post(buffer, mMessage.length);
+            }
+        }
+        while (mLooper.getShown() < target) {
+            Thread.sleep(1);
+        }
+
+        frames.lateFrames += mLooper.getLateFrames() - late;
+        frames.skippedFrames += mLooper.getSkippedFrames() - skipped;
+        frames.adapterUpdates += mLooper.getAdapterUpdates() - updates;
+    }
+}
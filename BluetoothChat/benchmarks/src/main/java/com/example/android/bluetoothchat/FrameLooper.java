@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for the UI thread's Looper and Choreographer, for measuring how the delivery of
+ * received messages affects frames. Vsync fires every {@link #FRAME_NANOS}. As on Android, the
+ * first change in a frame requests a layout, which puts a sync barrier in the queue: messages
+ * posted after it wait for the next frame, while those posted before it run first and hold the
+ * frame up. Adapter updates and drawing are charged as fixed busy time, since there is no view
+ * hierarchy on a desktop JVM; decoding and buffer handling are the real thing.
+ *
+ * <p>Messages reach it either one Handler post each, or through a {@link MessageRing} drained
+ * by a frame callback, as MessageDispatcher does.</p>
+ */
+final class FrameLooper extends Thread {
+
+    static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+
+    // Slots in the ring, as in MessageDispatcher
+    private static final int RING_CAPACITY = 1024;
+
+    // Most lines kept by the stand-in adapter
+    private static final int MAX_LINES = 200;
+
+    private static final int POST_READ = 1;
+    private static final int POST_SCHEDULE_DRAIN = 2;
+
+    private static final class Post {
+        final int what;
+        final byte[] buffer;
+        final int length;
+        final long when = System.nanoTime();
+
+        Post(int what, byte[] buffer, int length) {
+            this.what = what;
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    private final BufferPool mBufferPool;
+    private final long mUpdateNanos;
+    private final long mDrawNanos;
+    private final LinkedBlockingQueue<Post> mIncoming = new LinkedBlockingQueue<>();
+    private final MessageRing mRing = new MessageRing(RING_CAPACITY, 0);
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    // UI thread state
+    private final ArrayDeque<Post> mQueue = new ArrayDeque<>();
+    private final List<String> mLines = new ArrayList<>();
+    private long mNextVsync;
+    private long mBarrier = -1;
+    private boolean mDrawRequested;
+    private boolean mDrainRequested;
+    private long mReceived;
+
+    // Counters, read by other threads
+    private volatile long mShown;
+    private volatile long mFrames;
+    private volatile long mLateFrames;
+    private volatile long mSkippedFrames;
+    private volatile long mAdapterUpdates;
+
+    /**
+     * @param bufferPool  The pool the received buffers go back to
+     * @param updateNanos What one adapter update costs the UI thread
+     * @param drawNanos   What laying out and drawing the list costs the UI thread
+     */
+    FrameLooper(BufferPool bufferPool, long updateNanos, long drawNanos) {
+        super("FrameLooper");
+        setDaemon(true);
+        mBufferPool = bufferPool;
+        mUpdateNanos = updateNanos;
+        mDrawNanos = drawNanos;
+    }
+
+    /**
+     * Deliver a message as its own Handler post, like MESSAGE_READ.
+     */
+    void post(byte[] buffer, int length) {
+        mIncoming.add(new Post(POST_READ, buffer, length));
+    }
+
+    /**
+     * Deliver a message through the ring, like ConnectedThread does.
+     */
+    void publish(byte[] buffer, int length) {
+        while (!mRing.offer(buffer, length)) {
+            requestDrain();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        requestDrain();
+    }
+
+    private void requestDrain() {
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mIncoming.add(new Post(POST_SCHEDULE_DRAIN, null, 0));
+        }
+    }
+
+    /**
+     * Return the number of messages on screen so far.
+     */
+    long getShown() {
+        return mShown;
+    }
+
+    long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Return the number of frames that finished more than a frame interval after their vsync.
+     */
+    long getLateFrames() {
+        return mLateFrames;
+    }
+
+    /**
+     * Return the number of vsyncs that passed without a frame while one was due, as counted by
+     * Choreographer's "Skipped frames" warning.
+     */
+    long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    long getAdapterUpdates() {
+        return mAdapterUpdates;
+    }
+
+    @Override
+    public void run() {
+        mNextVsync = System.nanoTime() + FRAME_NANOS;
+        try {
+            while (true) {
+                mIncoming.drainTo(mQueue);
+                Post head = mQueue.peek();
+                // Messages posted before the vsync and before any barrier run first
+                if (head != null && head.when < mNextVsync
+                        && (mBarrier < 0 || head.when < mBarrier)) {
+                    mQueue.poll();
+                    handle(head);
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (now >= mNextVsync) {
+                    doFrame(now);
+                    continue;
+                }
+                Post post = mIncoming.poll(mNextVsync - now, TimeUnit.NANOSECONDS);
+                if (post != null) {
+                    mQueue.add(post);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        }
+    }
+
+    private void handle(Post post) {
+        if (post.what == POST_SCHEDULE_DRAIN) {
+            // Choreographer.postFrameCallback()
+            mDrainRequested = true;
+        } else {
+            addLine(post.buffer, post.length);
+            // ArrayAdapter.add() and the change notification
+            busy(mUpdateNanos);
+            mAdapterUpdates++;
+            requestDraw();
+        }
+    }
+
+    private void doFrame(long now) {
+        long frameTime = mNextVsync;
+        long skipped = (now - frameTime) / FRAME_NANOS;
+        mNextVsync = frameTime + (skipped + 1) * FRAME_NANOS;
+        if (!mDrainRequested && !mDrawRequested) {
+            return;
+        }
+        mSkippedFrames += skipped;
+        if (mDrainRequested) {
+            mDrainRequested = false;
+            mDrainScheduled.set(false);
+            int count = mRing.drainTo(new MessageRing.Consumer() {
+                @Override
+                public void onMessage(byte[] buffer, int length, int connectionId) {
+                    addLine(buffer, length);
+                }
+            });
+            if (count > 0) {
+                // One notifyDataSetChanged() for the whole frame
+                busy(mUpdateNanos);
+                mAdapterUpdates++;
+                requestDraw();
+            }
+        }
+        boolean draw = mDrawRequested;
+        if (draw) {
+            busy(mDrawNanos);
+            mDrawRequested = false;
+            mBarrier = -1;
+        }
+        mFrames++;
+        if (System.nanoTime() - frameTime > FRAME_NANOS) {
+            mLateFrames++;
+        }
+        if (draw) {
+            // Published last, so that a reader seeing the lines also sees the frame counted
+            mShown = mReceived;
+        }
+    }
+
+    private void addLine(byte[] buffer, int length) {
+        mLines.add("peer:  " + new String(buffer, 0, length));
+        mBufferPool.release(buffer);
+        if (mLines.size() > MAX_LINES) {
+            mLines.remove(0);
+        }
+        mReceived++;
+    }
+
+    private void requestDraw() {
+        if (!mDrawRequested) {
+            mDrawRequested = true;
+            mBarrier = System.nanoTime();
+        }
+    }
+
+    private static void busy(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // Spin, as a UI thread doing layout work would
+        }
+    }
+}
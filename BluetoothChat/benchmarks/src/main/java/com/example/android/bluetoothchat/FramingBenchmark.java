@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU and allocation cost of framing one message and decoding it, without any socket or
+ * thread hand-off: FrameWriter, FrameReader with its BufferPool, then the String decoding done
+ * by the fragment. Run with {@code -prof gc} to see the allocation rate per message.
+ * With {@code compressed} set, payloads go through the negotiated {@link DeflateCodec}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramingBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int messageLength;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private final MemoryOutputStream mOut = new MemoryOutputStream();
+    private final MemoryInputStream mIn = new MemoryInputStream();
+    private final BufferPool mBufferPool =
+            new BufferPool(FrameProtocol.MAX_PAYLOAD_LENGTH, 16);
+    private FrameWriter mWriter;
+    private FrameReader mReader;
+    private byte[] mMessage;
+
+    @Setup
+    public void setUp() {
+        mWriter = new FrameWriter(mOut);
+        mReader = new FrameReader(mIn, mBufferPool);
+        mReader.setCodec(new DeflateCodec());
+        if (compressed) {
+            mWriter.setCodec(new DeflateCodec());
+        }
+        mMessage = Payloads.text(messageLength).getBytes();
+    }
+
+    @Benchmark
+    public String frameAndDecode() throws IOException {
+        mOut.reset();
+        mWriter.writeFrame(FrameProtocol.TYPE_MESSAGE, mMessage, 0, mMessage.length);
+        mWriter.flush();
+        mIn.reset(mOut.data, mOut.count);
+
+        byte[] buffer = mReader.readFrame();
+        String message = new String(buffer, 0, mReader.getLength());
+        mBufferPool.release(buffer);
+        return message;
+    }
+
+    /**
+     * An output stream collecting bytes into a reusable array.
+     */
+    static final class MemoryOutputStream extends OutputStream {
+        byte[] data = new byte[FrameProtocol.HEADER_LENGTH + FrameProtocol.MAX_PAYLOAD_LENGTH];
+        int count;
+
+        void reset() {
+            count = 0;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            data[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, data, count, len);
+            count += len;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (count + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, count + extra));
+            }
+        }
+    }
+
+    /**
+     * An input stream replaying a region of an array.
+     */
+    static final class MemoryInputStream extends InputStream {
+        private byte[] mData;
+        private int mPosition;
+        private int mLimit;
+
+        void reset(byte[] data, int length) {
+            mData = data;
+            mPosition = 0;
+            mLimit = length;
+        }
+
+        @Override
+        public int read() {
+            return mPosition < mLimit ? mData[mPosition++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPosition >= mLimit) {
+                return -1;
+            }
+            int n = Math.min(len, mLimit - mPosition);
+            System.arraycopy(mData, mPosition, b, off, n);
+            mPosition += n;
+            return n;
+        }
+    }
+}
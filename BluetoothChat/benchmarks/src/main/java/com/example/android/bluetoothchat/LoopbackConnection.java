@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * A pair of connected {@link ChatTransport.Channel}s over {@link TcpTransport} on the loopback
+ * interface, standing in for the two ends of an RFCOMM link.
+ */
+final class LoopbackConnection {
+    final ChatTransport.Channel client;
+    final ChatTransport.Channel server;
+    private final ChatTransport.Listener mListener;
+
+    private LoopbackConnection(ChatTransport.Channel client, ChatTransport.Channel server,
+                               ChatTransport.Listener listener) {
+        this.client = client;
+        this.server = server;
+        mListener = listener;
+    }
+
+    static LoopbackConnection open() throws IOException {
+        int port = freePort();
+        TcpTransport transport = TcpTransport.loopback(port, freePort());
+        ChatTransport.Listener listener = transport.listen(true);
+        ChatTransport.Channel client = transport.createChannel("127.0.0.1:" + port, true);
+        client.connect();
+        ChatTransport.Channel server = listener.accept();
+        return new LoopbackConnection(client, server, listener);
+    }
+
+    void close() throws IOException {
+        client.close();
+        server.close();
+        mListener.close();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
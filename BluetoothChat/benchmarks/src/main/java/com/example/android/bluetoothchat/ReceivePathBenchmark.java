@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The receive side of a connection: the benchmark thread plays ConnectedThread, reading frames
+ * from a loopback socket that a peer keeps full, and posts each one as MESSAGE_READ to a
+ * {@link UiLooper} that decodes it and releases the buffer. The rate is bounded by whichever
+ * of the three stages is slowest, as on a device.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReceivePathBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int messageLength;
+
+    private LoopbackConnection mConnection;
+    private Thread mPeer;
+    private UiLooper mLooper;
+    private FrameReader mReader;
+    private volatile boolean mRunning;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mConnection = LoopbackConnection.open();
+        BufferPool bufferPool = new BufferPool(FrameProtocol.MAX_PAYLOAD_LENGTH, 16);
+        mReader = new FrameReader(mConnection.server.getInputStream(), bufferPool);
+        mLooper = new UiLooper(bufferPool, "peer");
+        mLooper.start();
+
+        // The remote device sends one message per socket write, as fast as it can
+        final FrameWriter writer = new FrameWriter(mConnection.client.getOutputStream());
+        final byte[] message = Payloads.text(messageLength).getBytes();
+        mRunning = true;
+        mPeer = new Thread("Peer") {
+            @Override
+            public void run() {
+                try {
+                    while (mRunning) {
+                        writer.writeFrame(FrameProtocol.TYPE_MESSAGE, message, 0, message.length);
+                        writer.flush();
+                    }
+                } catch (IOException e) {
+                    // Connection closed by tearDown()
+                }
+            }
+        };
+        mPeer.setDaemon(true);
+        mPeer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mRunning = false;
+        mConnection.close();
+        mPeer.join();
+        mLooper.interrupt();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void messagesPerSecond() throws Exception {
+        receive();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() throws Exception {
+        receive();
+    }
+
+    private void receive() throws IOException, InterruptedException {
+        byte[] buffer = mReader.readFrame();
+        mLooper.sendMessage(mLooper.obtainMessage(Constants.MESSAGE_READ, mReader.getLength(),
+                buffer));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The send side of a connection: the benchmark thread plays BluetoothChatFragment.sendMessage()
+ * calling write(), which queues the message on a {@link SendQueue}. A writer thread drains the
+ * queue with the same coalescing as WriterThread and echoes MESSAGE_WRITE to a
+ * {@link UiLooper}, while the remote end reads and discards the frames.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendPathBenchmark {
+
+    // Same limits as BluetoothChatService
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int MAX_BATCH_MESSAGES = 32;
+    private static final int MAX_BATCH_BYTES = 8 * 1024;
+
+    @Param({"16", "256", "4096"})
+    public int messageLength;
+
+    private LoopbackConnection mConnection;
+    private SendQueue mSendQueue;
+    private UiLooper mLooper;
+    private Thread mWriter;
+    private Thread mPeer;
+    private String mMessage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mConnection = LoopbackConnection.open();
+        mMessage = Payloads.text(messageLength);
+        final BufferPool bufferPool = new BufferPool(FrameProtocol.MAX_PAYLOAD_LENGTH, 16);
+        mLooper = new UiLooper(bufferPool, "peer");
+        mLooper.start();
+        mSendQueue = new SendQueue(QUEUE_CAPACITY, SendQueue.BLOCK, Long.MAX_VALUE);
+
+        final FrameWriter frameWriter = new FrameWriter(mConnection.client.getOutputStream());
+        mWriter = new Thread("WriterThread") {
+            @Override
+            public void run() {
+                OutboundFrame[] batch = new OutboundFrame[MAX_BATCH_MESSAGES];
+                try {
+                    while (true) {
+                        int count = mSendQueue.drainTo(frameWriter, batch, MAX_BATCH_BYTES);
+                        for (int i = 0; i < count; i++) {
+                            mLooper.sendMessage(mLooper.obtainMessage(Constants.MESSAGE_WRITE,
+                                    -1, batch[i].payload));
+                            batch[i] = null;
+                        }
+                    }
+                } catch (InterruptedException | IOException e) {
+                    // Shutting down
+                }
+            }
+        };
+        mWriter.setDaemon(true);
+        mWriter.start();
+
+        // The remote device reads and discards everything
+        final FrameReader frameReader =
+                new FrameReader(mConnection.server.getInputStream(), bufferPool);
+        mPeer = new Thread("Peer") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        bufferPool.release(frameReader.readFrame());
+                    }
+                } catch (IOException e) {
+                    // Connection closed by tearDown()
+                }
+            }
+        };
+        mPeer.setDaemon(true);
+        mPeer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mWriter.interrupt();
+        mConnection.close();
+        mWriter.join();
+        mPeer.join();
+        mLooper.interrupt();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean messagesPerSecond() {
+        return send();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean latency() {
+        return send();
+    }
+
+    private boolean send() {
+        byte[] send = mMessage.getBytes();
+        return mSendQueue.offer(new OutboundFrame(FrameProtocol.TYPE_MESSAGE, send, true));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Stand-in for the UI thread and its Handler, since android.os is not available on a desktop
+ * JVM. Messages are recycled through a pool like {@code android.os.Message} and decoded the
+ * same way as the MESSAGE_READ and MESSAGE_WRITE branches of BluetoothChatFragment's Handler.
+ */
+final class UiLooper extends Thread {
+
+    // Depth of the message queue before senders have to wait
+    private static final int QUEUE_CAPACITY = 1024;
+
+    static final class UiMessage {
+        int what;
+        int arg1;
+        Object obj;
+    }
+
+    private final ArrayBlockingQueue<UiMessage> mQueue =
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ArrayBlockingQueue<UiMessage> mPool =
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BufferPool mBufferPool;
+    private final String mDeviceName;
+    private volatile long mDecodedChars;
+
+    UiLooper(BufferPool bufferPool, String deviceName) {
+        super("UiLooper");
+        setDaemon(true);
+        mBufferPool = bufferPool;
+        mDeviceName = deviceName;
+    }
+
+    UiMessage obtainMessage(int what, int arg1, Object obj) {
+        UiMessage msg = mPool.poll();
+        if (msg == null) {
+            msg = new UiMessage();
+        }
+        msg.what = what;
+        msg.arg1 = arg1;
+        msg.obj = obj;
+        return msg;
+    }
+
+    /**
+     * Queue a message, waiting while the UI thread is behind.
+     */
+    void sendMessage(UiMessage msg) throws InterruptedException {
+        mQueue.put(msg);
+    }
+
+    /**
+     * Return the number of characters decoded so far, so the work cannot be optimized away.
+     */
+    long getDecodedChars() {
+        return mDecodedChars;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                UiMessage msg = mQueue.take();
+                handleMessage(msg);
+                msg.obj = null;
+                mPool.offer(msg);
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        }
+    }
+
+    private void handleMessage(UiMessage msg) {
+        String line;
+        switch (msg.what) {
+            case Constants.MESSAGE_WRITE:
+                byte[] writeBuf = (byte[]) msg.obj;
+                line = "Me:  " + new String(writeBuf);
+                break;
+            case Constants.MESSAGE_READ:
+                byte[] readBuf = (byte[]) msg.obj;
+                line = mDeviceName + ":  " + new String(readBuf, 0, msg.arg1);
+                mBufferPool.release(readBuf);
+                break;
+            default:
+                return;
+        }
+        mDecodedChars += line.length();
+    }
+}
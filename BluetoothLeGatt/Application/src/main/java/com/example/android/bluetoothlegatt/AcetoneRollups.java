@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Per-minute, per-hour and per-day summaries of the readings in an {@link AcetoneStore}: the
+ * minimum, maximum, mean and number of the readings in each minute, hour and day. They are
+ * updated as each reading is added, and let a query over a long time answer with a few hundred
+ * summaries rather than every reading.
+ *
+ * <p>Each tier is a file of fixed-size summaries in time order. Only the last summary of a
+ * tier changes, rewritten in place as readings arrive. The file header counts the readings
+ * included, and is written after the summary. A tier left behind the store by a crash, or
+ * whose last summary is not that of the last reading, is rebuilt from the readings when it is
+ * opened.</p>
+ */
+class AcetoneRollups implements Closeable {
+
+    static final long MINUTE_SECONDS = 60;
+    static final long HOUR_SECONDS = 60 * MINUTE_SECONDS;
+    static final long DAY_SECONDS = 24 * HOUR_SECONDS;
+
+    /**
+     * Receives the summaries found by {@link #query(long, long, int, Visitor)}.
+     */
+    interface Visitor {
+        /**
+         * @param startSeconds The start of the time the summary covers.
+         * @param durationSeconds The length of that time, 0 for a single reading.
+         */
+        void onSummary(long startSeconds, long durationSeconds, long min, long max, double mean,
+                       int count);
+    }
+
+    private final AcetoneStore mReadings;
+    private final Tier[] mTiers;
+
+    private AcetoneRollups(AcetoneStore readings, Tier[] tiers) {
+        mReadings = readings;
+        mTiers = tiers;
+    }
+
+    /**
+     * Opens the summaries of a store, kept in files named after {@code file}. Missing tiers, and
+     * tiers that do not include every reading of the store, are rebuilt from the store.
+     */
+    static AcetoneRollups open(File file, AcetoneStore readings) throws IOException {
+        long[] resolutions = {MINUTE_SECONDS, HOUR_SECONDS, DAY_SECONDS};
+        Tier[] tiers = new Tier[resolutions.length];
+        try {
+            for (int i = 0; i < tiers.length; i++) {
+                tiers[i] = Tier.open(new File(file.getPath() + "." + resolutions[i]),
+                        resolutions[i]);
+                if (!tiers[i].isUpTo(readings)) {
+                    tiers[i].rebuild(readings);
+                }
+            }
+        } catch (IOException e) {
+            for (Tier tier : tiers) {
+                if (tier != null) {
+                    tier.close();
+                }
+            }
+            throw e;
+        }
+        return new AcetoneRollups(readings, tiers);
+    }
+
+    /**
+     * Adds a reading to every tier. To be called after appending it to the store.
+     */
+    synchronized void add(long timeSeconds, long value) throws IOException {
+        for (Tier tier : mTiers) {
+            tier.add(timeSeconds, value);
+            tier.writeSummary();
+            tier.writeReadingCount();
+        }
+    }
+
+    /**
+     * Adds {@code count} readings to every tier, writing each summary they change once.
+     * To be called after appending them to the store.
+     */
+    synchronized void add(long[] timesSeconds, long[] values, int count) throws IOException {
+        for (Tier tier : mTiers) {
+            for (int i = 0; i < count; i++) {
+                tier.add(timesSeconds[i], values[i]);
+            }
+            tier.writeSummary();
+            tier.writeReadingCount();
+        }
+    }
+
+    /**
+     * Visits, in time order, summaries of the readings taken from {@code fromSeconds} included
+     * to {@code toSeconds} excluded. They come from the finest tier with at most
+     * {@code maxSummaries} summaries in that time, starting with the readings themselves, or
+     * from the per-day tier if none has so few.
+     */
+    synchronized void query(long fromSeconds, long toSeconds, int maxSummaries,
+                            final Visitor visitor) throws IOException {
+        if (mReadings.count(fromSeconds, toSeconds) <= maxSummaries) {
+            mReadings.scan(fromSeconds, toSeconds,
+                    (time, value) -> visitor.onSummary(time, 0, value, value, value, 1));
+            return;
+        }
+        for (int i = 0; i < mTiers.length; i++) {
+            if (i == mTiers.length - 1 || mTiers[i].count(fromSeconds, toSeconds) <= maxSummaries) {
+                mTiers[i].scan(fromSeconds, toSeconds, visitor);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (Tier tier : mTiers) {
+            try {
+                tier.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The summaries at one resolution.
+     */
+    private static final class Tier {
+        private static final int MAGIC = 0x41435255;  // "ACRU"
+        private static final int VERSION = 1;
+
+        // int magic, int version, long resolution, long readings included
+        private static final int HEADER_SIZE = 24;
+        private static final int READING_COUNT_OFFSET = 16;
+
+        // long start, long min, long max, long sum, int count, int unused
+        private static final int SUMMARY_SIZE = 40;
+
+        private static final int SCAN_BATCH = 256;
+
+        final long resolution;
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final ByteBuffer mSummary = ByteBuffer.allocate(SUMMARY_SIZE);
+        private final ByteBuffer mReadingCountBuffer = ByteBuffer.allocate(8);
+        private final ByteBuffer mScanBuffer = ByteBuffer.allocate(SUMMARY_SIZE * SCAN_BATCH);
+        private long mReadingCount;
+        private int mCount;
+
+        // The last summary, still changing, and whether it changed since it was written
+        private boolean mDirty;
+        private long mStart;
+        private long mMin;
+        private long mMax;
+        private long mSum;
+        private int mSummaryCount;
+
+        private Tier(RandomAccessFile file, long resolution) {
+            this.resolution = resolution;
+            mFile = file;
+            mChannel = file.getChannel();
+        }
+
+        static Tier open(File file, long resolution) throws IOException {
+            Tier tier = new Tier(new RandomAccessFile(file, "rw"), resolution);
+            try {
+                tier.load();
+            } catch (IOException e) {
+                tier.close();
+                throw e;
+            }
+            return tier;
+        }
+
+        private void load() throws IOException {
+            long length = mChannel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (length < HEADER_SIZE) {
+                // New, or never completely written: rebuilt by open()
+                mReadingCount = -1;
+                return;
+            }
+            readFully(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                    || header.getLong(8) != resolution
+                    || (length - HEADER_SIZE) % SUMMARY_SIZE != 0) {
+                mReadingCount = -1;
+                return;
+            }
+            mReadingCount = header.getLong(READING_COUNT_OFFSET);
+            mCount = (int) ((length - HEADER_SIZE) / SUMMARY_SIZE);
+            if (mCount > 0) {
+                mSummary.clear();
+                readFully(mSummary, position(mCount - 1));
+                mStart = mSummary.getLong(0);
+                mMin = mSummary.getLong(8);
+                mMax = mSummary.getLong(16);
+                mSum = mSummary.getLong(24);
+                mSummaryCount = mSummary.getInt(32);
+            }
+        }
+
+        /**
+         * Returns whether the tier includes every reading of a store, and no others.
+         */
+        boolean isUpTo(AcetoneStore readings) {
+            if (mReadingCount != readings.size()) {
+                return false;
+            }
+            return mCount == 0 ? mReadingCount == 0
+                    : mStart == startOf(readings.getLastTime());
+        }
+
+        void rebuild(AcetoneStore readings) throws IOException {
+            mChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(resolution).putLong(0).flip();
+            writeFully(header, 0);
+            mReadingCount = 0;
+            mCount = 0;
+            final IOException[] failure = new IOException[1];
+            readings.scan(Long.MIN_VALUE, Long.MAX_VALUE, (time, value) -> {
+                if (failure[0] == null) {
+                    try {
+                        add(time, value);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            writeSummary();
+            writeReadingCount();
+        }
+
+        void add(long timeSeconds, long value) throws IOException {
+            long start = timeSeconds - Math.floorMod(timeSeconds, resolution);
+            if (mCount > 0 && start <= mStart) {
+                // In the last summary, or older than it like the store makes it
+                mMin = Math.min(mMin, value);
+                mMax = Math.max(mMax, value);
+                mSum += value;
+                mSummaryCount++;
+            } else {
+                // The previous summary is complete
+                writeSummary();
+                mStart = start;
+                mMin = value;
+                mMax = value;
+                mSum = value;
+                mSummaryCount = 1;
+                mCount++;
+            }
+            mDirty = true;
+            mReadingCount++;
+        }
+
+        void writeSummary() throws IOException {
+            if (!mDirty) {
+                return;
+            }
+            mSummary.clear();
+            mSummary.putLong(mStart).putLong(mMin).putLong(mMax).putLong(mSum)
+                    .putInt(mSummaryCount).putInt(0).flip();
+            writeFully(mSummary, position(mCount - 1));
+            mDirty = false;
+        }
+
+        void writeReadingCount() throws IOException {
+            mReadingCountBuffer.clear();
+            mReadingCountBuffer.putLong(0, mReadingCount);
+            writeFully(mReadingCountBuffer, READING_COUNT_OFFSET);
+        }
+
+        int count(long fromSeconds, long toSeconds) throws IOException {
+            return Math.max(0, lowerBound(toSeconds) - lowerBound(startOf(fromSeconds)));
+        }
+
+        void scan(long fromSeconds, long toSeconds, Visitor visitor) throws IOException {
+            int index = lowerBound(startOf(fromSeconds));
+            while (index < mCount) {
+                int batch = Math.min(SCAN_BATCH, mCount - index);
+                mScanBuffer.clear();
+                mScanBuffer.limit(batch * SUMMARY_SIZE);
+                readFully(mScanBuffer, position(index));
+                for (int i = 0; i < batch; i++) {
+                    int offset = i * SUMMARY_SIZE;
+                    long start = mScanBuffer.getLong(offset);
+                    if (start >= toSeconds) {
+                        return;
+                    }
+                    int count = mScanBuffer.getInt(offset + 32);
+                    visitor.onSummary(start, resolution, mScanBuffer.getLong(offset + 8),
+                            mScanBuffer.getLong(offset + 16),
+                            (double) mScanBuffer.getLong(offset + 24) / count, count);
+                }
+                index += batch;
+            }
+        }
+
+        void close() throws IOException {
+            mFile.close();
+        }
+
+        private long startOf(long timeSeconds) {
+            if (timeSeconds == Long.MIN_VALUE) {
+                return timeSeconds;
+            }
+            return timeSeconds - Math.floorMod(timeSeconds, resolution);
+        }
+
+        private int lowerBound(long startSeconds) throws IOException {
+            int low = 0;
+            int high = mCount;
+            ByteBuffer start = ByteBuffer.allocate(8);
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                start.clear();
+                readFully(start, position(middle));
+                if (start.getLong(0) < startSeconds) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private static long position(int index) {
+            return HEADER_SIZE + (long) index * SUMMARY_SIZE;
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = mChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of acetone rollups");
+                }
+                position += read;
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of acetone readings, each a fixed-size record of the time of the reading
+ * in seconds, its value and a checksum. Appending a reading costs one small write whatever the
+ * length of the history. Records are kept in time order, so the readings in a range of time
+ * are found by binary search.
+ *
+ * <p>A crash can only damage the end of the file: a record written in part, or space the file
+ * system allocated but never filled. Opening the store drops any such records at the end,
+ * recognizing them by their length or their checksum.</p>
+ */
+class AcetoneStore implements Closeable {
+
+    private static final int MAGIC = 0x41435354;  // "ACST"
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    // long time in seconds, long value, int CRC32 of the two
+    static final int RECORD_SIZE = 20;
+    private static final int CHECKED_SIZE = 16;
+
+    // Records read at a time by scans, or written at a time by batch appends
+    private static final int SCAN_BATCH = 256;
+
+    /**
+     * Receives the readings found by {@link #scan(long, long, Visitor)}.
+     */
+    interface Visitor {
+        void onReading(long timeSeconds, long value);
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private final ByteBuffer mScanBuffer = ByteBuffer.allocate(RECORD_SIZE * SCAN_BATCH);
+    private final CRC32 mChecksum = new CRC32();
+    private int mCount;
+    private long mLastTime = Long.MIN_VALUE;
+
+    private AcetoneStore(RandomAccessFile file) {
+        mFile = file;
+        mChannel = file.getChannel();
+    }
+
+    /**
+     * Opens a store, creating it if needed and dropping any records left incomplete by a crash.
+     */
+    static AcetoneStore open(File file) throws IOException {
+        AcetoneStore store = new AcetoneStore(new RandomAccessFile(file, "rw"));
+        try {
+            store.recover();
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * Opens a store, first filling it from the files of serialized {@code ArrayList<Long>}
+     * readings and times the app used to keep, if it does not exist yet. The old files are
+     * deleted once their readings are safely in the store. A crash during the migration leaves
+     * them in place, and the migration starts over the next time.
+     */
+    static AcetoneStore openMigrating(File file, File legacyTimes, File legacyValues)
+            throws IOException {
+        if (!file.exists() && legacyTimes.exists() && legacyValues.exists()) {
+            File temp = new File(file.getPath() + ".tmp");
+            if (temp.exists() && !temp.delete()) {
+                throw new IOException("Unable to delete " + temp);
+            }
+            AcetoneStore store = open(temp);
+            try {
+                List<Long> times = readLegacyList(legacyTimes);
+                List<Long> values = readLegacyList(legacyValues);
+                int count = Math.min(times.size(), values.size());
+                for (int i = 0; i < count; i++) {
+                    store.append(times.get(i), values.get(i));
+                }
+                store.sync();
+            } finally {
+                store.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp + " to " + file);
+            }
+            legacyTimes.delete();
+            legacyValues.delete();
+        }
+        return open(file);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Long> readLegacyList(File file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+            return (List<Long>) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unreadable readings in " + file, e);
+        }
+    }
+
+    private void recover() throws IOException {
+        long length = mChannel.size();
+        if (length < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            mChannel.write(header, 0);
+            mChannel.truncate(HEADER_SIZE);
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not an acetone store");
+        }
+        int count = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+        while (count > 0 && !isValid(count - 1)) {
+            count--;
+        }
+        if (HEADER_SIZE + (long) count * RECORD_SIZE != length) {
+            mChannel.truncate(HEADER_SIZE + (long) count * RECORD_SIZE);
+        }
+        mCount = count;
+        if (count > 0) {
+            mLastTime = readTime(count - 1);
+        }
+    }
+
+    private boolean isValid(int index) throws IOException {
+        mRecord.clear();
+        readFully(mRecord, position(index));
+        mChecksum.reset();
+        mChecksum.update(mRecord.array(), 0, CHECKED_SIZE);
+        return mRecord.getInt(CHECKED_SIZE) == (int) mChecksum.getValue();
+    }
+
+    /**
+     * Appends a reading. A reading older than the last one is stored with the time of the last
+     * one, to keep the records in order.
+     */
+    synchronized void append(long timeSeconds, long value) throws IOException {
+        long time = Math.max(timeSeconds, mLastTime);
+        mRecord.clear();
+        mRecord.putLong(time).putLong(value);
+        mChecksum.reset();
+        mChecksum.update(mRecord.array(), 0, CHECKED_SIZE);
+        mRecord.putInt((int) mChecksum.getValue());
+        mRecord.flip();
+        long position = position(mCount);
+        while (mRecord.hasRemaining()) {
+            position += mChannel.write(mRecord, position);
+        }
+        mCount++;
+        mLastTime = time;
+    }
+
+    /**
+     * Appends {@code count} readings, as {@link #append(long, long)} does one by one, in as
+     * few writes as the batch buffer allows.
+     */
+    synchronized void append(long[] timesSeconds, long[] values, int count) throws IOException {
+        int i = 0;
+        while (i < count) {
+            int end = Math.min(count, i + SCAN_BATCH);
+            mScanBuffer.clear();
+            long lastTime = mLastTime;
+            for (; i < end; i++) {
+                long time = Math.max(timesSeconds[i], lastTime);
+                int offset = mScanBuffer.position();
+                mScanBuffer.putLong(time).putLong(values[i]);
+                mChecksum.reset();
+                mChecksum.update(mScanBuffer.array(), offset, CHECKED_SIZE);
+                mScanBuffer.putInt((int) mChecksum.getValue());
+                lastTime = time;
+            }
+            mScanBuffer.flip();
+            long position = position(mCount);
+            int written = mScanBuffer.remaining() / RECORD_SIZE;
+            while (mScanBuffer.hasRemaining()) {
+                position += mChannel.write(mScanBuffer, position);
+            }
+            mCount += written;
+            mLastTime = lastTime;
+        }
+    }
+
+    /**
+     * Returns the number of readings stored.
+     */
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the time of the last reading, or {@link Long#MIN_VALUE} if there is none.
+     */
+    synchronized long getLastTime() {
+        return mLastTime;
+    }
+
+    /**
+     * Returns the number of readings taken from {@code fromSeconds} included to
+     * {@code toSeconds} excluded.
+     */
+    synchronized int count(long fromSeconds, long toSeconds) throws IOException {
+        return Math.max(0, lowerBound(toSeconds) - lowerBound(fromSeconds));
+    }
+
+    /**
+     * Visits, in time order, the readings taken from {@code fromSeconds} included to
+     * {@code toSeconds} excluded.
+     */
+    synchronized void scan(long fromSeconds, long toSeconds, Visitor visitor)
+            throws IOException {
+        int index = lowerBound(fromSeconds);
+        while (index < mCount) {
+            int batch = Math.min(SCAN_BATCH, mCount - index);
+            mScanBuffer.clear();
+            mScanBuffer.limit(batch * RECORD_SIZE);
+            readFully(mScanBuffer, position(index));
+            for (int i = 0; i < batch; i++) {
+                long time = mScanBuffer.getLong(i * RECORD_SIZE);
+                if (time >= toSeconds) {
+                    return;
+                }
+                visitor.onReading(time, mScanBuffer.getLong(i * RECORD_SIZE + 8));
+            }
+            index += batch;
+        }
+    }
+
+    /**
+     * Returns the index of the first reading taken at or after a time.
+     */
+    private int lowerBound(long timeSeconds) throws IOException {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (readTime(middle) < timeSeconds) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long readTime(int index) throws IOException {
+        mRecord.clear();
+        mRecord.limit(8);
+        readFully(mRecord, position(index));
+        return mRecord.getLong(0);
+    }
+
+    /**
+     * Forces the readings appended so far to the storage device.
+     */
+    synchronized void sync() throws IOException {
+        mChannel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            mChannel.force(false);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private static long position(int index) {
+        return HEADER_SIZE + (long) index * RECORD_SIZE;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of acetone store");
+            }
+            position += read;
+        }
+    }
+}
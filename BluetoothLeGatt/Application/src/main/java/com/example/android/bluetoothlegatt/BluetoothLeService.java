@@ -30,23 +30,73 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers hosted on
+ * Bluetooth LE devices. Each device connected to has its own session, keyed by its address,
+ * with its own connection state and {@link GattOperationQueue}, as the stack only takes one
+ * read or write at a time per connection. The queues of all sessions share an
+ * {@link OperationArbiter}, which gives them turns round-robin, so a device with many
+ * operations queued does not hold up the others.
+ *
+ * <p>Once connected, the service asks for the largest ATT MTU the device accepts, and adjusts
+ * the connection priority to the traffic on the link with a {@link LinkPolicy}: high during
+ * bulk transfers, low power while idle.</p>
+ *
+ * <p>Events are delivered in process to the {@link Listener}s added with
+ * {@link #addListener(Listener, Executor)}, and values read or notified to those added with
+ * {@link #addDataListener(Listener, Executor)}, with the address of the device they come from.
+ * They are only broadcast as {@code Intent}s, a round trip through the system for every
+ * notification, once {@link #setBroadcastsEnabled(boolean)} has been called.</p>
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
+
+    // Sessions by device address, from connect() to close()
+    private final ConcurrentHashMap<String, GattSession> mSessions = new ConcurrentHashMap<>();
+
+    // Runs the GATT operation timeouts and the link policies
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // Operations of all sessions share the radio. Each session has at most one in flight, so a
+    // device that stops answering only holds one of these turns until its operation times
+    // out, while the other sessions keep taking the rest round-robin.
+    private static final int MAX_OPERATIONS_IN_FLIGHT = 4;
+    private final OperationArbiter mArbiter = new OperationArbiter(MAX_OPERATIONS_IN_FLIGHT);
+
+    // The MTU before any exchange, and the largest one Android accepts
+    public final static int DEFAULT_MTU = 23;
+    private final static int PREFERRED_MTU = 517;
+
+    private final CopyOnWriteArrayList<Registration> mListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean mBroadcastsEnabled = false;
+
+    private final DecoderRegistry mDecoders = new DecoderRegistry();
+
+    // Decoded values given back by the listeners, to be reused
+    private static final int MAX_FREE_VALUES = 16;
+    private final ArrayDeque<CharacteristicValue> mFreeValues = new ArrayDeque<>();
 
     private static final int STATE_DISCONNECTED = 0;
     private static final int STATE_CONNECTING = 1;
@@ -62,6 +112,8 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
@@ -69,33 +121,113 @@ public class BluetoothLeService extends Service {
     public final static UUID UUID_ACETONE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.ACETONE_MEASUREMENT_CHARACTERISTIC);
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    /**
+     * Receives the events this service otherwise broadcasts, without leaving the process.
+     * Each names the address of the device it comes from, as {@link #EXTRA_ADDRESS} does.
+     */
+    public interface Listener {
+        /**
+         * Connected to a GATT server, as {@link #ACTION_GATT_CONNECTED}.
+         */
+        default void onConnected(String address) {
+        }
+
+        /**
+         * Disconnected from a GATT server, as {@link #ACTION_GATT_DISCONNECTED}.
+         */
+        default void onDisconnected(String address) {
+        }
+
+        /**
+         * The GATT services have been discovered, as {@link #ACTION_GATT_SERVICES_DISCOVERED}.
+         */
+        default void onServicesDiscovered(String address) {
+        }
+
+        /**
+         * A characteristic was read or notified, as {@link #ACTION_DATA_AVAILABLE}.
+         *
+         * @param address The address of the device.
+         * @param value Its decoded value, only valid until this method returns.
+         */
+        default void onDataAvailable(String address, CharacteristicValue value) {
+        }
+
+        /**
+         * The MTU of a connection was negotiated, after connecting.
+         *
+         * @param address The address of the device.
+         * @param mtu The new ATT MTU; attribute values up to {@code mtu - 3} bytes long fit in
+         *            a single packet.
+         */
+        default void onMtuChanged(String address, int mtu) {
+        }
+    }
+
+    private static final class Registration {
+        final Listener listener;
+        final Executor executor;
+        // Whether the listener gets the values read or notified, rather than the other events
+        final boolean data;
+
+        Registration(Listener listener, Executor executor, boolean data) {
+            this.listener = listener;
+            this.executor = executor;
+            this.data = data;
+        }
+    }
+
+    // The connection to one device. Implements callback methods for the GATT events that the
+    // app cares about.  For example, connection change and services discovered.
+    private final class GattSession extends BluetoothGattCallback {
+        final String mAddress;
+        final GattOperationQueue mOperationQueue = new GattOperationQueue(mScheduler, mArbiter);
+        final LinkPolicy mLinkPolicy = new LinkPolicy();
+        volatile BluetoothGatt mGatt;
+        volatile int mConnectionState = STATE_DISCONNECTED;
+        volatile int mMtu = DEFAULT_MTU;
+        private ScheduledFuture<?> mLinkPolicyTask;
+
+        GattSession(String address) {
+            mAddress = address;
+        }
+
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
+        public void onConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
                 mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
+                dispatchUpdate(listener -> listener.onConnected(mAddress),
+                        ACTION_GATT_CONNECTED, mAddress);
+                Log.i(TAG, "Connected to GATT server " + mAddress);
+                startLinkPolicy(gatt);
+                // Negotiates the MTU first, as the stack handles one request at a time, then
+                // attempts to discover services.
+                mOperationQueue.enqueue(GattOperationQueue.REQUEST_MTU, gatt,
+                        () -> gatt.requestMtu(PREFERRED_MTU)).whenComplete((value, error) -> {
+                            if (error != null) {
+                                Log.w(TAG, "MTU exchange with " + mAddress + " failed: " + error);
+                            }
+                            if (mConnectionState == STATE_CONNECTED) {
+                                Log.i(TAG, "Attempting to start service discovery:" +
+                                        gatt.discoverServices());
+                            }
+                        });
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                Log.i(TAG, "Disconnected from GATT server " + mAddress);
+                stopLinkPolicy();
+                mOperationQueue.clear(new IOException("Disconnected from GATT server"));
+                dispatchUpdate(listener -> listener.onDisconnected(mAddress),
+                        ACTION_GATT_DISCONNECTED, mAddress);
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                dispatchUpdate(listener -> listener.onServicesDiscovered(mAddress),
+                        ACTION_GATT_SERVICES_DISCOVERED, mAddress);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
@@ -105,58 +237,221 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
+            completeOperation(GattOperationQueue.READ_CHARACTERISTIC, characteristic, status,
+                    characteristic.getValue());
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                countTransferred(characteristic.getValue());
+                dispatchData(mAddress, characteristic);
             }
         }
 
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            completeOperation(GattOperationQueue.WRITE_CHARACTERISTIC, characteristic, status,
+                    characteristic.getValue());
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                countTransferred(characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                     int status) {
+            completeOperation(GattOperationQueue.READ_DESCRIPTOR, descriptor, status,
+                    descriptor.getValue());
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            completeOperation(GattOperationQueue.WRITE_DESCRIPTOR, descriptor, status,
+                    descriptor.getValue());
+        }
+
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            countTransferred(characteristic.getValue());
+            dispatchData(mAddress, characteristic);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, final int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.i(TAG, "MTU negotiated with " + mAddress + ": " + mtu);
+                mMtu = mtu;
+                dispatchUpdate(listener -> listener.onMtuChanged(mAddress, mtu), null, mAddress);
+            }
+            completeOperation(GattOperationQueue.REQUEST_MTU, gatt, status, null);
+        }
+
+        private void completeOperation(int kind, Object attribute, int status, byte[] value) {
+            if (!mOperationQueue.onCompleted(kind, attribute, status, value)) {
+                Log.w(TAG, "Completion of an operation no longer in flight, status " + status);
+            }
+        }
+
+        private void countTransferred(byte[] value) {
+            if (value != null) {
+                mLinkPolicy.onTransferred(value.length);
+            }
+        }
+
+        // Service discovery and the MTU exchange are bulk transfers, so a connection starts at
+        // high priority and the policy lowers it once they are over.
+        private synchronized void startLinkPolicy(final BluetoothGatt gatt) {
+            stopLinkPolicy();
+            mMtu = DEFAULT_MTU;
+            gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+            mLinkPolicy.reset(SystemClock.elapsedRealtime(), LinkPolicy.PRIORITY_HIGH);
+            mLinkPolicyTask = mScheduler.scheduleAtFixedRate(() -> {
+                int priority = mLinkPolicy.onWindowEnd(SystemClock.elapsedRealtime(),
+                        mOperationQueue.getPendingCount());
+                if (priority >= 0) {
+                    Log.d(TAG, "Connection priority of " + mAddress + " " + priority + " at "
+                            + mLinkPolicy.getBytesPerSecond() + " bytes/s");
+                    gatt.requestConnectionPriority(priority);
+                }
+            }, LinkPolicy.WINDOW_MILLIS, LinkPolicy.WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void stopLinkPolicy() {
+            if (mLinkPolicyTask != null) {
+                mLinkPolicyTask.cancel(false);
+                mLinkPolicyTask = null;
+            }
+        }
+
+        void close() {
+            stopLinkPolicy();
+            mOperationQueue.clear(new IOException("GATT client closed"));
+            mGatt.close();
         }
-    };
+    }
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    /**
+     * Registers a listener for the connection events of this service, every one but
+     * {@link Listener#onDataAvailable}.
+     *
+     * @param listener The listener.
+     * @param executor Runs the listener's methods, for example on the main thread.
+     */
+    public void addListener(Listener listener, Executor executor) {
+        mListeners.add(new Registration(listener, executor, false));
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
+    /**
+     * Registers a listener for the values read or notified, given to
+     * {@link Listener#onDataAvailable} only. Notifications may come faster than the screen
+     * refreshes, and each value is held until the listener has returned, so the executor
+     * should not post every one of them to the main thread.
+     *
+     * @param listener The listener.
+     * @param executor Runs the listener's method, for example on the GATT callback thread.
+     */
+    public void addDataListener(Listener listener, Executor executor) {
+        mListeners.add(new Registration(listener, executor, true));
+    }
 
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
+    public void removeListener(Listener listener) {
+        for (Registration registration : mListeners) {
+            if (registration.listener == listener) {
+                mListeners.remove(registration);
             }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-        } else if (UUID_ACETONE_MEASUREMENT.equals(characteristic.getUuid())){
-            int format = BluetoothGattCharacteristic.FORMAT_UINT32;
-            final int acetoneMeasurement = characteristic.getIntValue(format, 0);
-            intent.putExtra(EXTRA_DATA, String.valueOf(acetoneMeasurement));
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+        }
+    }
+
+    /**
+     * Also broadcasts the events of this service as {@code Intent}s, for receivers registered
+     * for {@link #ACTION_DATA_AVAILABLE} and the other actions. Off by default.
+     */
+    public void setBroadcastsEnabled(boolean enabled) {
+        mBroadcastsEnabled = enabled;
+    }
+
+    private void dispatchUpdate(final Consumer<Listener> event, final String action,
+                                final String address) {
+        for (final Registration registration : mListeners) {
+            if (!registration.data) {
+                registration.executor.execute(() -> event.accept(registration.listener));
+            }
+        }
+        if (mBroadcastsEnabled && action != null) {
+            final Intent intent = new Intent(action);
+            intent.putExtra(EXTRA_ADDRESS, address);
+            sendBroadcast(intent);
+        }
+    }
+
+    /**
+     * Decodes the values of a characteristic with the given decoder from now on, instead of
+     * the built-in one or the hex dump.
+     */
+    public void registerDecoder(UUID characteristic, CharacteristicDecoder decoder) {
+        mDecoders.register(characteristic, decoder);
+    }
+
+    private void dispatchData(final String address,
+                              final BluetoothGattCharacteristic characteristic) {
+        if (!hasDataListeners() && !mBroadcastsEnabled) {
+            return;
+        }
+        final UUID uuid = characteristic.getUuid();
+        final CharacteristicValue value = obtainValue();
+        value.reset(uuid);
+        mDecoders.get(uuid).decode(characteristic.getValue(), value);
+        if (mBroadcastsEnabled) {
+            final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+            intent.putExtra(EXTRA_ADDRESS, address);
+            if (value.length() > 0) {
+                intent.putExtra(EXTRA_DATA, value.toString());
+            }
+            sendBroadcast(intent);
+        }
+        // Held until every listener has had the value
+        value.pendingDeliveries.set(1);
+        for (final Registration registration : mListeners) {
+            if (!registration.data) {
+                continue;
+            }
+            value.pendingDeliveries.incrementAndGet();
+            registration.executor.execute(() -> {
+                try {
+                    registration.listener.onDataAvailable(address, value);
+                } finally {
+                    releaseValue(value);
+                }
+            });
+        }
+        releaseValue(value);
+    }
+
+    private boolean hasDataListeners() {
+        for (Registration registration : mListeners) {
+            if (registration.data) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CharacteristicValue obtainValue() {
+        synchronized (mFreeValues) {
+            CharacteristicValue value = mFreeValues.poll();
+            return value != null ? value : new CharacteristicValue();
+        }
+    }
+
+    private void releaseValue(CharacteristicValue value) {
+        if (value.pendingDeliveries.decrementAndGet() == 0) {
+            synchronized (mFreeValues) {
+                if (mFreeValues.size() < MAX_FREE_VALUES) {
+                    mFreeValues.push(value);
+                }
             }
         }
-        sendBroadcast(intent);
     }
 
     public class LocalBinder extends Binder {
@@ -179,6 +474,12 @@ public class BluetoothLeService extends Service {
         return super.onUnbind(intent);
     }
 
+    @Override
+    public void onDestroy() {
+        mScheduler.shutdownNow();
+        super.onDestroy();
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
     /**
@@ -207,7 +508,8 @@ public class BluetoothLeService extends Service {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. Sessions with other devices
+     * are kept: the service connects to several devices at once.
      *
      * @param address The device address of the destination device.
      *
@@ -223,11 +525,11 @@ public class BluetoothLeService extends Service {
         }
 
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
+        GattSession session = mSessions.get(address);
+        if (session != null) {
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for connection to " + address);
+            if (session.mGatt.connect()) {
+                session.mConnectionState = STATE_CONNECTING;
                 return true;
             } else {
                 return false;
@@ -241,10 +543,15 @@ public class BluetoothLeService extends Service {
         }
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        session = new GattSession(address);
+        session.mConnectionState = STATE_CONNECTING;
+        session.mGatt = device.connectGatt(this, false, session);
+        if (session.mGatt == null) {
+            Log.w(TAG, "Unable to create a connection to " + address);
+            return false;
+        }
+        Log.d(TAG, "Trying to create a new connection to " + address);
+        mSessions.put(address, session);
         return true;
     }
 
@@ -253,74 +560,203 @@ public class BluetoothLeService extends Service {
      * is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
+     *
+     * @param address The device address of the device to disconnect from.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void disconnect(String address) {
+        final GattSession session = getSession(address);
+        if (session == null) {
             return;
         }
-        mBluetoothGatt.disconnect();
+        session.mGatt.disconnect();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
      * released properly.
+     *
+     * @param address The device address of the device no longer used.
+     */
+    public void close(String address) {
+        final GattSession session = mSessions.remove(address);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Closes the sessions with all devices, as {@link #close(String)}.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        for (String address : mSessions.keySet()) {
+            close(address);
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
+     * Returns the addresses of the devices currently connected.
+     */
+    public List<String> getConnectedDevices() {
+        final List<String> addresses = new ArrayList<>();
+        for (GattSession session : mSessions.values()) {
+            if (session.mConnectionState == STATE_CONNECTED) {
+                addresses.add(session.mAddress);
+            }
+        }
+        return addresses;
+    }
+
+    private GattSession getSession(String address) {
+        final GattSession session = address != null ? mSessions.get(address) : null;
+        if (mBluetoothAdapter == null || session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or not connected to " + address);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Request a read on a given {@code BluetoothGattCharacteristic}. The read is queued behind
+     * any other operation in progress. Its result is also broadcast with
+     * {@link #ACTION_DATA_AVAILABLE}, as reported through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
+     * @param address The device address of the device to read from.
      * @param characteristic The characteristic to read from.
+     *
+     * @return A future completed with the value read.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    public CompletableFuture<byte[]> readCharacteristic(
+            String address, final BluetoothGattCharacteristic characteristic) {
+        final GattSession session = getSession(address);
+        if (session == null) {
+            return notConnected(address);
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        final BluetoothGatt gatt = session.mGatt;
+        return logFailure("Read of " + characteristic.getUuid(), session.mOperationQueue.enqueue(
+                GattOperationQueue.READ_CHARACTERISTIC, characteristic,
+                () -> gatt.readCharacteristic(characteristic)));
+    }
+
+    /**
+     * Request a write to a given {@code BluetoothGattCharacteristic}, queued behind any other
+     * operation in progress.
+     *
+     * @param address The device address of the device to write to.
+     * @param characteristic The characteristic to write to.
+     * @param value The value to write.
+     *
+     * @return A future completed with the value written once the device has acknowledged it.
+     */
+    public CompletableFuture<byte[]> writeCharacteristic(
+            String address, final BluetoothGattCharacteristic characteristic,
+            final byte[] value) {
+        final GattSession session = getSession(address);
+        if (session == null) {
+            return notConnected(address);
+        }
+        final BluetoothGatt gatt = session.mGatt;
+        // The value is only set when the write is issued, as the characteristic is shared
+        return logFailure("Write of " + characteristic.getUuid(), session.mOperationQueue.enqueue(
+                GattOperationQueue.WRITE_CHARACTERISTIC, characteristic, () -> {
+                    characteristic.setValue(value);
+                    return gatt.writeCharacteristic(characteristic);
+                }));
     }
 
     /**
      * Enables or disables notification on a give characteristic.
      *
+     * @param address The device address of the device the characteristic is on.
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
+     *
+     * @return A future completed once the device has been told, for characteristics whose
+     *         client configuration descriptor has to be written.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
-                                              boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    public CompletableFuture<byte[]> setCharacteristicNotification(
+            String address, BluetoothGattCharacteristic characteristic, boolean enabled) {
+        final GattSession session = getSession(address);
+        if (session == null) {
+            return notConnected(address);
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        final BluetoothGatt gatt = session.mGatt;
+        gatt.setCharacteristicNotification(characteristic, enabled);
 
         // This is specific to Heart Rate Measurement.
         if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+            final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
                     UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+            if (descriptor != null) {
+                final byte[] value = enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                        : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+                return logFailure("Notification setup of " + characteristic.getUuid(),
+                        session.mOperationQueue.enqueue(GattOperationQueue.WRITE_DESCRIPTOR,
+                                descriptor, () -> {
+                                    descriptor.setValue(value);
+                                    return gatt.writeDescriptor(descriptor);
+                                }));
+            }
         }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static CompletableFuture<byte[]> notConnected(String address) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException(
+                "BluetoothAdapter not initialized or not connected to " + address));
+        return future;
+    }
+
+    private static CompletableFuture<byte[]> logFailure(final String operation,
+                                                        CompletableFuture<byte[]> future) {
+        future.whenComplete((value, error) -> {
+            if (error != null) {
+                Log.w(TAG, operation + " failed: " + error);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns the ATT MTU negotiated for the connection to a device, or {@link #DEFAULT_MTU}.
+     */
+    public int getMtu(String address) {
+        final GattSession session = mSessions.get(address);
+        return session != null ? session.mMtu : DEFAULT_MTU;
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected device. This should be
+     * Returns the connection priority last requested for a device, one of the
+     * {@code BluetoothGatt.CONNECTION_PRIORITY_*} values.
+     */
+    public int getConnectionPriority(String address) {
+        final GattSession session = mSessions.get(address);
+        return session != null ? session.mLinkPolicy.getPriority()
+                : BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    }
+
+    /**
+     * Returns the bytes of attribute values read, written or notified per second on the
+     * connection to a device, measured over the last second or so.
+     */
+    public long getBytesPerSecond(String address) {
+        final GattSession session = mSessions.get(address);
+        return session != null ? session.mLinkPolicy.getBytesPerSecond() : 0;
+    }
+
+    /**
+     * Retrieves a list of supported GATT services on a connected device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
      *
+     * @param address The device address of the device.
+     *
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        final GattSession session = mSessions.get(address);
+        if (session == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return session.mGatt.getServices();
     }
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Decodes the value of a characteristic for {@link BluetoothLeService}. Registered for a
+ * characteristic UUID with {@link BluetoothLeService#registerDecoder}.
+ */
+public interface CharacteristicDecoder {
+    /**
+     * Decodes a value into a holder, which should be written without allocating anything as it
+     * is called for every notification.
+     *
+     * @param value The raw value of the characteristic.
+     * @param out The holder to write the decoded value into, reset to
+     *            {@link CharacteristicValue#TYPE_NONE}.
+     */
+    void decode(byte[] value, CharacteristicValue out);
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The decoded value of a characteristic, as written by a {@link CharacteristicDecoder}. It is
+ * either an integer, such as a heart rate, or text, and is readable as text in both cases, so
+ * that it can be shown without building a {@code String}.
+ *
+ * <p>Values are reused from one notification to the next: a value passed to a listener is only
+ * valid until the listener returns, and must be copied to be kept. The setters are public so
+ * that decoders registered from other packages can write values; only the decoder given a
+ * value should call them.</p>
+ */
+public final class CharacteristicValue implements CharSequence {
+
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_INTEGER = 1;
+    public static final int TYPE_TEXT = 2;
+
+    private UUID mCharacteristic;
+    private int mType = TYPE_NONE;
+    private long mInteger;
+    private char[] mText = new char[64];
+    private int mLength;
+
+    // Listeners still to be given this value before it can be reused
+    final AtomicInteger pendingDeliveries = new AtomicInteger();
+
+    CharacteristicValue() {
+    }
+
+    /**
+     * Returns the UUID of the characteristic this is the value of.
+     */
+    public UUID getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    /**
+     * Returns {@link #TYPE_INTEGER}, {@link #TYPE_TEXT}, or {@link #TYPE_NONE} for an empty or
+     * unreadable value.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Returns the value of a {@link #TYPE_INTEGER} value.
+     */
+    public long getInteger() {
+        return mInteger;
+    }
+
+    void reset(UUID characteristic) {
+        mCharacteristic = characteristic;
+        mType = TYPE_NONE;
+        mLength = 0;
+    }
+
+    /**
+     * Sets an integer value, also written out as decimal text.
+     */
+    public void setInteger(long value) {
+        mType = TYPE_INTEGER;
+        mInteger = value;
+        mLength = 0;
+        if (value == Long.MIN_VALUE) {
+            append("-9223372036854775808");
+            return;
+        }
+        int digits = 1;
+        for (long rest = Math.abs(value) / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int length = digits + (value < 0 ? 1 : 0);
+        ensureCapacity(length);
+        long rest = Math.abs(value);
+        for (int i = length - 1; i >= length - digits; i--) {
+            mText[i] = (char) ('0' + rest % 10);
+            rest /= 10;
+        }
+        if (value < 0) {
+            mText[0] = '-';
+        }
+        mLength = length;
+    }
+
+    /**
+     * Makes this a text value, to be written with the {@code append} methods.
+     */
+    public void setText() {
+        mType = TYPE_TEXT;
+        mLength = 0;
+    }
+
+    /**
+     * Appends a character to a text value.
+     */
+    public void append(char c) {
+        ensureCapacity(mLength + 1);
+        mText[mLength++] = c;
+    }
+
+    /**
+     * Appends a string to a text value.
+     */
+    public void append(String s) {
+        ensureCapacity(mLength + s.length());
+        s.getChars(0, s.length(), mText, mLength);
+        mLength += s.length();
+    }
+
+    /**
+     * Returns the text buffer, of at least {@code length} characters, for decoders to write
+     * into directly before calling {@link #setLength(int)}.
+     */
+    public char[] buffer(int length) {
+        ensureCapacity(length);
+        return mText;
+    }
+
+    /**
+     * Sets the number of characters of the text written into {@link #buffer(int)}.
+     */
+    public void setLength(int length) {
+        if (length < 0 || length > mText.length) {
+            throw new IndexOutOfBoundsException("length " + length + ", capacity "
+                    + mText.length);
+        }
+        mLength = length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (length > mText.length) {
+            mText = Arrays.copyOf(mText, Math.max(length, mText.length * 2));
+        }
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return mText[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mText, 0, mLength);
+    }
+}
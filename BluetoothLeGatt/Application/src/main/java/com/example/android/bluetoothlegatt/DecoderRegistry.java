@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * The {@link CharacteristicDecoder}s of {@link BluetoothLeService}, by characteristic UUID,
+ * with the built-in decoders for heart rate, acetone and, for any other characteristic, a
+ * dump of the value as text and hex.
+ */
+class DecoderRegistry {
+
+    /**
+     * Heart Rate Measurement, parsed as per profile specifications:
+     * http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+     * Bit 0 of the flags byte tells whether the rate that follows is 8 or 16 bits.
+     */
+    static final CharacteristicDecoder HEART_RATE = (value, out) -> {
+        if (value == null || value.length < 2) {
+            return;
+        }
+        if ((value[0] & 0x01) != 0) {
+            if (value.length >= 3) {
+                out.setInteger((value[1] & 0xff) | (value[2] & 0xff) << 8);
+            }
+        } else {
+            out.setInteger(value[1] & 0xff);
+        }
+    };
+
+    /**
+     * A little-endian unsigned 32-bit integer, as the acetone measurement.
+     */
+    static final CharacteristicDecoder UINT32 = (value, out) -> {
+        if (value == null || value.length < 4) {
+            return;
+        }
+        out.setInteger((value[0] & 0xffL) | (value[1] & 0xffL) << 8
+                | (value[2] & 0xffL) << 16 | (value[3] & 0xffL) << 24);
+    };
+
+    // Two hex digits for each byte value
+    private static final char[] HEX_DIGITS = new char[512];
+
+    static {
+        final char[] digits = "0123456789ABCDEF".toCharArray();
+        for (int i = 0; i < 256; i++) {
+            HEX_DIGITS[2 * i] = digits[i >>> 4];
+            HEX_DIGITS[2 * i + 1] = digits[i & 0x0f];
+        }
+    }
+
+    /**
+     * The bytes of the value as text, then a line of hex: "AB\n41 42 ". Bytes that are not
+     * printable ASCII show as '.' in the text.
+     */
+    static final CharacteristicDecoder HEX = (value, out) -> {
+        if (value == null || value.length == 0) {
+            return;
+        }
+        out.setText();
+        int length = value.length * 4 + 1;
+        char[] text = out.buffer(length);
+        int position = 0;
+        for (byte b : value) {
+            text[position++] = b >= 0x20 && b < 0x7f ? (char) b : '.';
+        }
+        text[position++] = '\n';
+        for (byte b : value) {
+            int i = (b & 0xff) * 2;
+            text[position++] = HEX_DIGITS[i];
+            text[position++] = HEX_DIGITS[i + 1];
+            text[position++] = ' ';
+        }
+        out.setLength(position);
+    };
+
+    private final HashMap<UUID, CharacteristicDecoder> mDecoders = new HashMap<>();
+
+    DecoderRegistry() {
+        mDecoders.put(BluetoothLeService.UUID_HEART_RATE_MEASUREMENT, HEART_RATE);
+        mDecoders.put(BluetoothLeService.UUID_ACETONE_MEASUREMENT, UINT32);
+    }
+
+    synchronized void register(UUID characteristic, CharacteristicDecoder decoder) {
+        mDecoders.put(characteristic, decoder);
+    }
+
+    /**
+     * Returns the decoder of a characteristic, {@link #HEX} if none was registered.
+     */
+    synchronized CharacteristicDecoder get(UUID characteristic) {
+        CharacteristicDecoder decoder = mDecoders.get(characteristic);
+        return decoder != null ? decoder : HEX;
+    }
+}
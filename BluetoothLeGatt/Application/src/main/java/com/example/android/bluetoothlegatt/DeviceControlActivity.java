@@ -22,11 +22,9 @@ import android.app.AlertDialog;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -50,21 +48,19 @@ import com.example.android.bluetoothlegatt.PermissionManager.Permission;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
-import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -84,8 +80,9 @@ public class DeviceControlActivity extends Activity {
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
-            new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+    // The characteristics discovered on the device, null until discovery completes even when
+    // the cached list is already shown
+    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics = null;
     private boolean mConnected = false;
     private BluetoothGattCharacteristic mNotifyCharacteristic;
 
@@ -98,12 +95,35 @@ public class DeviceControlActivity extends Activity {
     private final String LIST_NAME = "NAME";
     private final String LIST_UUID = "UUID";
 
+    // Serialized lists of readings kept by earlier versions, migrated to the store
     private final String a_filename = "acetone_data_vals";
     private final String t_filename = "time_data_vals";
+    private final String store_filename = "acetone_readings";
+    private final String layouts_filename = "gatt_layouts";
+
+    private static final UUID UUID_FIRMWARE_REVISION =
+            UUID.fromString(SampleGattAttributes.FIRMWARE_REVISION_STRING);
+
+    // The services listed for the device, shown from the cache on connecting until discovery
+    // confirms them
+    private GattLayoutCache mLayoutCache;
+    private GattLayoutCache.Layout mLayout;
+
+    // Readings older than the last ones are listed as per-minute, per-hour or per-day summaries
+    private static final int MAX_HISTORY_ROWS = 500;
 
     private ArrayList<AcetoneDbPoint> acetoneDb_data;
-    private ArrayList<Long> time_data;
-    private ArrayList<Long> acetone_data;
+
+    // Only used on the storage executor, as opening them may migrate or rebuild files
+    private AcetoneStore mAcetoneStore;
+    private AcetoneRollups mAcetoneRollups;
+    // Readings at the start of the next batch that the store already took before failing
+    private int mReadingsStoredAhead;
+    // Appends readings to the store away from the UI thread
+    private final ScheduledExecutorService mStorageExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    // Shows readings once per frame and stores them in batches, however fast they come
+    private ReadingCoalescer mReadings;
 
     private AcetoneDbAdapter mAcetoneDbAdapter;
 
@@ -121,6 +141,11 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            // Events are delivered on the UI thread, and readings on the service's, which
+            // hands them to the UI at most once per frame.
+            mBluetoothLeService.addListener(mGattListener,
+                    DeviceControlActivity.this::runOnUiThread);
+            mBluetoothLeService.addDataListener(mReadingListener, Runnable::run);
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
         }
@@ -131,30 +156,58 @@ public class DeviceControlActivity extends Activity {
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Handles various events fired by the Service, for the device of this activity.
+    // onConnected: connected to a GATT server.
+    // onDisconnected: disconnected from a GATT server.
+    // onServicesDiscovered: discovered GATT services.
+    private final BluetoothLeService.Listener mGattListener = new BluetoothLeService.Listener() {
+        @Override
+        public void onConnected(String address) {
+            if (!address.equals(mDeviceAddress)) {
+                return;
+            }
+            mConnected = true;
+            updateConnectionState(R.string.connected);
+            invalidateOptionsMenu();
+            if (mLayout != null) {
+                showLayout(mLayout);
+            }
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            if (!address.equals(mDeviceAddress)) {
+                return;
+            }
+            mConnected = false;
+            updateConnectionState(R.string.disconnected);
+            invalidateOptionsMenu();
+            clearUI();
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+            // Show all the supported services and characteristics on the user interface.
+            if (mBluetoothLeService != null && address.equals(mDeviceAddress)) {
+                displayGattServices(mBluetoothLeService.getSupportedGattServices(address));
+            }
+        }
+    };
+
+    // Handles data received from the device, as a result of read or notification operations.
+    private final BluetoothLeService.Listener mReadingListener = new BluetoothLeService.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
-                updateConnectionState(R.string.connected);
-                invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
-                updateConnectionState(R.string.disconnected);
-                invalidateOptionsMenu();
-                clearUI();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+        public void onDataAvailable(String address, CharacteristicValue value) {
+            if (!address.equals(mDeviceAddress)
+                    || UUID_FIRMWARE_REVISION.equals(value.getCharacteristic())) {
+                return;
+            }
+            if (value.getType() == CharacteristicValue.TYPE_INTEGER) {
+                mReadings.add(System.currentTimeMillis() / 1000, value.getInteger());
+            } else if (value.getType() == CharacteristicValue.TYPE_TEXT) {
+                // The value is reused once this returns
+                final String text = value.toString();
+                runOnUiThread(() -> mDataField.setText(text));
             }
         }
     };
@@ -168,7 +221,10 @@ public class DeviceControlActivity extends Activity {
                 @Override
                 public boolean onChildClick(ExpandableListView parent, View v, int groupPosition,
                                             int childPosition, long id) {
-                    if (mGattCharacteristics != null) {
+                    // Ignored until discovery has set up the characteristics listed
+                    if (mGattCharacteristics != null
+                            && groupPosition < mGattCharacteristics.size()
+                            && childPosition < mGattCharacteristics.get(groupPosition).size()) {
                         final BluetoothGattCharacteristic characteristic =
                                 mGattCharacteristics.get(groupPosition).get(childPosition);
                         final int charaProp = characteristic.getProperties();
@@ -180,12 +236,16 @@ public class DeviceControlActivity extends Activity {
 //                                        mNotifyCharacteristic, false);
 //                                mNotifyCharacteristic = null;
 //                            }
-                            mBluetoothLeService.readCharacteristic(characteristic);
+                            mBluetoothLeService.readCharacteristic(mDeviceAddress,
+                                    characteristic);
                         }
                         if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
                             mNotifyCharacteristic = characteristic;
                             mBluetoothLeService.setCharacteristicNotification(
-                                    characteristic, true);
+                                    mDeviceAddress, characteristic, true);
+                            // Enabled again as soon as the device is reconnected
+                            mLayout = mLayout.withNotification(groupPosition, childPosition);
+                            saveLayout();
                         }
                         return true;
                     }
@@ -195,6 +255,7 @@ public class DeviceControlActivity extends Activity {
 
     private void clearUI() {
         mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
+        mGattCharacteristics = null;
         mDataField.setText(R.string.no_data);
     }
 
@@ -204,16 +265,16 @@ public class DeviceControlActivity extends Activity {
         setContentView(R.layout.gatt_services_characteristics);
         context = getApplicationContext();
         acetoneDb_data = new ArrayList<AcetoneDbPoint>();
-        acetone_data = new ArrayList<Long>();
-        time_data = new ArrayList<Long>();
 
         readData();
-        String list = acetone_data.stream().map(String::valueOf).collect(Collectors.joining(", "));;
-        Log.i(TAG, list);
+        mReadings = new ReadingCoalescer(mStorageExecutor, this::displayReadings,
+                this::storeReadings);
 
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        mLayoutCache = GattLayoutCache.load(context.getFileStreamPath(layouts_filename));
+        mLayout = mLayoutCache.get(mDeviceAddress);
 
         // Sets up UI references.
         ((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
@@ -236,24 +297,38 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
     }
 
-    @Override
-    protected void onPause() {
-        super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.removeListener(mGattListener);
+            mBluetoothLeService.removeListener(mReadingListener);
+            // Other activities may still use the service with other devices
+            mBluetoothLeService.close(mDeviceAddress);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
+        mReadings.close();
+        // Closes the store after the readings still waiting to be appended
+        mStorageExecutor.execute(() -> {
+            if (mAcetoneStore != null) {
+                try {
+                    if (mAcetoneRollups != null) {
+                        mAcetoneRollups.close();
+                    }
+                    mAcetoneStore.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close the acetone store", e);
+                }
+            }
+        });
+        mStorageExecutor.shutdown();
     }
 
     @Override
@@ -284,7 +359,7 @@ public class DeviceControlActivity extends Activity {
                 mBluetoothLeService.connect(mDeviceAddress);
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnect(mDeviceAddress);
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -302,91 +377,99 @@ public class DeviceControlActivity extends Activity {
         });
     }
 
-    private void displayData(String data) {
-        if (data != null) {
-            mDataField.setText(data);
-            Long time = Instant.now().getEpochSecond();
-            Long acetone = Long.valueOf(data);
-
-            AcetoneDbPoint dbPoint = new AcetoneDbPoint(time, acetone);
-            time_data.add(time);
-            acetone_data.add(acetone);
-            acetoneDb_data.add(dbPoint);
-
-            mAcetoneDbAdapter.addDbEntry(dbPoint);
-            mAcetoneDbAdapter.notifyDataSetChanged();
-
-            Log.i(TAG, time.toString() + acetone.toString());
-
-            try (FileOutputStream fos = context.openFileOutput(a_filename, Context.MODE_PRIVATE)) {
-                ObjectOutputStream obj_os = new ObjectOutputStream(fos);
-                obj_os.writeObject(acetone_data);
-                obj_os.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            try (FileOutputStream fos = context.openFileOutput(t_filename, Context.MODE_PRIVATE)) {
-                ObjectOutputStream obj_os = new ObjectOutputStream(fos);
-                obj_os.writeObject(time_data);
-                obj_os.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    // Shows the readings taken since the last frame, listed as one row per second.
+    private void displayReadings(long[] timesSeconds, long[] values, int count) {
+        mDataField.setText(Long.toString(values[count - 1]));
+        AcetoneDbPoint row = acetoneDb_data.isEmpty()
+                ? null : acetoneDb_data.get(acetoneDb_data.size() - 1);
+        for (int i = 0; i < count; i++) {
+            if (row != null && row.time == timesSeconds[i]) {
+                row.add(values[i]);
+            } else {
+                row = new AcetoneDbPoint(timesSeconds[i], values[i]);
+                mAcetoneDbAdapter.addDbEntry(row);
             }
         }
+        mAcetoneDbAdapter.notifyDataSetChanged();
     }
 
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
     // In this sample, we populate the data structure that is bound to the ExpandableListView
-    // on the UI.
+    // on the UI. The list shown from the cache on connecting is only rebuilt, and the cache
+    // replaced, if the services discovered differ from it.
     private void displayGattServices(List<BluetoothGattService> gattServices) {
         if (gattServices == null) return;
         String uuid = null;
         String unknownServiceString = getResources().getString(R.string.unknown_service);
         String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
-        ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
-        ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData
-                = new ArrayList<ArrayList<HashMap<String, String>>>();
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+        List<String> serviceUuids = new ArrayList<String>();
+        List<String> serviceNames = new ArrayList<String>();
+        List<String[]> characteristicUuids = new ArrayList<String[]>();
+        List<String[]> characteristicNames = new ArrayList<String[]>();
+        ArrayList<ArrayList<BluetoothGattCharacteristic>> gattCharacteristics =
+                new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
 
         // Loops through available GATT Services.
         for (BluetoothGattService gattService : gattServices) {
-            HashMap<String, String> currentServiceData = new HashMap<String, String>();
             uuid = gattService.getUuid().toString();
-            currentServiceData.put(
-                    LIST_NAME, SampleGattAttributes.lookup(uuid, unknownServiceString));
-            currentServiceData.put(LIST_UUID, uuid);
-            if (!(currentServiceData.get(LIST_NAME).equals(unknownServiceString))) {
-                gattServiceData.add(currentServiceData);
-                ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
-                        new ArrayList<HashMap<String, String>>();
-                List<BluetoothGattCharacteristic> gattCharacteristics =
-                        gattService.getCharacteristics();
-                ArrayList<BluetoothGattCharacteristic> charas =
-                        new ArrayList<BluetoothGattCharacteristic>();
+            String name = SampleGattAttributes.lookup(uuid, unknownServiceString);
+            if (!name.equals(unknownServiceString)) {
+                serviceUuids.add(uuid);
+                serviceNames.add(name);
+                List<BluetoothGattCharacteristic> charas = gattService.getCharacteristics();
+                String[] charaUuids = new String[charas.size()];
+                String[] charaNames = new String[charas.size()];
 
                 // Loops through available Characteristics.
-                for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-//                charas.add(gattCharacteristic);
-                    HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                    uuid = gattCharacteristic.getUuid().toString();
-
-                    currentCharaData.put(
-                            LIST_NAME, SampleGattAttributes.lookup(uuid, unknownCharaString));
-                    currentCharaData.put(LIST_UUID, uuid);
-//                if (!currentCharaData.get(LIST_UUID).equals()) {
-                    gattCharacteristicGroupData.add(currentCharaData);
-                    charas.add(gattCharacteristic);
-//                }
-
+                for (int i = 0; i < charas.size(); i++) {
+                    charaUuids[i] = charas.get(i).getUuid().toString();
+                    charaNames[i] = SampleGattAttributes.lookup(charaUuids[i], unknownCharaString);
                 }
-                mGattCharacteristics.add(charas);
-                gattCharacteristicData.add(gattCharacteristicGroupData);
+                characteristicUuids.add(charaUuids);
+                characteristicNames.add(charaNames);
+                gattCharacteristics.add(new ArrayList<BluetoothGattCharacteristic>(charas));
             }
+        }
+        mGattCharacteristics = gattCharacteristics;
+
+        GattLayoutCache.Layout layout = new GattLayoutCache.Layout(
+                mLayout != null ? mLayout.firmwareRevision
+                        : GattLayoutCache.Layout.FIRMWARE_UNKNOWN,
+                serviceUuids.toArray(new String[0]), serviceNames.toArray(new String[0]),
+                characteristicUuids.toArray(new String[0][]),
+                characteristicNames.toArray(new String[0][]), new int[0][]);
+        if (mLayout != null && mLayout.hasSameAttributes(layout)) {
+            // Already listed on connecting
+            enableNotifications(mLayout);
+        } else {
+            if (mLayout != null) {
+                Log.i(TAG, "Services of " + mDeviceAddress + " changed, replacing cached layout");
+            }
+            mLayout = layout;
+            showLayout(layout);
+            saveLayout();
+        }
+        readFirmwareRevision(gattServices);
+    }
 
-
-
-
+    private void showLayout(GattLayoutCache.Layout layout) {
+        ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
+        ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData
+                = new ArrayList<ArrayList<HashMap<String, String>>>();
+        for (int i = 0; i < layout.serviceUuids.length; i++) {
+            HashMap<String, String> currentServiceData = new HashMap<String, String>();
+            currentServiceData.put(LIST_NAME, layout.serviceNames[i]);
+            currentServiceData.put(LIST_UUID, layout.serviceUuids[i]);
+            gattServiceData.add(currentServiceData);
+            ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
+                    new ArrayList<HashMap<String, String>>();
+            for (int j = 0; j < layout.characteristicUuids[i].length; j++) {
+                HashMap<String, String> currentCharaData = new HashMap<String, String>();
+                currentCharaData.put(LIST_NAME, layout.characteristicNames[i][j]);
+                currentCharaData.put(LIST_UUID, layout.characteristicUuids[i][j]);
+                gattCharacteristicGroupData.add(currentCharaData);
+            }
+            gattCharacteristicData.add(gattCharacteristicGroupData);
         }
 
         SimpleExpandableListAdapter gattServiceAdapter = new SimpleExpandableListAdapter(
@@ -403,59 +486,171 @@ public class DeviceControlActivity extends Activity {
         mGattServicesList.setAdapter(gattServiceAdapter);
     }
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
+    // Enables the notifications that were enabled on the device, once discovery has confirmed
+    // the layout they were recorded with.
+    private void enableNotifications(GattLayoutCache.Layout layout) {
+        for (int[] notification : layout.notifications) {
+            final BluetoothGattCharacteristic characteristic =
+                    mGattCharacteristics.get(notification[0]).get(notification[1]);
+            mNotifyCharacteristic = characteristic;
+            mBluetoothLeService.setCharacteristicNotification(
+                    mDeviceAddress, characteristic, true);
+        }
     }
 
-    private void readData() {
+    // Records the firmware revision of the device with its layout. The revision is only known
+    // once read, after discovery, so a device reconnects with the layout of its last one; on
+    // a different revision, the notifications recorded with the previous one are forgotten.
+    private void readFirmwareRevision(List<BluetoothGattService> gattServices) {
+        for (BluetoothGattService gattService : gattServices) {
+            final BluetoothGattCharacteristic characteristic =
+                    gattService.getCharacteristic(UUID_FIRMWARE_REVISION);
+            if (characteristic != null) {
+                mBluetoothLeService.readCharacteristic(mDeviceAddress, characteristic)
+                        .thenAccept(value -> runOnUiThread(() -> {
+                            final String revision = value != null
+                                    ? new String(value, StandardCharsets.UTF_8)
+                                    : GattLayoutCache.Layout.FIRMWARE_UNKNOWN;
+                            if (mLayout == null || revision.equals(mLayout.firmwareRevision)) {
+                                return;
+                            }
+                            Log.i(TAG, "Firmware revision of " + mDeviceAddress + ": "
+                                    + revision);
+                            mLayout = mLayout.firmwareRevision.equals(
+                                    GattLayoutCache.Layout.FIRMWARE_UNKNOWN)
+                                    ? mLayout.withFirmwareRevision(revision)
+                                    : mLayout.forFirmwareRevision(revision);
+                            saveLayout();
+                        }));
+                return;
+            }
+        }
+    }
+
+    private void saveLayout() {
+        mLayoutCache.put(mDeviceAddress, mLayout);
+        if (mStorageExecutor.isShutdown()) {
+            return;
+        }
+        mStorageExecutor.execute(() -> {
+            try {
+                mLayoutCache.save();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to save the GATT layout cache", e);
+            }
+        });
+    }
 
+    // Stores a batch of readings on the storage executor. Throws, so that the coalescer keeps
+    // the readings and tries again, unless the store has them all. The store is appended to
+    // once per reading even when a batch is tried again; the rollups are rebuilt from it if
+    // adding to them fails, since they may then hold part of the batch.
+    private void storeReadings(long[] timesSeconds, long[] values, int count)
+            throws IOException {
+        if (mAcetoneStore == null) {
+            throw new IOException("The acetone store is not open");
+        }
+        int stored = Math.min(mReadingsStoredAhead, count);
+        if (stored < count) {
+            int sizeBefore = mAcetoneStore.size();
+            try {
+                if (stored == 0) {
+                    mAcetoneStore.append(timesSeconds, values, count);
+                } else {
+                    mAcetoneStore.append(Arrays.copyOfRange(timesSeconds, stored, count),
+                            Arrays.copyOfRange(values, stored, count), count - stored);
+                }
+            } catch (IOException e) {
+                mReadingsStoredAhead = stored + mAcetoneStore.size() - sizeBefore;
+                throw e;
+            }
+        }
+        mReadingsStoredAhead = 0;
+        // Without rollups the readings are still stored, and the rollups are rebuilt from
+        // them the next time the store is opened
+        if (mAcetoneRollups != null) {
+            try {
+                mAcetoneRollups.add(timesSeconds, values, count);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to add to the acetone rollups, rebuilding them", e);
+                reopenRollups();
+            }
+        }
+    }
+
+    private void reopenRollups() {
         try {
-            FileInputStream fis = context.openFileInput(a_filename);
-            ObjectInputStream in = new ObjectInputStream(fis);
-            acetone_data = (ArrayList<Long>) in.readObject();
-            in.close();
+            mAcetoneRollups.close();
         } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            Log.e(TAG, "Unable to close the acetone rollups", e);
         }
-
+        mAcetoneRollups = null;
         try {
-            FileInputStream fis = context.openFileInput(t_filename);
-            ObjectInputStream in = new ObjectInputStream(fis);
-            time_data = (ArrayList<Long>) in.readObject();
-            in.close();
+            mAcetoneRollups = AcetoneRollups.open(context.getFileStreamPath(store_filename),
+                    mAcetoneStore);
         } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            Log.e(TAG, "Unable to rebuild the acetone rollups", e);
         }
-
-        clearAndMergeLists();
-
     }
 
-    private void clearAndMergeLists() {
-        acetoneDb_data = new ArrayList<AcetoneDbPoint>();
-        for (int i = 0; i < time_data.size(); i++) {
-            AcetoneDbPoint entry = new AcetoneDbPoint(time_data.get(i), acetone_data.get(i));
-            acetoneDb_data.add(entry);
-        }
+    // Opens the store on the storage executor, where migrating the legacy lists, recovering
+    // the end of the store or rebuilding the rollups may take a while, then lists the history
+    // ahead of any reading taken meanwhile. Runs before any batch of readings is written.
+    private void readData() {
+        mStorageExecutor.execute(() -> {
+            final ArrayList<AcetoneDbPoint> history = new ArrayList<AcetoneDbPoint>();
+            try {
+                mAcetoneStore = AcetoneStore.openMigrating(
+                        context.getFileStreamPath(store_filename),
+                        context.getFileStreamPath(t_filename),
+                        context.getFileStreamPath(a_filename));
+                mAcetoneRollups = AcetoneRollups.open(context.getFileStreamPath(store_filename),
+                        mAcetoneStore);
+                mAcetoneRollups.query(Long.MIN_VALUE, Long.MAX_VALUE, MAX_HISTORY_ROWS,
+                        (time, duration, min, max, mean, count) -> history.add(
+                                new AcetoneDbPoint(time, Math.round(mean), min, max, count)));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the acetone store", e);
+            }
+            Log.i(TAG, history.size() + " readings loaded");
+            runOnUiThread(() -> {
+                acetoneDb_data.addAll(0, history);
+                mAcetoneDbAdapter.notifyDataSetChanged();
+            });
+        });
     }
 
     private class AcetoneDbPoint {
         public Long time;
         public Long acetone;
 
+        // A summary of several readings has their mean in acetone
+        public long min;
+        public long max;
+        public long sum;
+        public int count;
+
         public AcetoneDbPoint(Long p_time, Long p_acetone) {
+            this(p_time, p_acetone, p_acetone, p_acetone, 1);
+        }
+
+        public AcetoneDbPoint(Long p_time, Long p_acetone, long p_min, long p_max, int p_count) {
             time = p_time;
             acetone = p_acetone;
+            min = p_min;
+            max = p_max;
+            sum = p_acetone * p_count;
+            count = p_count;
+
+        }
 
+        // Adds a reading to those the point summarizes
+        public void add(long p_acetone) {
+            min = Math.min(min, p_acetone);
+            max = Math.max(max, p_acetone);
+            sum += p_acetone;
+            count++;
+            acetone = Math.round((double) sum / count);
         }
     }
 
@@ -522,7 +717,12 @@ public class DeviceControlActivity extends Activity {
             sdf.setTimeZone(java.util.TimeZone.getTimeZone("GMT+11"));
             String timeStr = sdf.format(date);
             viewHolder.time.setText(timeStr);
-            viewHolder.data.setText(entry.acetone.toString());
+            if (entry.count > 1) {
+                viewHolder.data.setText(getString(R.string.acetone_summary,
+                        entry.acetone, entry.min, entry.max, entry.count));
+            } else {
+                viewHolder.data.setText(entry.acetone.toString());
+            }
 
             return view;
         }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The GATT services and characteristics {@link DeviceControlActivity} lists for each device,
+ * kept across connections and launches so that the list can be shown as soon as the device
+ * is connected, without waiting for service discovery. Each layout also records the
+ * characteristics notifications were enabled on, to enable them again as soon as discovery has
+ * confirmed the layout, and the firmware revision of the device it was seen with.
+ *
+ * <p>The cache is small and saved whole, to a temporary file that then replaces the previous
+ * one, so that a crash while saving never loses it.</p>
+ */
+class GattLayoutCache {
+    private final static String TAG = GattLayoutCache.class.getSimpleName();
+
+    private static final int VERSION = 1;
+
+    // Devices remembered, the ones connected to longest ago being forgotten first
+    static final int MAX_DEVICES = 32;
+
+    /**
+     * The services and characteristics listed for a device, with their names as listed.
+     * Immutable, so that it may be saved on another thread.
+     */
+    static final class Layout {
+        // Unknown until read from the device
+        static final String FIRMWARE_UNKNOWN = "";
+
+        final String firmwareRevision;
+        final String[] serviceUuids;
+        final String[] serviceNames;
+        final String[][] characteristicUuids;
+        final String[][] characteristicNames;
+        // Characteristics with notifications enabled, as {service index, characteristic index}
+        final int[][] notifications;
+
+        Layout(String firmwareRevision, String[] serviceUuids, String[] serviceNames,
+               String[][] characteristicUuids, String[][] characteristicNames,
+               int[][] notifications) {
+            this.firmwareRevision = firmwareRevision;
+            this.serviceUuids = serviceUuids;
+            this.serviceNames = serviceNames;
+            this.characteristicUuids = characteristicUuids;
+            this.characteristicNames = characteristicNames;
+            this.notifications = notifications;
+        }
+
+        /**
+         * Returns whether the other layout lists the same services and characteristics, in the
+         * same order.
+         */
+        boolean hasSameAttributes(Layout other) {
+            return Arrays.equals(serviceUuids, other.serviceUuids)
+                    && Arrays.deepEquals(characteristicUuids, other.characteristicUuids);
+        }
+
+        Layout withFirmwareRevision(String revision) {
+            return new Layout(revision, serviceUuids, serviceNames, characteristicUuids,
+                    characteristicNames, notifications);
+        }
+
+        /**
+         * Returns the layout for another firmware revision, without the notifications recorded
+         * with this one.
+         */
+        Layout forFirmwareRevision(String revision) {
+            return new Layout(revision, serviceUuids, serviceNames, characteristicUuids,
+                    characteristicNames, new int[0][]);
+        }
+
+        Layout withNotification(int service, int characteristic) {
+            for (int[] notification : notifications) {
+                if (notification[0] == service && notification[1] == characteristic) {
+                    return this;
+                }
+            }
+            int[][] added = Arrays.copyOf(notifications, notifications.length + 1);
+            added[notifications.length] = new int[] {service, characteristic};
+            return new Layout(firmwareRevision, serviceUuids, serviceNames, characteristicUuids,
+                    characteristicNames, added);
+        }
+    }
+
+    private final File mFile;
+    // In access order, so that the devices connected to longest ago are forgotten first
+    private final LinkedHashMap<String, Layout> mLayouts =
+            new LinkedHashMap<String, Layout>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Layout> eldest) {
+                    return size() > MAX_DEVICES;
+                }
+            };
+
+    private GattLayoutCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the cache saved in a file, or starts an empty one if there is none or it cannot be
+     * read.
+     */
+    static GattLayoutCache load(File file) {
+        GattLayoutCache cache = new GattLayoutCache(file);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown layout cache version");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                cache.mLayouts.put(address, readLayout(in));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing connected to yet
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file + ", starting over", e);
+            cache.mLayouts.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the layout last seen on a device, or null if there is none.
+     */
+    synchronized Layout get(String address) {
+        return mLayouts.get(address);
+    }
+
+    synchronized void put(String address, Layout layout) {
+        mLayouts.put(address, layout);
+    }
+
+    /**
+     * Writes the cache to its file. May be called on any thread.
+     */
+    void save() throws IOException {
+        List<String> addresses;
+        List<Layout> layouts;
+        synchronized (this) {
+            addresses = new ArrayList<>(mLayouts.keySet());
+            layouts = new ArrayList<>(mLayouts.values());
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(VERSION);
+            out.writeInt(addresses.size());
+            // Least recently used first, as they are read back
+            for (int i = 0; i < addresses.size(); i++) {
+                out.writeUTF(addresses.get(i));
+                writeLayout(out, layouts.get(i));
+            }
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+    }
+
+    private static Layout readLayout(DataInputStream in) throws IOException {
+        String firmwareRevision = in.readUTF();
+        int serviceCount = in.readInt();
+        String[] serviceUuids = new String[serviceCount];
+        String[] serviceNames = new String[serviceCount];
+        String[][] characteristicUuids = new String[serviceCount][];
+        String[][] characteristicNames = new String[serviceCount][];
+        for (int i = 0; i < serviceCount; i++) {
+            serviceUuids[i] = in.readUTF();
+            serviceNames[i] = in.readUTF();
+            int characteristicCount = in.readInt();
+            characteristicUuids[i] = new String[characteristicCount];
+            characteristicNames[i] = new String[characteristicCount];
+            for (int j = 0; j < characteristicCount; j++) {
+                characteristicUuids[i][j] = in.readUTF();
+                characteristicNames[i][j] = in.readUTF();
+            }
+        }
+        int[][] notifications = new int[in.readInt()][];
+        for (int i = 0; i < notifications.length; i++) {
+            notifications[i] = new int[] {in.readInt(), in.readInt()};
+        }
+        return new Layout(firmwareRevision, serviceUuids, serviceNames, characteristicUuids,
+                characteristicNames, notifications);
+    }
+
+    private static void writeLayout(DataOutputStream out, Layout layout) throws IOException {
+        out.writeUTF(layout.firmwareRevision);
+        out.writeInt(layout.serviceUuids.length);
+        for (int i = 0; i < layout.serviceUuids.length; i++) {
+            out.writeUTF(layout.serviceUuids[i]);
+            out.writeUTF(layout.serviceNames[i]);
+            out.writeInt(layout.characteristicUuids[i].length);
+            for (int j = 0; j < layout.characteristicUuids[i].length; j++) {
+                out.writeUTF(layout.characteristicUuids[i][j]);
+                out.writeUTF(layout.characteristicNames[i][j]);
+            }
+        }
+        out.writeInt(layout.notifications.length);
+        for (int[] notification : layout.notifications) {
+            out.writeInt(notification[0]);
+            out.writeInt(notification[1]);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs GATT operations one at a time. The Android stack allows a single outstanding read or
+ * write per connection and refuses any call made before the previous one has completed, so
+ * callers issuing requests back to back lose all but the first. Operations queued here are
+ * issued in order, each as soon as the {@code BluetoothGattCallback} reports the previous one
+ * complete, from the callback thread itself so that no time is lost between them.
+ *
+ * <p>Each operation has a timeout and is retried a few times if it fails, times out or is
+ * refused by the stack. Callers get a {@link CompletableFuture} completed with the attribute's
+ * value, or exceptionally once the retries are used up.</p>
+ *
+ * <p>The queue knows nothing about {@code BluetoothGatt} itself: an operation is a command
+ * issuing the call and the attribute object its completion callback will name. This keeps it
+ * usable against a simulated GATT server in the benchmarks.</p>
+ *
+ * <p>Queues of different connections may share an {@link OperationArbiter}, in which case each
+ * operation also waits for a turn of the stack before it is issued.</p>
+ */
+class GattOperationQueue {
+
+    // Kinds of operation, each completed by the BluetoothGattCallback method of the same name
+    static final int READ_CHARACTERISTIC = 1;
+    static final int WRITE_CHARACTERISTIC = 2;
+    static final int READ_DESCRIPTOR = 3;
+    static final int WRITE_DESCRIPTOR = 4;
+    // Completed by onMtuChanged, with the BluetoothGatt itself as the attribute
+    static final int REQUEST_MTU = 5;
+
+    // BluetoothGatt.GATT_SUCCESS
+    static final int STATUS_SUCCESS = 0;
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    static final int DEFAULT_MAX_RETRIES = 2;
+
+    // Delay before issuing again an operation the stack refused, as it is probably still busy
+    static final long REFUSED_RETRY_DELAY_MILLIS = 50;
+
+    private static final class Operation {
+        final int kind;
+        final Object attribute;
+        final BooleanSupplier command;
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        int attempts;
+        ScheduledFuture<?> timeout;
+
+        Operation(int kind, Object attribute, BooleanSupplier command) {
+            this.kind = kind;
+            this.attribute = attribute;
+            this.command = command;
+        }
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final OperationArbiter mArbiter;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    private Operation mCurrent;
+    // Whether a turn of the arbiter is held, from issuing an operation to its completion
+    private boolean mHasTurn;
+    private long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    private long mCompletedCount;
+    private long mFailedCount;
+    private long mRetryCount;
+    private long mTimeoutCount;
+    private long mCoalescedCount;
+
+    /**
+     * @param scheduler Runs the operation timeouts and delayed retries.
+     */
+    GattOperationQueue(ScheduledExecutorService scheduler) {
+        this(scheduler, null);
+    }
+
+    /**
+     * @param scheduler Runs the operation timeouts and delayed retries.
+     * @param arbiter Gives turns to issue operations, or null to issue them as soon as the
+     *                previous one has completed.
+     */
+    GattOperationQueue(ScheduledExecutorService scheduler, OperationArbiter arbiter) {
+        mScheduler = scheduler;
+        mArbiter = arbiter;
+    }
+
+    /**
+     * Sets how long an operation may take and how many times it is tried again after failing.
+     */
+    synchronized void setTimeout(long timeoutMillis, int maxRetries) {
+        mTimeoutMillis = timeoutMillis;
+        mMaxRetries = maxRetries;
+    }
+
+    /**
+     * Queues an operation. A read of an attribute that already has a read waiting in the queue
+     * is not issued twice: both callers get the result of the waiting one.
+     *
+     * @param kind One of the operation kinds, such as {@link #READ_CHARACTERISTIC}.
+     * @param attribute The characteristic or descriptor the completion callback will report.
+     * @param command Issues the call on {@code BluetoothGatt}, returning whether it was accepted.
+     *
+     * @return A future completed with the attribute's value once the operation has completed.
+     */
+    CompletableFuture<byte[]> enqueue(int kind, Object attribute, BooleanSupplier command) {
+        Operation operation = new Operation(kind, attribute, command);
+        synchronized (this) {
+            if (kind == READ_CHARACTERISTIC || kind == READ_DESCRIPTOR) {
+                for (Operation pending : mPending) {
+                    if (pending.kind == kind && pending.attribute == attribute) {
+                        mCoalescedCount++;
+                        return pending.future;
+                    }
+                }
+            }
+            mPending.add(operation);
+        }
+        startNext();
+        return operation.future;
+    }
+
+    /**
+     * Completes the operation in flight. Called from the {@code BluetoothGattCallback}, which
+     * then also issues the next operation.
+     *
+     * @return False if no operation of this kind on this attribute was in flight, for example
+     *         because it had already timed out.
+     */
+    boolean onCompleted(int kind, Object attribute, int status, byte[] value) {
+        Operation operation;
+        boolean hadTurn;
+        synchronized (this) {
+            operation = mCurrent;
+            if (operation == null || operation.kind != kind || operation.attribute != attribute) {
+                return false;
+            }
+            operation.timeout.cancel(false);
+            mCurrent = null;
+            hadTurn = endTurnLocked();
+            if (status != STATUS_SUCCESS && retryLocked(operation)) {
+                operation = null;
+            } else if (status == STATUS_SUCCESS) {
+                mCompletedCount++;
+            } else {
+                mFailedCount++;
+            }
+        }
+        if (operation != null) {
+            if (status == STATUS_SUCCESS) {
+                operation.future.complete(value);
+            } else {
+                operation.future.completeExceptionally(
+                        new IOException("GATT operation failed with status " + status));
+            }
+        }
+        if (hadTurn) {
+            mArbiter.release();
+        }
+        startNext();
+        return true;
+    }
+
+    /**
+     * Fails every queued operation, for example because the connection was lost.
+     */
+    void clear(Throwable cause) {
+        ArrayDeque<Operation> failed;
+        boolean hadTurn;
+        synchronized (this) {
+            failed = new ArrayDeque<>(mPending);
+            mPending.clear();
+            if (mCurrent != null) {
+                mCurrent.timeout.cancel(false);
+                failed.addFirst(mCurrent);
+                mCurrent = null;
+            }
+            hadTurn = endTurnLocked();
+            mFailedCount += failed.size();
+        }
+        if (hadTurn) {
+            mArbiter.release();
+        }
+        for (Operation operation : failed) {
+            operation.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Returns the number of operations queued or in flight.
+     */
+    synchronized int getPendingCount() {
+        return mPending.size() + (mCurrent != null ? 1 : 0);
+    }
+
+    synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    synchronized long getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    /**
+     * Returns the number of reads answered by another read of the same attribute.
+     */
+    synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Gives the queue the turn it waited for from its arbiter.
+     */
+    void grantTurn() {
+        synchronized (this) {
+            mHasTurn = true;
+        }
+        startNext();
+    }
+
+    /**
+     * Issues the operation at the head of the queue, unless one is already in flight or the
+     * arbiter has not given the queue a turn yet.
+     */
+    private void startNext() {
+        while (true) {
+            final Operation operation;
+            synchronized (this) {
+                if (mCurrent != null) {
+                    return;
+                }
+                if (mPending.isEmpty()) {
+                    // Nothing left to use a turn given meanwhile for
+                    if (!endTurnLocked()) {
+                        return;
+                    }
+                    operation = null;
+                } else if (mArbiter != null && !mHasTurn && !mArbiter.tryAcquire(this)) {
+                    return;
+                } else {
+                    mHasTurn = mArbiter != null;
+                    operation = mPending.poll();
+                    mCurrent = operation;
+                    operation.attempts++;
+                    operation.timeout = mScheduler.schedule(() -> onTimeout(operation),
+                            mTimeoutMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (operation == null) {
+                mArbiter.release();
+                return;
+            }
+            if (operation.command.getAsBoolean()) {
+                return;
+            }
+            boolean hadTurn;
+            boolean retried;
+            synchronized (this) {
+                if (mCurrent != operation) {
+                    continue;
+                }
+                operation.timeout.cancel(false);
+                mCurrent = null;
+                hadTurn = endTurnLocked();
+                retried = retryLocked(operation);
+                if (retried) {
+                    mScheduler.schedule(this::startNext,
+                            REFUSED_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                } else {
+                    mFailedCount++;
+                }
+            }
+            if (hadTurn) {
+                mArbiter.release();
+            }
+            if (retried) {
+                return;
+            }
+            operation.future.completeExceptionally(new IOException("GATT operation refused"));
+        }
+    }
+
+    private void onTimeout(Operation operation) {
+        boolean hadTurn;
+        synchronized (this) {
+            if (mCurrent != operation) {
+                return;
+            }
+            mCurrent = null;
+            hadTurn = endTurnLocked();
+            mTimeoutCount++;
+            if (retryLocked(operation)) {
+                operation = null;
+            } else {
+                mFailedCount++;
+            }
+        }
+        if (hadTurn) {
+            mArbiter.release();
+        }
+        if (operation != null) {
+            operation.future.completeExceptionally(new TimeoutException(
+                    "GATT operation timed out after " + operation.attempts + " attempts"));
+        }
+        startNext();
+    }
+
+    /**
+     * Gives up the turn held, if any. The caller then releases it to the arbiter, without the
+     * lock held.
+     *
+     * @return Whether a turn was held.
+     */
+    private boolean endTurnLocked() {
+        boolean hadTurn = mHasTurn;
+        mHasTurn = false;
+        return hadTurn;
+    }
+
+    /**
+     * Puts a failed operation back at the head of the queue if it has attempts left.
+     */
+    private boolean retryLocked(Operation operation) {
+        if (operation.attempts > mMaxRetries) {
+            return false;
+        }
+        mPending.addFirst(operation);
+        mRetryCount++;
+        return true;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Chooses the connection priority of a GATT connection from the traffic on it, and measures
+ * that traffic. The default, balanced connection interval caps how many packets the link
+ * carries per second; a high priority shortens the interval for bulk transfers, at the cost
+ * of power, and a low power one lengthens it while the link is idle.
+ *
+ * <p>The bytes carried are counted as they go, and the policy is run once per window of about
+ * a second: high priority as soon as a window carries a bulk transfer or operations queue up,
+ * back to balanced after a few windows without one, and low power after a few windows with
+ * next to no traffic.</p>
+ */
+class LinkPolicy {
+
+    // BluetoothGatt.CONNECTION_PRIORITY_*
+    static final int PRIORITY_BALANCED = 0;
+    static final int PRIORITY_HIGH = 1;
+    static final int PRIORITY_LOW_POWER = 2;
+
+    static final long WINDOW_MILLIS = 1000;
+
+    // A window with this much traffic, or this many operations waiting, is a bulk transfer
+    static final long BULK_BYTES_PER_SECOND = 1024;
+    static final int BULK_PENDING_OPERATIONS = 4;
+
+    // A window with less traffic than this, and no operation waiting, is idle
+    static final long IDLE_BYTES_PER_SECOND = 64;
+
+    // Windows without bulk transfer before leaving high priority, or idle before low power
+    static final int SETTLE_WINDOWS = 5;
+
+    private int mPriority = PRIORITY_BALANCED;
+    private long mWindowStartMillis;
+    private long mWindowBytes;
+    private long mBytesPerSecond;
+    private int mWindowsSinceBulk;
+    private int mIdleWindows;
+
+    /**
+     * Starts measuring a new connection, at the given priority.
+     */
+    synchronized void reset(long nowMillis, int priority) {
+        mPriority = priority;
+        mWindowStartMillis = nowMillis;
+        mWindowBytes = 0;
+        mBytesPerSecond = 0;
+        mWindowsSinceBulk = 0;
+        mIdleWindows = 0;
+    }
+
+    /**
+     * Counts the bytes of an attribute value read, written or notified.
+     */
+    synchronized void onTransferred(int bytes) {
+        mWindowBytes += bytes;
+    }
+
+    /**
+     * Ends the current window.
+     *
+     * @param nowMillis The time, on the clock given to {@link #reset(long, int)}.
+     * @param pendingOperations The GATT operations waiting or in flight.
+     *
+     * @return The priority to request, or -1 to keep the current one.
+     */
+    synchronized int onWindowEnd(long nowMillis, int pendingOperations) {
+        long elapsed = Math.max(1, nowMillis - mWindowStartMillis);
+        mBytesPerSecond = mWindowBytes * 1000 / elapsed;
+        mWindowStartMillis = nowMillis;
+        mWindowBytes = 0;
+
+        int priority = mPriority;
+        if (mBytesPerSecond >= BULK_BYTES_PER_SECOND
+                || pendingOperations >= BULK_PENDING_OPERATIONS) {
+            mWindowsSinceBulk = 0;
+            mIdleWindows = 0;
+            priority = PRIORITY_HIGH;
+        } else if (mBytesPerSecond < IDLE_BYTES_PER_SECOND && pendingOperations == 0) {
+            mWindowsSinceBulk++;
+            if (++mIdleWindows >= SETTLE_WINDOWS) {
+                priority = PRIORITY_LOW_POWER;
+            }
+        } else {
+            mWindowsSinceBulk++;
+            mIdleWindows = 0;
+            if (priority == PRIORITY_LOW_POWER) {
+                // Traffic again, not waiting for it to become bulk
+                priority = PRIORITY_BALANCED;
+            }
+        }
+        if (priority == PRIORITY_HIGH && mWindowsSinceBulk >= SETTLE_WINDOWS) {
+            priority = mIdleWindows >= SETTLE_WINDOWS ? PRIORITY_LOW_POWER : PRIORITY_BALANCED;
+        }
+        if (priority == mPriority) {
+            return -1;
+        }
+        mPriority = priority;
+        return priority;
+    }
+
+    /**
+     * Returns the bytes of attribute values carried per second over the last window.
+     */
+    synchronized long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    synchronized int getPriority() {
+        return mPriority;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayDeque;
+
+/**
+ * Shares the Bluetooth stack between the {@link GattOperationQueue}s of several connections.
+ * At most a fixed number of operations are in flight across all of them, and when one
+ * completes the next turn goes to the queue that has waited longest, in round-robin order: a
+ * queue gets in line again after each of its operations, so a device with many operations
+ * queued cannot hold the stack while the others wait. A queue has a single operation in flight,
+ * so it holds at most one turn, and a device that stops answering leaves the other turns to
+ * the other queues.
+ */
+class OperationArbiter {
+
+    private final int mMaxInFlight;
+    private int mInFlight;
+    private final ArrayDeque<GattOperationQueue> mWaiting = new ArrayDeque<>();
+
+    /**
+     * @param maxInFlight The number of operations in flight at once, over all connections.
+     */
+    OperationArbiter(int maxInFlight) {
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Takes a turn for the queue if one is free. Otherwise puts the queue in line, to be given
+     * a turn by {@link GattOperationQueue#grantTurn()} when its comes.
+     */
+    synchronized boolean tryAcquire(GattOperationQueue queue) {
+        if (mInFlight < mMaxInFlight && mWaiting.isEmpty()) {
+            mInFlight++;
+            return true;
+        }
+        if (!mWaiting.contains(queue)) {
+            mWaiting.add(queue);
+        }
+        return false;
+    }
+
+    /**
+     * Gives back a turn, which passes to the first queue in line if any.
+     */
+    void release() {
+        GattOperationQueue next;
+        synchronized (this) {
+            next = mWaiting.poll();
+            if (next == null) {
+                mInFlight--;
+            }
+        }
+        if (next != null) {
+            next.grantTurn();
+        }
+    }
+
+    synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+}
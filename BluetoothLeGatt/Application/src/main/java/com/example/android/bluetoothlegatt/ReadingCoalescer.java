@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes readings at the rate the sensor notifies them and passes them on at the rates they
+ * can be used: to a {@link FrameListener} at most once per frame, with every reading since
+ * the previous frame, and to a {@link BatchWriter} about once a second. Readings wait in a
+ * ring buffer of primitive arrays, which grows rather than drops any of them, so adding one
+ * allocates nothing once the buffer is large enough.
+ */
+class ReadingCoalescer implements Choreographer.FrameCallback {
+    private final static String TAG = ReadingCoalescer.class.getSimpleName();
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final long WRITE_DELAY_MILLIS = 1000;
+
+    /**
+     * Receives on the UI thread, once per frame, the readings added since the previous frame.
+     * The arrays are reused once this returns.
+     */
+    interface FrameListener {
+        void onReadings(long[] timesSeconds, long[] values, int count);
+    }
+
+    /**
+     * Stores, on the storage executor, batches of readings in the order they were added. The
+     * arrays are reused once this returns. Readings of a batch that fails are written again
+     * {@link #WRITE_DELAY_MILLIS} later, at the start of the next batch, so a writer that fails
+     * after storing part of a batch must not store that part twice.
+     */
+    interface BatchWriter {
+        void write(long[] timesSeconds, long[] values, int count) throws IOException;
+    }
+
+    private final Choreographer mChoreographer;
+    private final ScheduledExecutorService mStorageExecutor;
+    private final FrameListener mFrameListener;
+    private final BatchWriter mBatchWriter;
+    private final Runnable mWriteTask = this::write;
+
+    // The ring buffer: reading n is at n & (capacity - 1). Readings are kept until they are
+    // both shown and written.
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    private long[] mValues = new long[INITIAL_CAPACITY];
+    private long mAdded;
+    private long mShown;
+    private long mWritten;
+    private boolean mFramePending;
+    private boolean mWritePending;
+    private boolean mClosed;
+
+    // Copies handed to the listener and the writer, each used by a single thread
+    private long[] mFrameTimes = new long[INITIAL_CAPACITY];
+    private long[] mFrameValues = new long[INITIAL_CAPACITY];
+    private long[] mBatchTimes = new long[INITIAL_CAPACITY];
+    private long[] mBatchValues = new long[INITIAL_CAPACITY];
+
+    /**
+     * To be created on the UI thread.
+     */
+    ReadingCoalescer(ScheduledExecutorService storageExecutor, FrameListener frameListener,
+                     BatchWriter batchWriter) {
+        mChoreographer = Choreographer.getInstance();
+        mStorageExecutor = storageExecutor;
+        mFrameListener = frameListener;
+        mBatchWriter = batchWriter;
+    }
+
+    /**
+     * Adds a reading. May be called from any thread.
+     */
+    void add(long timeSeconds, long value) {
+        boolean postFrame;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            if (mAdded - Math.min(mShown, mWritten) == mTimes.length) {
+                grow();
+            }
+            int index = (int) mAdded & (mTimes.length - 1);
+            mTimes[index] = timeSeconds;
+            mValues[index] = value;
+            mAdded++;
+            postFrame = !mFramePending;
+            mFramePending = true;
+            if (!mWritePending) {
+                mWritePending = true;
+                mStorageExecutor.schedule(mWriteTask, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (postFrame) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        int count;
+        synchronized (this) {
+            mFramePending = false;
+            count = (int) (mAdded - mShown);
+            if (mFrameTimes.length < count) {
+                mFrameTimes = new long[mTimes.length];
+                mFrameValues = new long[mTimes.length];
+            }
+            copy(mShown, count, mFrameTimes, mFrameValues);
+            mShown = mAdded;
+        }
+        if (count > 0) {
+            mFrameListener.onReadings(mFrameTimes, mFrameValues, count);
+        }
+    }
+
+    /**
+     * Stops taking readings, and writes those not written yet on the storage executor. To be
+     * called on the UI thread, before anything closing the storage is run by the executor.
+     */
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            mFramePending = false;
+        }
+        mChoreographer.removeFrameCallback(this);
+        mStorageExecutor.execute(mWriteTask);
+    }
+
+    private void write() {
+        int count;
+        synchronized (this) {
+            mWritePending = false;
+            count = (int) (mAdded - mWritten);
+            if (mBatchTimes.length < count) {
+                mBatchTimes = new long[mTimes.length];
+                mBatchValues = new long[mTimes.length];
+            }
+            copy(mWritten, count, mBatchTimes, mBatchValues);
+        }
+        if (count == 0) {
+            return;
+        }
+        try {
+            mBatchWriter.write(mBatchTimes, mBatchValues, count);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to store " + count + " readings", e);
+            synchronized (this) {
+                // Tried again even if no other reading comes
+                if (!mWritePending && !mClosed) {
+                    mWritePending = true;
+                    mStorageExecutor.schedule(mWriteTask, WRITE_DELAY_MILLIS,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            mWritten += count;
+        }
+    }
+
+    private void copy(long from, int count, long[] times, long[] values) {
+        int mask = mTimes.length - 1;
+        for (int i = 0; i < count; i++) {
+            int index = (int) (from + i) & mask;
+            times[i] = mTimes[index];
+            values[i] = mValues[index];
+        }
+    }
+
+    private void grow() {
+        long oldest = Math.min(mShown, mWritten);
+        int count = (int) (mAdded - oldest);
+        long[] times = new long[mTimes.length * 2];
+        long[] values = new long[mValues.length * 2];
+        int mask = times.length - 1;
+        for (int i = 0; i < count; i++) {
+            int index = (int) (oldest + i) & mask;
+            int oldIndex = (int) (oldest + i) & (mTimes.length - 1);
+            times[index] = mTimes[oldIndex];
+            values[index] = mValues[oldIndex];
+        }
+        mTimes = times;
+        mValues = values;
+    }
+}
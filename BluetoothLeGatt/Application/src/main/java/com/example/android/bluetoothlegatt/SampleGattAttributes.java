@@ -27,17 +27,20 @@ public class SampleGattAttributes {
     public static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
     public static String ACETONE_MEASUREMENT_SERVICE = "0000ffe0-0000-1000-8000-00805f9b34fb";
     public static String ACETONE_MEASUREMENT_CHARACTERISTIC = "00002a6c-0000-1000-8000-00805f9b34fb";
+    public static String DEVICE_INFORMATION_SERVICE = "0000180a-0000-1000-8000-00805f9b34fb";
+    public static String FIRMWARE_REVISION_STRING = "00002a26-0000-1000-8000-00805f9b34fb";
 
 
     static {
         // Sample Services.
         attributes.put("0000180d-0000-1000-8000-00805f9b34fb", "Heart Rate Service");
-        attributes.put("0000180a-0000-1000-8000-00805f9b34fb", "Device Information Service");
+        attributes.put(DEVICE_INFORMATION_SERVICE, "Device Information Service");
         attributes.put(ACETONE_MEASUREMENT_SERVICE, "Acetone Measurement Service");
 
         // Sample Characteristics.
         attributes.put(HEART_RATE_MEASUREMENT, "Heart Rate Measurement");
         attributes.put("00002a29-0000-1000-8000-00805f9b34fb", "Manufacturer Name String");
+        attributes.put(FIRMWARE_REVISION_STRING, "Firmware Revision String");
         attributes.put(ACETONE_MEASUREMENT_CHARACTERISTIC, "Acetone Measurement");
     }
 
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AcetoneRollupsTest {
+
+    // Where the header of a tier file keeps the number of readings it includes, and where its
+    // first summary starts
+    private static final int READING_COUNT_OFFSET = 16;
+    private static final int FIRST_SUMMARY_OFFSET = 24;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mStoreFile;
+    private File mRollupsFile;
+    private AcetoneStore mStore;
+    private AcetoneRollups mRollups;
+
+    @Before
+    public void setUp() throws IOException {
+        mStoreFile = new File(mFolder.getRoot(), "acetone");
+        mRollupsFile = new File(mFolder.getRoot(), "acetone.rollups");
+        mStore = AcetoneStore.open(mStoreFile);
+        mRollups = AcetoneRollups.open(mRollupsFile, mStore);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mRollups.close();
+        mStore.close();
+    }
+
+    @Test
+    public void fewReadingsAreReturnedThemselves() throws IOException {
+        for (long time = 0; time < 50; time += 10) {
+            add(time, 5);
+        }
+        List<long[]> summaries = query(0, 100, 10);
+        assertEquals(5, summaries.size());
+        assertSummary(summaries.get(1), 10, 0, 5, 5, 1);
+    }
+
+    @Test
+    public void manyReadingsAreSummarizedByTheFinestTierThatFits() throws IOException {
+        // One reading a second for ten minutes, valued after the second in the minute
+        for (long time = 0; time < 600; time++) {
+            add(time, time % 60);
+        }
+        List<long[]> minutes = query(0, 600, 20);
+        assertEquals(10, minutes.size());
+        for (int i = 0; i < 10; i++) {
+            assertSummary(minutes.get(i), i * 60, 60, 0, 59, 60);
+        }
+        List<long[]> hours = query(0, 600, 5);
+        assertEquals(1, hours.size());
+        assertSummary(hours.get(0), 0, 3600, 0, 59, 600);
+    }
+
+    @Test
+    public void batchAddMatchesSingleAdds() throws IOException {
+        long[] times = new long[300];
+        long[] values = new long[300];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = i * 7;
+            values[i] = i;
+        }
+        mStore.append(times, values, times.length);
+        mRollups.add(times, values, times.length);
+        List<long[]> batched = query(0, 3000, 50);
+
+        reopenEmpty();
+        for (int i = 0; i < times.length; i++) {
+            add(times[i], values[i]);
+        }
+        assertSummaries(batched, query(0, 3000, 50));
+    }
+
+    @Test
+    public void tierBehindTheStoreIsRebuilt() throws IOException {
+        for (long time = 0; time < 120; time++) {
+            add(time, 1);
+        }
+        // Readings stored, then a crash before the rollups included them
+        for (long time = 120; time < 180; time++) {
+            mStore.append(time, 2);
+        }
+        reopen();
+
+        List<long[]> minutes = query(0, 180, 5);
+        assertEquals(3, minutes.size());
+        assertSummary(minutes.get(2), 120, 60, 2, 2, 60);
+    }
+
+    @Test
+    public void tierWithoutTheLastReadingIsRebuilt() throws IOException {
+        for (long time = 0; time < 60; time++) {
+            add(time, 1);
+        }
+        mRollups.close();
+        // A reading in a later minute, and a tier header claiming to include it
+        mStore.append(150, 2);
+        setReadingCount(minuteTier(), mStore.size());
+        mRollups = AcetoneRollups.open(mRollupsFile, mStore);
+
+        List<long[]> minutes = query(0, 200, 5);
+        assertEquals(2, minutes.size());
+        assertSummary(minutes.get(1), 120, 60, 2, 2, 1);
+    }
+
+    @Test
+    public void upToDateTierIsKept() throws IOException {
+        for (long time = 0; time < 180; time++) {
+            add(time, 1);
+        }
+        mRollups.close();
+        // Only visible if the tier is read back rather than rebuilt
+        try (RandomAccessFile tier = new RandomAccessFile(minuteTier(), "rw")) {
+            tier.seek(FIRST_SUMMARY_OFFSET + 8);
+            tier.writeLong(-5);
+        }
+        mRollups = AcetoneRollups.open(mRollupsFile, mStore);
+
+        List<long[]> minutes = query(0, 180, 5);
+        assertEquals(3, minutes.size());
+        assertEquals(-5, minutes.get(0)[2]);
+    }
+
+    private void add(long time, long value) throws IOException {
+        mStore.append(time, value);
+        mRollups.add(time, value);
+    }
+
+    private void reopen() throws IOException {
+        mRollups.close();
+        mStore.close();
+        mStore = AcetoneStore.open(mStoreFile);
+        mRollups = AcetoneRollups.open(mRollupsFile, mStore);
+    }
+
+    private void reopenEmpty() throws IOException {
+        mRollups.close();
+        mStore.close();
+        mStoreFile = new File(mFolder.getRoot(), "other");
+        mRollupsFile = new File(mFolder.getRoot(), "other.rollups");
+        mStore = AcetoneStore.open(mStoreFile);
+        mRollups = AcetoneRollups.open(mRollupsFile, mStore);
+    }
+
+    private File minuteTier() {
+        return new File(mRollupsFile.getPath() + "." + AcetoneRollups.MINUTE_SECONDS);
+    }
+
+    private static void setReadingCount(File tierFile, long count) throws IOException {
+        try (RandomAccessFile tier = new RandomAccessFile(tierFile, "rw")) {
+            tier.seek(READING_COUNT_OFFSET);
+            tier.writeLong(count);
+        }
+    }
+
+    /**
+     * Returns the summaries found, each as start, duration, min, max, mean and count.
+     */
+    private List<long[]> query(long from, long to, int maxSummaries) throws IOException {
+        final List<long[]> summaries = new ArrayList<>();
+        mRollups.query(from, to, maxSummaries, (start, duration, min, max, mean, count) ->
+                summaries.add(new long[]{start, duration, min, max, Math.round(mean), count}));
+        return summaries;
+    }
+
+    private static void assertSummary(long[] summary, long start, long duration, long min,
+                                      long max, int count) {
+        assertEquals("start", start, summary[0]);
+        assertEquals("duration", duration, summary[1]);
+        assertEquals("min", min, summary[2]);
+        assertEquals("max", max, summary[3]);
+        assertEquals("count", count, summary[5]);
+    }
+
+    private static void assertSummaries(List<long[]> expected, List<long[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            long[] summary = expected.get(i);
+            assertSummary(actual.get(i), summary[0], summary[1], summary[2], summary[3],
+                    (int) summary[5]);
+            assertEquals("mean", summary[4], actual.get(i)[4]);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AcetoneStoreTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readingsAreScannedInTimeRange() throws IOException {
+        File file = mFolder.newFile("acetone");
+        try (AcetoneStore store = AcetoneStore.open(file)) {
+            for (long time = 0; time < 1000; time++) {
+                store.append(time, time * 2);
+            }
+            assertEquals(1000, store.size());
+            assertEquals(999, store.getLastTime());
+            assertEquals(100, store.count(300, 400));
+            long[][] readings = scan(store, 300, 303);
+            assertArrayEquals(new long[]{300, 301, 302}, readings[0]);
+            assertArrayEquals(new long[]{600, 602, 604}, readings[1]);
+        }
+    }
+
+    @Test
+    public void olderReadingTakesTheTimeOfTheLastOne() throws IOException {
+        try (AcetoneStore store = AcetoneStore.open(mFolder.newFile("acetone"))) {
+            store.append(new long[]{10, 5, 12}, new long[]{1, 2, 3}, 3);
+            assertArrayEquals(new long[]{10, 10, 12}, scan(store, 0, 100)[0]);
+        }
+    }
+
+    @Test
+    public void reopenedStoreKeepsItsReadings() throws IOException {
+        File file = mFolder.newFile("acetone");
+        try (AcetoneStore store = AcetoneStore.open(file)) {
+            store.append(1, 10);
+            store.append(2, 20);
+        }
+        try (AcetoneStore store = AcetoneStore.open(file)) {
+            assertEquals(2, store.size());
+            assertEquals(2, store.getLastTime());
+            store.append(3, 30);
+            assertArrayEquals(new long[]{10, 20, 30}, scan(store, 0, 10)[1]);
+        }
+    }
+
+    @Test
+    public void recoveryDropsRecordWrittenInPart() throws IOException {
+        File file = mFolder.newFile("acetone");
+        try (AcetoneStore store = AcetoneStore.open(file)) {
+            store.append(new long[]{1, 2, 3}, new long[]{10, 20, 30}, 3);
+        }
+        appendBytes(file, new byte[AcetoneStore.RECORD_SIZE - 7]);
+
+        try (AcetoneStore store = AcetoneStore.open(file)) {
+            assertEquals(3, store.size());
+            assertEquals(AcetoneStore.HEADER_SIZE + 3 * AcetoneStore.RECORD_SIZE, file.length());
+            store.append(4, 40);
+            assertArrayEquals(new long[]{10, 20, 30, 40}, scan(store, 0, 10)[1]);
+        }
+    }
+
+    @Test
+    public void recoveryDropsUnfilledSpaceAtTheEnd() throws IOException {
+        File file = mFolder.newFile("acetone");
+        try (AcetoneStore store = AcetoneStore.open(file)) {
+            store.append(1, 10);
+        }
+        // Allocated by the file system but never written
+        appendBytes(file, new byte[3 * AcetoneStore.RECORD_SIZE]);
+
+        try (AcetoneStore store = AcetoneStore.open(file)) {
+            assertEquals(1, store.size());
+            assertEquals(1, store.getLastTime());
+        }
+    }
+
+    @Test
+    public void recoveryDropsRecordWithBadChecksum() throws IOException {
+        File file = mFolder.newFile("acetone");
+        try (AcetoneStore store = AcetoneStore.open(file)) {
+            store.append(new long[]{1, 2, 3}, new long[]{10, 20, 30}, 3);
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            // The value of the last record
+            raw.seek(AcetoneStore.HEADER_SIZE + 2 * AcetoneStore.RECORD_SIZE + 8);
+            raw.writeLong(31);
+        }
+
+        try (AcetoneStore store = AcetoneStore.open(file)) {
+            assertEquals(2, store.size());
+            assertEquals(2, store.getLastTime());
+            assertEquals(AcetoneStore.HEADER_SIZE + 2 * AcetoneStore.RECORD_SIZE, file.length());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void openRefusesOtherFiles() throws IOException {
+        File file = mFolder.newFile("acetone");
+        appendBytes(file, "not a store".getBytes("UTF-8"));
+        AcetoneStore.open(file).close();
+    }
+
+    @Test
+    public void migrationMovesTheLegacyReadings() throws IOException {
+        File file = new File(mFolder.getRoot(), "acetone");
+        File times = writeLegacyList("times", Arrays.asList(100L, 200L, 300L));
+        File values = writeLegacyList("values", Arrays.asList(7L, 8L, 9L));
+
+        try (AcetoneStore store = AcetoneStore.openMigrating(file, times, values)) {
+            long[][] readings = scan(store, Long.MIN_VALUE, Long.MAX_VALUE);
+            assertArrayEquals(new long[]{100, 200, 300}, readings[0]);
+            assertArrayEquals(new long[]{7, 8, 9}, readings[1]);
+        }
+        assertFalse(times.exists());
+        assertFalse(values.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void migrationStartsOverAfterACrash() throws IOException {
+        File file = new File(mFolder.getRoot(), "acetone");
+        File times = writeLegacyList("times", Arrays.asList(100L, 200L));
+        File values = writeLegacyList("values", Arrays.asList(7L, 8L));
+        // What a migration killed halfway left behind
+        File temp = new File(file.getPath() + ".tmp");
+        try (AcetoneStore store = AcetoneStore.open(temp)) {
+            store.append(100, 7);
+        }
+
+        try (AcetoneStore store = AcetoneStore.openMigrating(file, times, values)) {
+            assertArrayEquals(new long[]{7, 8}, scan(store, 0, 1000)[1]);
+        }
+    }
+
+    @Test
+    public void migrationLeavesAnExistingStoreAlone() throws IOException {
+        File file = mFolder.newFile("acetone");
+        try (AcetoneStore store = AcetoneStore.open(file)) {
+            store.append(1, 10);
+        }
+        File times = writeLegacyList("times", Arrays.asList(100L));
+        File values = writeLegacyList("values", Arrays.asList(7L));
+
+        try (AcetoneStore store = AcetoneStore.openMigrating(file, times, values)) {
+            assertEquals(1, store.size());
+            assertEquals(1, store.getLastTime());
+        }
+    }
+
+    private static long[][] scan(AcetoneStore store, long from, long to) throws IOException {
+        final List<Long> times = new ArrayList<>();
+        final List<Long> values = new ArrayList<>();
+        store.scan(from, to, (time, value) -> {
+            times.add(time);
+            values.add(value);
+        });
+        long[][] readings = new long[2][times.size()];
+        for (int i = 0; i < times.size(); i++) {
+            readings[0][i] = times.get(i);
+            readings[1][i] = values.get(i);
+        }
+        return readings;
+    }
+
+    private File writeLegacyList(String name, List<Long> list) throws IOException {
+        File file = mFolder.newFile(name);
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
+            out.writeObject(new ArrayList<>(list));
+        }
+        return file;
+    }
+
+    private static void appendBytes(File file, byte[] bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(bytes);
+        }
+    }
+}
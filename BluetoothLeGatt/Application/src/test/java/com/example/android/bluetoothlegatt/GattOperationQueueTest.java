@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GattOperationQueueTest {
+
+    // Stands for the BluetoothGatt status of a failed operation
+    private static final int STATUS_FAILURE = 133;
+
+    private static final long WAIT_SECONDS = 5;
+
+    private final Object mCharacteristicA = new Object();
+    private final Object mCharacteristicB = new Object();
+
+    private ScheduledExecutorService mScheduler;
+    private GattOperationQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mQueue = new GattOperationQueue(mScheduler);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void operationsAreIssuedOneAtATime() throws Exception {
+        Command first = new Command();
+        Command second = new Command();
+        CompletableFuture<byte[]> firstResult =
+                mQueue.enqueue(GattOperationQueue.WRITE_CHARACTERISTIC, mCharacteristicA, first);
+        CompletableFuture<byte[]> secondResult =
+                mQueue.enqueue(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicB, second);
+        assertEquals(1, first.calls.get());
+        assertEquals(0, second.calls.get());
+        assertEquals(2, mQueue.getPendingCount());
+
+        assertTrue(complete(GattOperationQueue.WRITE_CHARACTERISTIC, mCharacteristicA, 1));
+        assertArrayEquals(new byte[]{1}, firstResult.get(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, second.calls.get());
+
+        assertTrue(complete(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicB, 2));
+        assertArrayEquals(new byte[]{2}, secondResult.get(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, mQueue.getPendingCount());
+        assertEquals(2, mQueue.getCompletedCount());
+    }
+
+    @Test
+    public void completionOfAnotherOperationIsIgnored() {
+        mQueue.enqueue(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicA, new Command());
+        assertFalse(complete(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicB, 1));
+        assertFalse(complete(GattOperationQueue.WRITE_CHARACTERISTIC, mCharacteristicA, 1));
+        assertEquals(1, mQueue.getPendingCount());
+    }
+
+    @Test
+    public void waitingReadsOfTheSameAttributeAreCoalesced() throws Exception {
+        mQueue.enqueue(GattOperationQueue.WRITE_CHARACTERISTIC, mCharacteristicA, new Command());
+        Command read = new Command();
+        CompletableFuture<byte[]> first =
+                mQueue.enqueue(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicB, read);
+        CompletableFuture<byte[]> second =
+                mQueue.enqueue(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicB, read);
+        assertSame(first, second);
+        assertEquals(1, mQueue.getCoalescedCount());
+        assertEquals(2, mQueue.getPendingCount());
+
+        complete(GattOperationQueue.WRITE_CHARACTERISTIC, mCharacteristicA, 0);
+        complete(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicB, 3);
+        assertArrayEquals(new byte[]{3}, second.get(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, read.calls.get());
+    }
+
+    @Test
+    public void writesAreNotCoalesced() {
+        mQueue.enqueue(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicA, new Command());
+        CompletableFuture<byte[]> first = mQueue.enqueue(
+                GattOperationQueue.WRITE_CHARACTERISTIC, mCharacteristicB, new Command());
+        CompletableFuture<byte[]> second = mQueue.enqueue(
+                GattOperationQueue.WRITE_CHARACTERISTIC, mCharacteristicB, new Command());
+        assertFalse(first == second);
+        assertEquals(3, mQueue.getPendingCount());
+        assertEquals(0, mQueue.getCoalescedCount());
+    }
+
+    @Test
+    public void failedOperationIsRetried() throws Exception {
+        Command command = new Command();
+        CompletableFuture<byte[]> result =
+                mQueue.enqueue(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicA, command);
+        assertTrue(mQueue.onCompleted(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicA,
+                STATUS_FAILURE, null));
+        assertFalse(result.isDone());
+        assertEquals(2, command.calls.get());
+
+        complete(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicA, 4);
+        assertArrayEquals(new byte[]{4}, result.get(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, mQueue.getRetryCount());
+    }
+
+    @Test
+    public void operationFailsOnceItsRetriesAreUsedUp() throws Exception {
+        mQueue.setTimeout(GattOperationQueue.DEFAULT_TIMEOUT_MILLIS, 1);
+        Command command = new Command();
+        CompletableFuture<byte[]> result =
+                mQueue.enqueue(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicA, command);
+        for (int i = 0; i < 2; i++) {
+            mQueue.onCompleted(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicA,
+                    STATUS_FAILURE, null);
+        }
+        assertEquals(2, command.calls.get());
+        assertFailsWith(IOException.class, result);
+        assertEquals(1, mQueue.getFailedCount());
+        assertEquals(0, mQueue.getPendingCount());
+    }
+
+    @Test
+    public void operationTimesOutAndTheNextOneIsIssued() throws Exception {
+        mQueue.setTimeout(50, 1);
+        Command stuck = new Command();
+        Command next = new Command();
+        CompletableFuture<byte[]> stuckResult =
+                mQueue.enqueue(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicA, stuck);
+        mQueue.enqueue(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicB, next);
+
+        assertFailsWith(TimeoutException.class, stuckResult);
+        assertEquals(2, stuck.calls.get());
+        assertEquals(2, mQueue.getTimeoutCount());
+        waitForCalls(next, 1);
+        // Too late: the operation has already timed out
+        assertFalse(complete(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicA, 0));
+    }
+
+    @Test
+    public void refusedOperationIsIssuedAgain() throws Exception {
+        Command command = new Command(1);
+        CompletableFuture<byte[]> result =
+                mQueue.enqueue(GattOperationQueue.WRITE_DESCRIPTOR, mCharacteristicA, command);
+        waitForCalls(command, 2);
+
+        complete(GattOperationQueue.WRITE_DESCRIPTOR, mCharacteristicA, 5);
+        assertArrayEquals(new byte[]{5}, result.get(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, mQueue.getRetryCount());
+    }
+
+    @Test
+    public void clearFailsEveryOperation() throws Exception {
+        CompletableFuture<byte[]> inFlight = mQueue.enqueue(
+                GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicA, new Command());
+        CompletableFuture<byte[]> waiting = mQueue.enqueue(
+                GattOperationQueue.READ_CHARACTERISTIC, mCharacteristicB, new Command());
+        mQueue.clear(new IOException("Disconnected"));
+
+        assertFailsWith(IOException.class, inFlight);
+        assertFailsWith(IOException.class, waiting);
+        assertEquals(0, mQueue.getPendingCount());
+    }
+
+    private boolean complete(int kind, Object attribute, int value) {
+        return mQueue.onCompleted(kind, attribute, GattOperationQueue.STATUS_SUCCESS,
+                new byte[]{(byte) value});
+    }
+
+    private static void assertFailsWith(Class<? extends Throwable> type,
+                                        CompletableFuture<byte[]> result) throws Exception {
+        try {
+            result.get(WAIT_SECONDS, TimeUnit.SECONDS);
+            fail("Expected " + type.getSimpleName());
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), type.isInstance(e.getCause()));
+        }
+    }
+
+    private static void waitForCalls(Command command, int calls) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+        while (command.calls.get() < calls && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(calls, command.calls.get());
+    }
+
+    /**
+     * Stands for a call on BluetoothGatt, refused a given number of times before it is
+     * accepted.
+     */
+    private static final class Command implements BooleanSupplier {
+        final AtomicInteger calls = new AtomicInteger();
+        private final int mRefusals;
+
+        Command() {
+            this(0);
+        }
+
+        Command(int refusals) {
+            mRefusals = refusals;
+        }
+
+        @Override
+        public boolean getAsBoolean() {
+            return calls.incrementAndGet() > mRefusals;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+
+public class OperationArbiterTest {
+
+    private final Object mCharacteristic = new Object();
+    // The names of the operations issued, in order
+    private final List<String> mIssued = new ArrayList<>();
+
+    private ScheduledExecutorService mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void turnPassesToTheWaitingQueue() {
+        OperationArbiter arbiter = new OperationArbiter(1);
+        GattOperationQueue a = new GattOperationQueue(mScheduler, arbiter);
+        GattOperationQueue b = new GattOperationQueue(mScheduler, arbiter);
+
+        enqueue(a, "a1");
+        enqueue(b, "b1");
+        assertEquals(Arrays.asList("a1"), mIssued);
+        assertEquals(1, arbiter.getInFlightCount());
+        assertEquals(1, arbiter.getWaitingCount());
+
+        complete(a);
+        assertEquals(Arrays.asList("a1", "b1"), mIssued);
+        assertEquals(1, arbiter.getInFlightCount());
+        assertEquals(0, arbiter.getWaitingCount());
+
+        complete(b);
+        assertEquals(0, arbiter.getInFlightCount());
+    }
+
+    @Test
+    public void busyQueueTakesTurnsWithTheOthers() {
+        OperationArbiter arbiter = new OperationArbiter(1);
+        GattOperationQueue busy = new GattOperationQueue(mScheduler, arbiter);
+        GattOperationQueue quiet = new GattOperationQueue(mScheduler, arbiter);
+        for (int i = 1; i <= 3; i++) {
+            enqueue(busy, "busy" + i);
+        }
+        enqueue(quiet, "quiet1");
+        enqueue(quiet, "quiet2");
+
+        // Each completion hands the turn to whichever queue has waited longest
+        complete(busy);
+        complete(quiet);
+        complete(busy);
+        complete(quiet);
+        complete(busy);
+        assertEquals(Arrays.asList("busy1", "quiet1", "busy2", "quiet2", "busy3"), mIssued);
+        assertEquals(0, arbiter.getInFlightCount());
+        assertEquals(0, arbiter.getWaitingCount());
+    }
+
+    @Test
+    public void queuesShareTheTurnsUpToTheLimit() {
+        OperationArbiter arbiter = new OperationArbiter(2);
+        GattOperationQueue a = new GattOperationQueue(mScheduler, arbiter);
+        GattOperationQueue b = new GattOperationQueue(mScheduler, arbiter);
+        GattOperationQueue c = new GattOperationQueue(mScheduler, arbiter);
+
+        enqueue(a, "a1");
+        enqueue(a, "a2");
+        enqueue(b, "b1");
+        enqueue(c, "c1");
+        // A queue holds one turn at most, so a2 does not take the second one
+        assertEquals(Arrays.asList("a1", "b1"), mIssued);
+        assertEquals(2, arbiter.getInFlightCount());
+
+        complete(b);
+        assertEquals(Arrays.asList("a1", "b1", "c1"), mIssued);
+        complete(a);
+        assertEquals(Arrays.asList("a1", "b1", "c1", "a2"), mIssued);
+    }
+
+    @Test
+    public void clearedQueueGivesBackItsTurn() {
+        OperationArbiter arbiter = new OperationArbiter(1);
+        GattOperationQueue a = new GattOperationQueue(mScheduler, arbiter);
+        GattOperationQueue b = new GattOperationQueue(mScheduler, arbiter);
+
+        enqueue(a, "a1");
+        enqueue(b, "b1");
+        a.clear(new IOException("Disconnected"));
+        assertEquals(Arrays.asList("a1", "b1"), mIssued);
+
+        complete(b);
+        assertEquals(0, arbiter.getInFlightCount());
+        assertEquals(0, arbiter.getWaitingCount());
+    }
+
+    private void enqueue(GattOperationQueue queue, final String name) {
+        queue.enqueue(GattOperationQueue.WRITE_CHARACTERISTIC, mCharacteristic, () -> {
+            mIssued.add(name);
+            return true;
+        });
+    }
+
+    private void complete(GattOperationQueue queue) {
+        queue.onCompleted(GattOperationQueue.WRITE_CHARACTERISTIC, mCharacteristic,
+                GattOperationQueue.STATUS_SUCCESS, new byte[0]);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of GATT reads of different characteristics against a {@link SimulatedGatt} with a
+ * fixed latency per operation, standing in for the connection interval, with and without
+ * {@link GattOperationQueue}.
+ *
+ * <p>Through the queue, {@code pipelined} queues a batch of reads at once, the way
+ * DeviceControlActivity does when it reads a characteristic and enables its notifications: the
+ * queue issues each read from the completion of the previous one. {@code stopAndWait} waits for
+ * each read before queueing the next, so the difference is the cost of waiting for the caller
+ * rather than issuing from the completion.</p>
+ *
+ * <p>Without the queue, {@code directStopAndWait} is what a caller has to do to get every read
+ * done: issue it straight to the stack, wait for its completion, then issue the next one. The
+ * difference from {@code stopAndWait} is what the queue costs. {@code directBurst} issues the
+ * batch straight to the stack without waiting, as code written against {@code BluetoothGatt}
+ * without a queue often does: the stack refuses every read while one is outstanding, and the
+ * {@code delivered} and {@code refused} counters show how many reads that loses.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GattQueueBenchmark {
+
+    private static final int BATCH = 32;
+
+    @Param({"0", "100", "1000"})
+    public long latencyMicros;
+
+    private ScheduledExecutorService mScheduler;
+    private GattOperationQueue mQueue;
+    private SimulatedGatt mGatt;
+    // Called without the queue, releasing a permit for each completed read
+    private SimulatedGatt mDirectGatt;
+    private final Semaphore mDirectCompletions = new Semaphore(0);
+    private final Object[] mCharacteristics = new Object[BATCH];
+    @SuppressWarnings("unchecked")
+    private final CompletableFuture<byte[]>[] mFutures = new CompletableFuture[BATCH];
+
+    /**
+     * The reads of {@code directBurst} that the stack accepted and refused, reported by JMH as
+     * totals next to the score.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class DirectCounters {
+        public long delivered;
+        public long refused;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            delivered = 0;
+            refused = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mQueue = new GattOperationQueue(mScheduler);
+        mGatt = new SimulatedGatt(mQueue::onCompleted, latencyMicros);
+        mDirectGatt = new SimulatedGatt(
+                (kind, attribute, status, value) -> mDirectCompletions.release(), latencyMicros);
+        for (int i = 0; i < BATCH; i++) {
+            mCharacteristics[i] = new Object();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mGatt.close();
+        mDirectGatt.close();
+        mScheduler.shutdownNow();
+        // The queue must never have a call refused; only the direct calls may be
+        if (mQueue.getFailedCount() > 0 || mGatt.getRefusedCount() > 0) {
+            throw new IllegalStateException(mQueue.getFailedCount() + " reads failed, "
+                    + mGatt.getRefusedCount() + " refused");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pipelined() {
+        for (int i = 0; i < BATCH; i++) {
+            mFutures[i] = read(mCharacteristics[i]);
+        }
+        CompletableFuture.allOf(mFutures).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void stopAndWait() {
+        for (int i = 0; i < BATCH; i++) {
+            read(mCharacteristics[i]).join();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void directStopAndWait() {
+        for (int i = 0; i < BATCH; i++) {
+            if (!mDirectGatt.issue(GattOperationQueue.READ_CHARACTERISTIC,
+                    mCharacteristics[i])) {
+                throw new IllegalStateException("Read refused while none was outstanding");
+            }
+            mDirectCompletions.acquireUninterruptibly();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void directBurst(DirectCounters counters) {
+        int accepted = 0;
+        for (int i = 0; i < BATCH; i++) {
+            if (mDirectGatt.issue(GattOperationQueue.READ_CHARACTERISTIC, mCharacteristics[i])) {
+                accepted++;
+            } else {
+                counters.refused++;
+            }
+        }
+        // Let the accepted reads complete, so that the next batch starts with the stack idle
+        mDirectCompletions.acquireUninterruptibly(accepted);
+        counters.delivered += accepted;
+    }
+
+    private CompletableFuture<byte[]> read(final Object characteristic) {
+        return mQueue.enqueue(GattOperationQueue.READ_CHARACTERISTIC, characteristic,
+                () -> mGatt.issue(GattOperationQueue.READ_CHARACTERISTIC, characteristic));
+    }
+}
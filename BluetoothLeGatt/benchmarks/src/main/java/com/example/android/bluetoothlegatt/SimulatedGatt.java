@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A GATT server standing in for the Android stack and a remote device. Like the stack it takes
+ * one operation at a time and refuses calls made while one is outstanding. Each accepted
+ * operation completes on a separate "radio" thread after a fixed latency, by calling a
+ * {@link Callback} the way {@code BluetoothGattCallback} would.
+ */
+final class SimulatedGatt {
+
+    /**
+     * Told of each completed operation, such as {@link GattOperationQueue#onCompleted}.
+     */
+    interface Callback {
+        void onCompleted(int kind, Object attribute, int status, byte[] value);
+    }
+
+    private final Callback mCallback;
+    private final long mLatencyNanos;
+    private final BlockingQueue<Object[]> mRadio = new LinkedBlockingQueue<>();
+    private final Thread mRadioThread;
+    private final byte[] mValue = new byte[] {0x2a, 0, 0, 0};
+    private boolean mBusy;
+    private long mRefusedCount;
+
+    SimulatedGatt(Callback callback, long latencyMicros) {
+        mCallback = callback;
+        mLatencyNanos = latencyMicros * 1000;
+        mRadioThread = new Thread(this::runRadio, "radio");
+        mRadioThread.setDaemon(true);
+        mRadioThread.start();
+    }
+
+    /**
+     * Issues an operation, as {@code BluetoothGatt.readCharacteristic()} and the other calls do.
+     *
+     * @return False if another operation is still outstanding.
+     */
+    boolean issue(int kind, Object attribute) {
+        synchronized (this) {
+            if (mBusy) {
+                mRefusedCount++;
+                return false;
+            }
+            mBusy = true;
+        }
+        // Issued from the radio thread itself when the queue pipelines, so must not block
+        mRadio.add(new Object[] {kind, attribute});
+        return true;
+    }
+
+    synchronized long getRefusedCount() {
+        return mRefusedCount;
+    }
+
+    void close() {
+        mRadioThread.interrupt();
+    }
+
+    private void runRadio() {
+        try {
+            while (true) {
+                Object[] operation = mRadio.take();
+                if (mLatencyNanos > 0) {
+                    LockSupport.parkNanos(mLatencyNanos);
+                }
+                synchronized (this) {
+                    mBusy = false;
+                }
+                mCallback.onCompleted((Integer) operation[0], operation[1],
+                        GattOperationQueue.STATUS_SUCCESS, mValue);
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+}